@@ -20,12 +20,13 @@
 package com.stainlesscode.mediapipeline;
 
 import com.stainlesscode.mediapipeline.demux.DemultiplexerException;
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.xuggle.xuggler.IPacket;
 
 public interface Demultiplexer extends Runnable, PacketHandler {
 	
 	public void init(String url, EngineRuntime engineRuntime);
 	
-	public IPacket getNextPacket() throws DemultiplexerException;
+	public MediaLease<IPacket> getNextPacket() throws DemultiplexerException;
 	
 }
@@ -19,8 +19,11 @@
 
 package com.stainlesscode.mediapipeline;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.sound.sampled.AudioFormat;
 
@@ -29,27 +32,52 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.audioout2.DefaultAudioPlayer;
-import com.stainlesscode.mediapipeline.buffer.CircularFifoMediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.PacketSpill;
+import com.stainlesscode.mediapipeline.demux.ReadAheadDemultiplexer;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent.Type;
 import com.stainlesscode.mediapipeline.factory.AudioOutputFactory;
 import com.stainlesscode.mediapipeline.factory.DemultiplexerFactory;
+import com.stainlesscode.mediapipeline.factory.MediaBufferFactory;
 import com.stainlesscode.mediapipeline.factory.PacketDecoderFactory;
+import com.stainlesscode.mediapipeline.factory.StageExecutorFactory;
 import com.stainlesscode.mediapipeline.factory.SynchronizerFactory;
 import com.stainlesscode.mediapipeline.factory.VideoOutputFactory;
+import com.stainlesscode.mediapipeline.host.EngineAdmissionException;
+import com.stainlesscode.mediapipeline.host.EngineHost;
+import com.stainlesscode.mediapipeline.packetdecoder.FrameReorderWindow;
+import com.stainlesscode.mediapipeline.playlist.Playlist;
+import com.stainlesscode.mediapipeline.playlist.Preroller;
+import com.stainlesscode.mediapipeline.seek.DecodedFrameCache;
+import com.stainlesscode.mediapipeline.seek.KeyframeIndex;
+import com.stainlesscode.mediapipeline.seek.KeyframeIndexBuilder;
+import com.stainlesscode.mediapipeline.seek.SeekScheduler;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
 import com.stainlesscode.mediapipeline.util.MediaPlayerEventSupportedEngineThread;
 import com.stainlesscode.mediapipeline.util.MemoryChecker;
 import com.stainlesscode.mediapipeline.util.MetadataUtil;
+import com.stainlesscode.mediapipeline.util.NativeMemory;
+import com.stainlesscode.mediapipeline.util.PoolWarmer;
 import com.stainlesscode.mediapipeline.util.SeekHelper;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.stainlesscode.mediapipeline.util.ThreadWatchdog;
+import com.stainlesscode.mediapipeline.util.TimeUtil;
+import com.stainlesscode.mediapipeline.videoout.DefaultVideoPlayer;
+import com.stainlesscode.mediapipeline.videoout.FrameHistory;
 import com.stainlesscode.mediapipeline.videoout.MediaPlayerEventAwareVideoPlayer;
 import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.IContainer;
 import com.xuggle.xuggler.IError;
+import com.xuggle.xuggler.IMediaData;
+import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IRational;
 import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoPicture;
 import com.xuggle.xuggler.IVideoResampler;
@@ -74,6 +102,7 @@ public class Engine extends MediaPlayerEventSupport implements
 
 	protected EngineRuntime engineRuntime;
 	protected EngineConfiguration engineConfiguration;
+	protected EngineSettings settings;
 	protected Map<Integer, IStreamCoder> packetDecoderMap = new HashMap<Integer, IStreamCoder>();
 	protected VideoOutput videoOutput;
 
@@ -84,47 +113,112 @@ public class Engine extends MediaPlayerEventSupport implements
 	protected EngineThread demultiplexer, audioDecoder, videoDecoder,
 			audioPlayer, videoPlayer;
 	protected Synchronizer synchronizer;
-	protected Thread demuxThread, audioDecodeThread, videoDecodeThread,
+	protected StageHandle demuxThread, audioDecodeThread, videoDecodeThread,
 			audioPlayThread, videoPlayThread;
 
 	protected SeekHelper seekHelper;
 	protected boolean started;
 	// protected boolean stopAfterFirstFrame;
 	protected String url;
+	protected Playlist playlist;
+	protected SeekScheduler seekScheduler;
+	protected KeyframeIndexBuilder indexBuilder;
+	protected PoolWarmer poolWarmer;
+	// a seek served from the decoded frame cache while paused, which the
+	// pipeline still has to follow (microseconds, -1 if none)
+	protected long pendingSeek = -1;
 
 	// singleton
 	protected Engine(EngineConfiguration config) {
+		this(config, null);
+	}
+
+	protected Engine(EngineConfiguration config, EngineHost host) {
 		Engine engine = this;
-		engine.engineConfiguration = config;
+		// validated once; the engine and its stages only see this snapshot
+		engine.settings = new EngineSettings(config);
+		engine.engineConfiguration = engine.settings.getConfiguration();
 		engine.engineRuntime = new EngineRuntime();
 		engine.engineRuntime.setEngine(engine);
+		engine.engineRuntime.setHost(host);
+
+		if (host != null) {
+			engine.engineRuntime.setStageExecutor(host.getStageExecutor());
+		} else {
+			try {
+				engine.engineRuntime.setStageExecutor(StageExecutorFactory
+						.createStageExecutor(engine.settings));
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
 		engine.seekHelper = new SeekHelper(engine.engineRuntime);
 
-		engine.engineRuntime
-				.setVideoPacketBuffer(new CircularFifoMediaBuffer(
-						"video packet",
-						engine.engineConfiguration
-								.getConfigurationValueAsInt(EngineConfiguration.VIDEO_PACKET_BUFFER_SIZE_KEY)));
-		engine.engineRuntime
-				.setAudioPacketBuffer(new CircularFifoMediaBuffer(
-						"audio packet",
-						engine.engineConfiguration
-								.getConfigurationValueAsInt(EngineConfiguration.AUDIO_PACKET_BUFFER_SIZE_KEY)));
-		engine.engineRuntime
-				.setAudioFrameBuffer(new CircularFifoMediaBuffer(
-						"audio frame",
-						engine.engineConfiguration
-								.getConfigurationValueAsInt(EngineConfiguration.AUDIO_FRAME_BUFFER_SIZE_KEY)));
-		engine.engineRuntime
-				.setVideoFrameBuffer(new CircularFifoMediaBuffer(
-						"video frame",
-						engine.engineConfiguration
-								.getConfigurationValueAsInt(EngineConfiguration.VIDEO_FRAME_BUFFER_SIZE_KEY)));
+		engine.engineRuntime.setVideoPacketBuffer(engine.createMediaBuffer(
+				"video packet",
+				EngineConfiguration.VIDEO_PACKET_BUFFER_SIZE_KEY,
+				EngineConfiguration.VIDEO_PACKET_BUFFER_BYTES_KEY,
+				EngineConfiguration.VIDEO_PACKET_BUFFER_DURATION_KEY));
+		engine.engineRuntime.setAudioPacketBuffer(engine.createMediaBuffer(
+				"audio packet",
+				EngineConfiguration.AUDIO_PACKET_BUFFER_SIZE_KEY,
+				EngineConfiguration.AUDIO_PACKET_BUFFER_BYTES_KEY,
+				EngineConfiguration.AUDIO_PACKET_BUFFER_DURATION_KEY));
+		engine.engineRuntime.setAudioFrameBuffer(engine.createMediaBuffer(
+				"audio frame", EngineConfiguration.AUDIO_FRAME_BUFFER_SIZE_KEY,
+				EngineConfiguration.AUDIO_FRAME_BUFFER_BYTES_KEY,
+				EngineConfiguration.AUDIO_FRAME_BUFFER_DURATION_KEY));
+		engine.engineRuntime.setVideoFrameBuffer(engine.createMediaBuffer(
+				"video frame", EngineConfiguration.VIDEO_FRAME_BUFFER_SIZE_KEY,
+				EngineConfiguration.VIDEO_FRAME_BUFFER_BYTES_KEY,
+				EngineConfiguration.VIDEO_FRAME_BUFFER_DURATION_KEY));
+
+		engine.engineRuntime.setFrameHistory(new FrameHistory(settings
+				.getInt(EngineConfiguration.FRAME_HISTORY_SIZE_KEY),
+				settings.getLong(EngineConfiguration.FRAME_HISTORY_BYTES_KEY)));
+		engine.engineRuntime.setDecodedFrameCache(new DecodedFrameCache(settings
+				.getInt(EngineConfiguration.DECODED_FRAME_CACHE_SIZE_KEY),
+				settings.getLong(EngineConfiguration.DECODED_FRAME_CACHE_BYTES_KEY)));
+
+		// the host's account sums those of its engines
+		engine.engineRuntime.setNativeMemory(new NativeMemory(host == null ? null
+				: host.getNativeMemory(), engine.engineRuntime.getMetrics(),
+				settings.getLong(EngineConfiguration.NATIVE_MEMORY_BUDGET_KEY)));
+
+		MediaLeases leases = new MediaLeases(engine.engineRuntime.getMetrics());
+		leases.setTracking(settings
+				.getBoolean(EngineConfiguration.LEASE_TRACKING_KEY));
+		leases.setNativeMemory(engine.engineRuntime.getNativeMemory());
+		engine.engineRuntime.setLeases(leases);
 
 		engine.engineRuntime
 				.setStreamToBufferMap(new HashMap<Integer, Buffer>());
 
 		engine.engineRuntime.setPacketDecoderMap(packetDecoderMap);
+
+		engine.playlist = new Playlist(engine);
+
+		engine.seekScheduler = new SeekScheduler(engine);
+		engine.addMediaPlayerEventListener(engine.seekScheduler);
+	}
+
+	/**
+	 * Create one of the pipeline buffers. The element count is a hard ceiling;
+	 * the byte and duration budgets, when set, usually trip first.
+	 */
+	private MediaBuffer createMediaBuffer(String name, String sizeKey,
+			String bytesKey, String durationKey) {
+		MediaBuffer buffer;
+		try {
+			buffer = MediaBufferFactory.createMediaBuffer(name,
+					settings.getInt(sizeKey),
+					engineConfiguration);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		buffer.setByteBudget(settings.getLong(bytesKey));
+		buffer.setDurationBudget(settings.getLong(durationKey));
+		return buffer;
 	}
 
 	/**
@@ -139,6 +233,17 @@ public class Engine extends MediaPlayerEventSupport implements
 		return engine;
 	}
 
+	/**
+	 * Construct an engine that shares the host's threads, pools and clock. Use
+	 * EngineHost.createEngine() rather than calling this directly.
+	 */
+	public static Engine createEngine(EngineConfiguration config,
+			EngineHost host) {
+		checkCanConvertVideoPixelFormat();
+		Engine engine = new Engine(config, host);
+		return engine;
+	}
+
 	/**
 	 * Attempt to load the specified URL as a media containter
 	 * 
@@ -152,6 +257,19 @@ public class Engine extends MediaPlayerEventSupport implements
 
 		this.url = url;
 
+		if (this.started
+				&& settings.getBoolean(EngineConfiguration.WARM_RESET_KEY)) {
+			try {
+				warmReset(url);
+				return;
+			} catch (RuntimeException e) {
+				// leave nothing half-loaded behind
+				LogUtil.error("warm reset failed, stopping engine", e);
+				this.stop();
+				throw e;
+			}
+		}
+
 		if (this.started) {
 			if (LogUtil.isDebugEnabled())
 				LogUtil.debug("stopping and closing engine on a loadUrl call");
@@ -161,24 +279,350 @@ public class Engine extends MediaPlayerEventSupport implements
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("loadUrl " + url);
 
-		if (engineConfiguration
-				.getConfigurationValueAsBoolean(EngineConfiguration.CHECK_MEMORY_KEY)) {
+		if (settings.getBoolean(EngineConfiguration.CHECK_MEMORY_KEY)) {
 			MemoryChecker checker = new MemoryChecker(engineRuntime);
-			new Thread(checker).start();
+			engineRuntime.getStageExecutor().execute(checker,
+					"Memory Checker Thread",
+					StageExecutor.HOUSEKEEPING_PRIORITY);
 		}
 
-		if (engineConfiguration
-				.getConfigurationValueAsBoolean(EngineConfiguration.CHECK_THREADS_KEY)) {
+		if (settings.getBoolean(EngineConfiguration.CHECK_THREADS_KEY)
+				&& engineRuntime.getHost() != null) {
+			// one watchdog per host is enough
+			engineRuntime.getHost().startWatchdog();
+		} else if (settings.getBoolean(EngineConfiguration.CHECK_THREADS_KEY)) {
 			ThreadWatchdog watchdog = new ThreadWatchdog();
-			new Thread(watchdog).start();
+			engineRuntime.getStageExecutor().execute(watchdog,
+					"Thread Watchdog Thread",
+					StageExecutor.HOUSEKEEPING_PRIORITY);
 		}
 
-		if (engineConfiguration
-				.getConfigurationValueAsBoolean(EngineConfiguration.AUTO_START_KEY)) {
+		if (settings.getBoolean(EngineConfiguration.AUTO_START_KEY)) {
 			this.start();
 		}
 	}
 
+	/**
+	 * Swap the media under a running engine. The stage threads, buffers,
+	 * pools, video output and audio line are kept; only the container and its
+	 * coders are replaced, and per-clip state in the decoders and the
+	 * synchronizer is reset. Pools and outputs are rebuilt only if the new
+	 * media has a different shape (picture size and format, audio format).
+	 * Like a cold load, the engine is left paused on the new media.
+	 */
+	protected void warmReset(String url) {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("Engine--> WARM RESET " + url);
+
+		engineRuntime.setPaused(true);
+
+		IStreamCoder oldVideoCoder = engineRuntime.getVideoCoder();
+		AudioFormat oldFormat = audioOutput == null ? null : audioOutput
+				.getAudioFormat();
+		IPixelFormat.Type oldPixelType = oldVideoCoder.getPixelType();
+		int oldWidth = oldVideoCoder.getWidth();
+		int oldHeight = oldVideoCoder.getHeight();
+
+		// the demultiplexer reads under the container lock; the decoders
+		// only hold their decode locks around coder calls, never while
+		// waiting on a buffer. Clearing the buffers first lets a decoder
+		// blocked on a full frame buffer finish, so the clear under the
+		// locks catches what it publishes
+		engineRuntime.getContainerLock().lock();
+		try {
+			clearBuffers();
+			engineRuntime.getVideoDecodeLock().lock();
+			engineRuntime.getAudioDecodeLock().lock();
+			try {
+				clearBuffers();
+				engineRuntime.getFrameHistory().clear();
+				engineRuntime.getDecodedFrameCache().clear();
+				engineRuntime.setSeekTarget(-1);
+				pendingSeek = -1;
+				PacketSpill spill = engineRuntime.getPacketSpill();
+				if (spill != null)
+					spill.clear();
+
+				for (IStreamCoder coder : packetDecoderMap.values()) {
+					coder.close();
+				}
+				engineRuntime.getContainer().close();
+
+				packetDecoderMap.clear();
+				engineRuntime.setTimestampOffset(0);
+				engineRuntime.setVideoCoder(null);
+				engineRuntime.setAudioCoder(null);
+				engineRuntime.setResampler(null);
+				// the demultiplexer looks these up per packet, so swap rather
+				// than mutate them
+				engineRuntime
+						.setStreamToBufferMap(new HashMap<Integer, Buffer>());
+				engineRuntime.setFrameReorderWindow(null);
+
+				// fires MEDIA_LOADED, which makes the demultiplexer drop
+				// anything it read from the old container
+				initializeContainer(url);
+
+				if (engineRuntime.getVideoCoder() == null)
+					throw new RuntimeException(
+							"No suitable video decoder could be loaded");
+
+				reconfigureOutputs(oldPixelType, oldWidth, oldHeight,
+						oldFormat);
+
+				if (synchronizer != null)
+					synchronizer.reset();
+				((PacketDecoder) videoDecoder).reset();
+				((PacketDecoder) audioDecoder).reset();
+			} finally {
+				engineRuntime.getAudioDecodeLock().unlock();
+				engineRuntime.getVideoDecodeLock().unlock();
+			}
+		} finally {
+			engineRuntime.getContainerLock().unlock();
+		}
+
+		videoPlayThread.interrupt();
+		audioPlayThread.interrupt();
+		engineRuntime.getStageScheduler().signalAll();
+
+		engineRuntime.getMetrics().increment("load.warm");
+	}
+
+	/**
+	 * Bring the pools and outputs in line with the coders just loaded, if the
+	 * media has a different shape from what they were built for, and reserve
+	 * the new media's cost on the host. Called with the decode locks held.
+	 */
+	protected void reconfigureOutputs(IPixelFormat.Type oldPixelType,
+			int oldWidth, int oldHeight, AudioFormat oldFormat) {
+		// the new media may cost more than the old
+		EngineHost host = engineRuntime.getHost();
+		if (host != null)
+			host.admit(this);
+
+		IStreamCoder videoCoder = engineRuntime.getVideoCoder();
+		if (videoCoder.getPixelType() != oldPixelType
+				|| videoCoder.getWidth() != oldWidth
+				|| videoCoder.getHeight() != oldHeight) {
+			if (LogUtil.isDebugEnabled())
+				LogUtil.debug("video shape changed, rebuilding pools");
+			initializePools();
+			engineRuntime.putUserObject("converter", null);
+			videoOutput.close();
+			videoOutput.init(engineRuntime);
+		}
+
+		IStreamCoder audioCoder = engineRuntime.getAudioCoder();
+		if (audioCoder != null) {
+			AudioFormat format = new AudioFormat(audioCoder.getSampleRate(),
+					(int) IAudioSamples.findSampleBitDepth(audioCoder
+							.getSampleFormat()), audioCoder.getChannels(),
+					true, false);
+			if (oldFormat == null || !oldFormat.matches(format)) {
+				if (LogUtil.isDebugEnabled())
+					LogUtil.debug("audio format changed, reopening line");
+				audioOutput.close();
+				audioOutput.init(engineRuntime, format);
+			}
+		}
+	}
+
+	/**
+	 * Queue a URL to play after the current one, with no gap between them.
+	 * See Playlist.
+	 */
+	public void enqueue(String url) {
+		playlist.add(url);
+	}
+
+	public Playlist getPlaylist() {
+		return playlist;
+	}
+
+	/**
+	 * Seek without waiting, coalescing with other seeks made before this one
+	 * gets going. See SeekScheduler.
+	 * 
+	 * @return completed with the timestamp of the first frame presented at
+	 *         the target
+	 */
+	public Future<Long> seekAsync(long microseconds) {
+		return seekScheduler.seek(microseconds);
+	}
+
+	public SeekScheduler getSeekScheduler() {
+		return seekScheduler;
+	}
+
+	/**
+	 * Continue with the next playlist item where the current one ends. Called
+	 * on the demultiplexer thread when it reaches the end of the container.
+	 * Once the decoders have decoded the current item's last packets and
+	 * flushed what their coders held back, the engine adopts the pre-rolled
+	 * item's container and coders and hands the staged frames to the
+	 * decoders, which publish them behind the current item's last ones from
+	 * their own threads. The locks are held only for the swap,
+	 * never while a frame buffer is full. The new item's timestamps
+	 * are offset to continue the timeline, and the synchronizer's stream time
+	 * zero moves to where the item begins, so the clock never jumps.
+	 * 
+	 * @return false if the playlist is empty and the clip should end
+	 */
+	protected boolean spliceNextItem() {
+		Preroller next;
+		try {
+			while ((next = playlist.next()) != null && !next.isUsable()) {
+				LogUtil.warn("skipping playlist item " + next.getUrl());
+				next.close();
+			}
+		} catch (InterruptedException e) {
+			// a seek or stop interrupted us; the clip has not ended
+			return true;
+		}
+
+		if (next == null)
+			return false;
+
+		// the decoders finish the current item with its own coders, down to
+		// the frames the coders hold back, before those are closed
+		final MediaBuffer videoPackets = (MediaBuffer) engineRuntime
+				.getVideoPacketBuffer();
+		final MediaBuffer audioPackets = (MediaBuffer) engineRuntime
+				.getAudioPacketBuffer();
+		final PacketDecoder videoOut = (PacketDecoder) videoDecoder;
+		final PacketDecoder audioOut = (PacketDecoder) audioDecoder;
+		videoOut.drain();
+		audioOut.drain();
+		try {
+			engineRuntime.getStageScheduler().await(
+					new StageScheduler.Condition() {
+						public boolean isSatisfied() {
+							return videoPackets.isEmpty()
+									&& audioPackets.isEmpty()
+									&& videoOut.isDrained()
+									&& audioOut.isDrained();
+						}
+					}, demultiplexer);
+		} catch (InterruptedException e) {
+			playlist.putBack(next);
+			return true;
+		}
+		if (demultiplexer.isMarkedForDeath()) {
+			playlist.putBack(next);
+			return true;
+		}
+
+		EngineRuntime staged = next.getRuntime();
+		MediaBuffer videoFrames = (MediaBuffer) engineRuntime
+				.getVideoFrameBuffer();
+		MediaBuffer audioFrames = (MediaBuffer) engineRuntime
+				.getAudioFrameBuffer();
+		long offset;
+		boolean seeked = false;
+
+		engineRuntime.getContainerLock().lock();
+		engineRuntime.getVideoDecodeLock().lock();
+		engineRuntime.getAudioDecodeLock().lock();
+		try {
+			try {
+				IStreamCoder oldVideoCoder = engineRuntime.getVideoCoder();
+				AudioFormat oldFormat = audioOutput == null ? null
+						: audioOutput.getAudioFormat();
+
+				// where the current item ends on the timeline; its last
+				// frames may still be held for reordering
+				long end = videoFrames.getEndTimestamp();
+				FrameReorderWindow window = engineRuntime
+						.getFrameReorderWindow();
+				if (window != null)
+					end = Math.max(end, window.getNewestTimestamp());
+				IRational frameRate = oldVideoCoder.getFrameRate();
+				if (end >= 0 && frameRate != null && frameRate.getValue() > 0)
+					end += (long) (1000000 / frameRate.getValue());
+				end = Math.max(end, audioFrames.getEndTimestamp());
+				if (end < 0)
+					end = synchronizer.getStreamTime();
+				offset = end - next.getStartTimestamp();
+
+				for (IStreamCoder coder : packetDecoderMap.values()) {
+					coder.close();
+				}
+				engineRuntime.getContainer().close();
+
+				packetDecoderMap.clear();
+				packetDecoderMap.putAll(next.getPacketDecoderMap());
+				engineRuntime.setContainer(staged.getContainer());
+				engineRuntime.setVideoCoder(staged.getVideoCoder());
+				engineRuntime.setAudioCoder(staged.getAudioCoder());
+				engineRuntime.setResampler(staged.getResampler());
+				engineRuntime.setStreamToBufferMap(staged
+						.getStreamToBufferMap());
+				engineRuntime.setTimestampOffset(offset);
+				initializeKeyframeIndex(next.getUrl());
+
+				engineRuntime.getFrameHistory().clear();
+				PacketSpill spill = engineRuntime.getPacketSpill();
+				if (spill != null)
+					spill.clear();
+
+				reconfigureOutputs(oldVideoCoder.getPixelType(),
+						oldVideoCoder.getWidth(), oldVideoCoder.getHeight(),
+						oldFormat);
+
+				if (synchronizer != null)
+					synchronizer.rebaseStreamTimeZero(end);
+			} finally {
+				engineRuntime.getContainerLock().unlock();
+			}
+
+			// the decoders publish the staged frames, so each frame buffer
+			// keeps a single producer and nothing here waits on the players
+			Buffer stagedVideo = staged.getVideoFrameBuffer();
+			Buffer stagedAudio = staged.getAudioFrameBuffer();
+			rebase(stagedVideo, offset);
+			rebase(stagedAudio, offset);
+			((PacketDecoder) videoDecoder).handOff(stagedVideo);
+			((PacketDecoder) audioDecoder).handOff(stagedAudio);
+		} finally {
+			engineRuntime.getAudioDecodeLock().unlock();
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+
+		// a seek drops what is left
+		for (MediaLease<IPacket> lease : next.getLeftoverPackets()) {
+			IPacket packet = lease.get();
+			Buffer buffer = seeked ? null : engineRuntime
+					.getStreamToBufferMap().get(packet.getStreamIndex());
+			if (buffer == null) {
+				lease.release();
+				continue;
+			}
+			TimeUtil.rebasePacket(packet, offset);
+			seeked = !buffer.add(lease);
+			if (seeked)
+				lease.release();
+		}
+		next.getLeftoverPackets().clear();
+
+		engineRuntime.getMetrics().increment("playlist.splice");
+		LogUtil.info("playlist continues with " + next.getUrl() + " at "
+				+ (offset + next.getStartTimestamp()));
+
+		fireMediaPlayerEvent(new MediaPlayerEvent(this,
+				MediaPlayerEvent.Type.NEXT_ITEM, MetadataUtil
+						.getMetaData(engineRuntime.getContainer())));
+
+		return true;
+	}
+
+	private void rebase(Buffer frames, long offset) {
+		for (Object frame : frames) {
+			IMediaData data = MediaLease.mediaOf(frame);
+			data.setTimeStamp(data.getTimeStamp() + offset);
+		}
+	}
+
 	protected void initializeSynchronizer() throws InstantiationException,
 			IllegalAccessException, ClassNotFoundException {
 		synchronizer = SynchronizerFactory
@@ -187,6 +631,10 @@ public class Engine extends MediaPlayerEventSupport implements
 		if (synchronizer != null) {
 			synchronizer.init(engineRuntime);
 			engineRuntime.setSynchronizer(synchronizer);
+			// the playlist pre-rolls on the clock's ticks
+			if (synchronizer instanceof MediaPlayerEventSupport)
+				((MediaPlayerEventSupport) synchronizer)
+						.addMediaPlayerEventListener(playlist);
 		}
 
 		if (LogUtil.isDebugEnabled())
@@ -205,7 +653,18 @@ public class Engine extends MediaPlayerEventSupport implements
 		demux.init(url, engineRuntime);
 		demultiplexer = (EngineThread) demux;
 
-		engineRuntime.init();
+		long spillBytes = settings
+				.getLong(EngineConfiguration.PACKET_SPILL_BYTES_KEY);
+		if (spillBytes > 0) {
+			String dir = settings.getString(
+					EngineConfiguration.PACKET_SPILL_DIRECTORY_KEY);
+			try {
+				engineRuntime.setPacketSpill(new PacketSpill(dir == null ? null
+						: new File(dir), spillBytes));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 
 		audioDecoder = (EngineThread) PacketDecoderFactory.createPacketDecoder(
 				PacketDecoderFactory.Type.AUDIO, engineConfiguration);
@@ -226,6 +685,59 @@ public class Engine extends MediaPlayerEventSupport implements
 
 	protected void initializeContainer() {
 		initializeContainer(this.url);
+		initializePools();
+	}
+
+	/**
+	 * Create the object pools for the media in the container, and fill them
+	 * in the background while the rest of the engine starts.
+	 */
+	protected void initializePools() {
+		if (poolWarmer != null)
+			poolWarmer.cancel();
+
+		engineRuntime.init();
+
+		if (!settings.isUseObjectPools())
+			return;
+
+		poolWarmer = engineRuntime.getPoolWarmer();
+		engineRuntime.getStageExecutor().execute(poolWarmer,
+				"Pool Warmer Thread", StageExecutor.HOUSEKEEPING_PRIORITY);
+	}
+
+	/**
+	 * Load the key frame index of a local file from its sidecar, or build it
+	 * in the background if there is no usable sidecar. Seeks go through the
+	 * container's own index until one is available.
+	 */
+	protected void initializeKeyframeIndex(String url) {
+		if (indexBuilder != null) {
+			indexBuilder.cancel();
+			indexBuilder = null;
+		}
+		engineRuntime.setKeyframeIndex(null);
+
+		if (!settings.getBoolean(EngineConfiguration.KEYFRAME_INDEX_KEY))
+			return;
+
+		File media = KeyframeIndex.getMediaFile(url);
+		if (media == null)
+			return;
+
+		File sidecar = KeyframeIndex.getSidecar(media, settings
+				.getString(EngineConfiguration.KEYFRAME_INDEX_DIRECTORY_KEY));
+		KeyframeIndex index = KeyframeIndex.load(sidecar, media.length(),
+				media.lastModified());
+		if (index != null) {
+			engineRuntime.setKeyframeIndex(index);
+			return;
+		}
+
+		indexBuilder = new KeyframeIndexBuilder(engineRuntime, url, media,
+				sidecar);
+		engineRuntime.getStageExecutor().execute(indexBuilder,
+				"Keyframe Index Thread", StageExecutor.HOUSEKEEPING_PRIORITY);
 	}
 
 	protected void initializeContainer(String url) {
@@ -266,6 +778,8 @@ public class Engine extends MediaPlayerEventSupport implements
 			engineRuntime.getContainerLock().unlock();
 		}
 
+		initializeKeyframeIndex(url);
+
 		fireMediaPlayerEvent(new MediaPlayerEvent(this,
 				MediaPlayerEvent.Type.MEDIA_LOADED, MetadataUtil
 						.getMetaData(engineRuntime.getContainer())));
@@ -314,6 +828,12 @@ public class Engine extends MediaPlayerEventSupport implements
 		videoPlayer = new MediaPlayerEventAwareVideoPlayer(videoOutput,
 				engineRuntime);
 
+		if (settings.isHeadless()) {
+			// the free-running clock follows the outputs, don't wait on it
+			((DefaultAudioPlayer) audioPlayer).setDoSync(false);
+			((DefaultVideoPlayer) videoPlayer).setDoSync(false);
+		}
+
 		if (videoPlayer instanceof MediaPlayerEventListener) {
 			this
 					.addMediaPlayerEventListener(((MediaPlayerEventListener) videoPlayer));
@@ -354,16 +874,28 @@ public class Engine extends MediaPlayerEventSupport implements
 				}
 			}
 
-			demuxThread = new Thread(demultiplexer, "Demultiplexer Thread");
-			demuxThread.start();
-			audioDecodeThread = new Thread(audioDecoder, "Audio Decode Thread");
-			audioDecodeThread.start();
-			videoDecodeThread = new Thread(videoDecoder, "Video Decode Thread");
-			videoDecodeThread.start();
-			audioPlayThread = new Thread(audioPlayer, "Audio Play Thread");
-			audioPlayThread.start();
-			videoPlayThread = new Thread(videoPlayer, "Video Play Thread");
-			videoPlayThread.start();
+			EngineHost host = engineRuntime.getHost();
+			if (host != null) {
+				try {
+					host.admit(this);
+				} catch (EngineAdmissionException e) {
+					engineRuntime.getContainer().close();
+					engineRuntime.setContainer(null);
+					throw e;
+				}
+			}
+
+			StageExecutor executor = engineRuntime.getStageExecutor();
+			demuxThread = executor.execute(demultiplexer,
+					"Demultiplexer Thread", StageExecutor.DEMUX_PRIORITY);
+			audioDecodeThread = executor.execute(audioDecoder,
+					"Audio Decode Thread", StageExecutor.DECODE_PRIORITY);
+			videoDecodeThread = executor.execute(videoDecoder,
+					"Video Decode Thread", StageExecutor.DECODE_PRIORITY);
+			audioPlayThread = executor.execute(audioPlayer,
+					"Audio Play Thread", StageExecutor.PLAYBACK_PRIORITY);
+			videoPlayThread = executor.execute(videoPlayer,
+					"Video Play Thread", StageExecutor.PLAYBACK_PRIORITY);
 
 			engineRuntime.getSynchronizer().start();
 		}
@@ -410,6 +942,8 @@ public class Engine extends MediaPlayerEventSupport implements
 				synchronizer.stop();
 			}
 
+			engineRuntime.getStageScheduler().signalAll();
+
 			if (audioOutput != null) {
 				try {
 					audioOutput.close();
@@ -432,6 +966,31 @@ public class Engine extends MediaPlayerEventSupport implements
 			}
 
 			clearBuffers();
+			engineRuntime.reportPoolLeaks();
+			engineRuntime.getLeases().report();
+			engineRuntime.getFrameHistory().clear();
+			engineRuntime.getDecodedFrameCache().clear();
+			engineRuntime.setSeekTarget(-1);
+			pendingSeek = -1;
+			engineRuntime.setTimestampOffset(0);
+			playlist.cancelPreroll();
+			if (poolWarmer != null) {
+				poolWarmer.cancel();
+				poolWarmer = null;
+			}
+			if (indexBuilder != null) {
+				indexBuilder.cancel();
+				indexBuilder = null;
+			}
+
+			PacketSpill spill = engineRuntime.getPacketSpill();
+			if (spill != null) {
+				spill.close();
+				engineRuntime.setPacketSpill(null);
+			}
+
+			if (engineRuntime.getHost() != null)
+				engineRuntime.getHost().release(this);
 
 			this.started = false;
 
@@ -465,6 +1024,19 @@ public class Engine extends MediaPlayerEventSupport implements
 		if (!this.started)
 			this.start();
 
+		// resume from the frame on screen if we have stepped back, or if it
+		// came from the decoded frame cache
+		FrameHistory history = engineRuntime.getFrameHistory();
+		if (pendingSeek >= 0) {
+			long microseconds = pendingSeek;
+			pendingSeek = -1;
+			seekPipeline(microseconds, true);
+		} else if (history.isRewound() && synchronizer != null) {
+			IVideoPicture current = history.getCurrent();
+			seekPipeline(current.getTimeStamp()
+					- synchronizer.getStreamTimeZero(), true);
+		}
+
 		// re-clap the synchronizer
 		//engineRuntime.getSynchronizer().start();
 
@@ -474,6 +1046,71 @@ public class Engine extends MediaPlayerEventSupport implements
 				MediaPlayerEvent.Type.UNPAUSE, null));
 	}
 
+	/**
+	 * Pause the engine and show the frame presented before the one on screen,
+	 * served from the frame history without touching the container.
+	 * 
+	 * @return false if the previous frame is no longer in the history
+	 */
+	public boolean stepBackward() {
+		if (!this.started)
+			return false;
+		if (!isPaused())
+			pause();
+
+		IVideoPicture picture = engineRuntime.getFrameHistory().stepBackward();
+		if (picture == null)
+			return false;
+
+		engineRuntime.getMetrics().increment("step.history");
+		videoOutput.setCurrentFrame(picture);
+		return true;
+	}
+
+	/**
+	 * Pause the engine and show the next frame. After stepping backward the
+	 * frame comes from the frame history, otherwise it is taken from the
+	 * video frame buffer.
+	 * 
+	 * @return false if no frame is available yet
+	 */
+	public boolean stepForward() {
+		if (!this.started)
+			return false;
+		if (!isPaused())
+			pause();
+
+		FrameHistory history = engineRuntime.getFrameHistory();
+		IVideoPicture picture = history.stepForward();
+		if (picture != null) {
+			engineRuntime.getMetrics().increment("step.history");
+			videoOutput.setCurrentFrame(picture);
+			return true;
+		}
+
+		// the frame on screen came from the decoded frame cache, so bring the
+		// pipeline to the frame after it
+		if (pendingSeek >= 0) {
+			long microseconds = pendingSeek
+					+ TimeUtil.getFramePeriod(engineRuntime.getVideoCoder());
+			pendingSeek = -1;
+			seekPipeline(microseconds, true);
+		}
+
+		// the player is the frame buffer's only consumer, so it takes the
+		// next frame for us
+		try {
+			if (!((DefaultVideoPlayer) videoPlayer).stepForward())
+				return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		engineRuntime.getMetrics().increment("step.buffer");
+		return true;
+	}
+
 	/**
 	 * This call is effectively identical to seek(microseconds,true)
 	 * 
@@ -491,14 +1128,69 @@ public class Engine extends MediaPlayerEventSupport implements
 	 * @param microseconds
 	 */
 	public void seek(long microseconds, boolean clearBuffers) {
+		if (clearBuffers && seekWithinCache(microseconds))
+			return;
+
+		seekPipeline(microseconds, clearBuffers);
+	}
+
+	/**
+	 * Bring the pipeline to the given time: from what is buffered if
+	 * possible, otherwise by moving the container. In accurate seek mode the
+	 * container goes to the key frame before the target and the frames up to
+	 * the target are decoded but not presented (see DecodeForward).
+	 */
+	protected void seekPipeline(long microseconds, boolean clearBuffers) {
+		pendingSeek = -1;
+		if (isAccurateSeek() && synchronizer != null
+				&& synchronizer.isStreamTimeZeroSet())
+			engineRuntime.setSeekTarget(synchronizer.getStreamTimeZero()
+					+ microseconds);
+
+		if (clearBuffers
+				&& (seekWithinBuffers(microseconds) || seekWithinSpill(microseconds)))
+			return;
+
+		if (demultiplexer instanceof ReadAheadDemultiplexer) {
+			// the read-ahead stage seeks between reads, so the caller
+			// doesn't wait for the container
+			if (clearBuffers) {
+				// a demultiplexer blocked on a full buffer gets moving
+				clearBuffers();
+			}
+			((ReadAheadDemultiplexer) demultiplexer).seek(microseconds,
+					clearBuffers);
+			return;
+		}
+
+		seekContainer(microseconds, clearBuffers);
+	}
+
+	/**
+	 * Move the container itself. Holds the container lock while it seeks,
+	 * then flushes what is in the pipeline and fires SEEK. Called by seek(),
+	 * or on the read-ahead stage.
+	 */
+	public void seekContainer(long microseconds, boolean clearBuffers) {
+		engineRuntime.getMetrics().increment("seek.container");
+		engineRuntime.getFrameHistory().clear();
+
 		int retcode = 0;
 		engineRuntime.getContainerLock().lock();
 
-		if ((retcode = seekHelper.seek(microseconds, false)) < 0) {
+		if ((retcode = isAccurateSeek() ? seekHelper
+				.seekKeyFrameBefore(microseconds) : seekHelper.seek(
+				microseconds, false)) < 0) {
 			IError err = IError.make(retcode);
 			LogUtil.error(err.getDescription());
 		}
 
+		// the container has moved, so what follows is not contiguous with the
+		// spill any more
+		PacketSpill spill = engineRuntime.getPacketSpill();
+		if (spill != null)
+			spill.clear();
+
 		if (clearBuffers)
 			clearBuffers();
 
@@ -512,13 +1204,187 @@ public class Engine extends MediaPlayerEventSupport implements
 		engineRuntime.getContainerLock().unlock();
 	}
 
+	/**
+	 * Serve an accurate seek from the decoded frame cache. Only while paused:
+	 * the frame is shown straight away, and the pipeline follows on unpause()
+	 * or stepForward().
+	 * 
+	 * @return false if the seek has to go to the pipeline
+	 */
+	protected boolean seekWithinCache(long microseconds) {
+		if (!started || !isPaused() || !isAccurateSeek()
+				|| synchronizer == null || !synchronizer.isStreamTimeZeroSet())
+			return false;
+
+		IVideoPicture picture = engineRuntime.getDecodedFrameCache().find(
+				synchronizer.getStreamTimeZero() + microseconds,
+				TimeUtil.getFramePeriod(engineRuntime.getVideoCoder()));
+		if (picture == null)
+			return false;
+
+		engineRuntime.getMetrics().increment("seek.cache");
+		engineRuntime.setSeekTarget(-1);
+		pendingSeek = microseconds;
+
+		FrameHistory history = engineRuntime.getFrameHistory();
+		history.clear();
+		history.add(picture);
+		videoOutput.setCurrentFrame(picture);
+
+		seekScheduler.seekServed(microseconds, picture.getTimeStamp());
+		return true;
+	}
+
+	protected boolean isAccurateSeek() {
+		return settings.isAccurateSeek();
+	}
+
+	/**
+	 * Serve a seek from media already in the pipeline. If the target is
+	 * buffered for both audio and video (as decoded frames, or as packets from
+	 * a preceding video key frame on), the buffers are advanced to it instead
+	 * of being flushed and the container is not touched. Only forward seeks
+	 * can qualify, as presented frames are no longer buffered.
+	 * 
+	 * @return false if the seek has to go to the container
+	 */
+	protected boolean seekWithinBuffers(long microseconds) {
+		if (!started || synchronizer == null
+				|| !synchronizer.isStreamTimeZeroSet())
+			return false;
+
+		long target = synchronizer.getStreamTimeZero() + microseconds;
+
+		MediaBuffer videoFrames = (MediaBuffer) engineRuntime
+				.getVideoFrameBuffer();
+		MediaBuffer videoPackets = (MediaBuffer) engineRuntime
+				.getVideoPacketBuffer();
+		MediaBuffer audioFrames = (MediaBuffer) engineRuntime
+				.getAudioFrameBuffer();
+		MediaBuffer audioPackets = (MediaBuffer) engineRuntime
+				.getAudioPacketBuffer();
+
+		// frame buffers are in microseconds, packet buffers in stream units
+		long videoPacketTarget = toStreamTime(engineRuntime.getVideoCoder(),
+				target);
+		boolean videoInFrames = videoFrames.find(target) != null;
+		if (!videoInFrames && videoPackets.find(videoPacketTarget) == null)
+			return false;
+
+		IStreamCoder audioCoder = engineRuntime.getAudioCoder();
+		long audioPacketTarget = 0;
+		boolean audioInFrames = true;
+		if (audioCoder != null) {
+			audioPacketTarget = toStreamTime(audioCoder, target);
+			audioInFrames = audioFrames.find(target) != null;
+			if (!audioInFrames
+					&& audioPackets.find(audioPacketTarget) == null)
+				return false;
+		}
+
+		// the decoders and players keep running, so the window can move
+		// under us; a full seek below cleans up after a failed advance
+		boolean advanced;
+		if (videoInFrames) {
+			advanced = videoFrames.advanceTo(target, false);
+		} else {
+			videoFrames.clear();
+			advanced = videoPackets.advanceTo(videoPacketTarget, true);
+		}
+
+		if (advanced && audioCoder != null) {
+			if (audioInFrames) {
+				advanced = audioFrames.advanceTo(target, false);
+			} else {
+				audioFrames.clear();
+				advanced = audioPackets.advanceTo(audioPacketTarget, false);
+			}
+		}
+
+		if (!advanced)
+			return false;
+
+		engineRuntime.getMetrics().increment("seek.buffered");
+		engineRuntime.getFrameHistory().clear();
+
+		videoPlayThread.interrupt();
+		audioPlayThread.interrupt();
+
+		fireMediaPlayerEvent(new MediaPlayerEvent(this,
+				MediaPlayerEvent.Type.BUFFERED_SEEK, microseconds));
+
+		return true;
+	}
+
+	/**
+	 * Serve a seek from the packet spill. If the spill still holds the target,
+	 * from a preceding video key frame on, the buffers are flushed as for a
+	 * container seek but the demultiplexer replays the spilled packets before
+	 * it reads from the container again.
+	 * 
+	 * @return false if the seek has to go to the container
+	 */
+	protected boolean seekWithinSpill(long microseconds) {
+		PacketSpill spill = engineRuntime.getPacketSpill();
+		if (spill == null || !started || synchronizer == null
+				|| !synchronizer.isStreamTimeZeroSet())
+			return false;
+
+		long target = synchronizer.getStreamTimeZero() + microseconds;
+
+		IStreamCoder videoCoder = engineRuntime.getVideoCoder();
+		long from = spill.find(videoCoder.getStream().getIndex(),
+				toStreamTime(videoCoder, target), true);
+		if (from < 0)
+			return false;
+
+		IStreamCoder audioCoder = engineRuntime.getAudioCoder();
+		if (audioCoder != null) {
+			long audioFrom = spill.find(audioCoder.getStream().getIndex(),
+					toStreamTime(audioCoder, target), false);
+			if (audioFrom < 0)
+				return false;
+			from = Math.min(from, audioFrom);
+		}
+
+		engineRuntime.getMetrics().increment("seek.spill");
+		engineRuntime.getFrameHistory().clear();
+
+		// the demultiplexer appends under the container lock, so the spill
+		// can't move between here and the replay
+		engineRuntime.getContainerLock().lock();
+		try {
+			spill.replayFrom(from);
+
+			clearBuffers();
+
+			videoPlayThread.interrupt();
+			audioPlayThread.interrupt();
+			demuxThread.interrupt();
+
+			fireMediaPlayerEvent(new MediaPlayerEvent(this,
+					MediaPlayerEvent.Type.SEEK, microseconds));
+		} finally {
+			engineRuntime.getContainerLock().unlock();
+		}
+
+		return true;
+	}
+
+	private long toStreamTime(IStreamCoder coder, long microseconds) {
+		return TimeUtil.microsecondsToStreamTime(coder.getStream()
+				.getTimeBase(), microseconds);
+	}
+
 	public void clearBuffers() {
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("clearing buffers...");
-		engineRuntime.getAudioFrameBuffer().clear();
-		engineRuntime.getVideoFrameBuffer().clear();
-		engineRuntime.getAudioPacketBuffer().clear();
-		engineRuntime.getVideoPacketBuffer().clear();
+		MediaLeases leases = engineRuntime.getLeases();
+		leases.releaseAll(engineRuntime.getAudioFrameBuffer());
+		leases.releaseAll(engineRuntime.getVideoFrameBuffer());
+		leases.releaseAll(engineRuntime.getAudioPacketBuffer());
+		leases.releaseAll(engineRuntime.getVideoPacketBuffer());
+		leases.releaseAll(engineRuntime.getFrameReorderWindow());
 	}
 
 	public static void checkCanConvertVideoPixelFormat() {
@@ -556,17 +1422,27 @@ public class Engine extends MediaPlayerEventSupport implements
 		}
 
 		if (evt.getType() == Type.CLIP_END) {
+			if (spliceNextItem())
+				return;
+
 			this.audioDecoder.setClipEnded(true);
 			this.videoDecoder.setClipEnded(true);
 			this.videoPlayer.setClipEnded(true);
 			this.audioPlayer.setClipEnded(true);
 
+			// stages parked on a gate re-check their state
+			engineRuntime.getStageScheduler().signalAll();
+
 			// wait for threads to complete
-			while (this.audioDecodeThread.isAlive()
-					&& this.videoDecodeThread.isAlive()
-					&& this.audioPlayThread.isAlive()
-					&& this.videoPlayThread.isAlive())
-				;
+			try {
+				while (this.audioDecodeThread.isAlive()
+						&& this.videoDecodeThread.isAlive()
+						&& this.audioPlayThread.isAlive()
+						&& this.videoPlayThread.isAlive())
+					this.videoPlayThread.join(StageScheduler.IDLE_MILLIS);
+			} catch (InterruptedException e) {
+				// stopping anyway
+			}
 
 			this.stop();
 		}
@@ -623,7 +1499,15 @@ public class Engine extends MediaPlayerEventSupport implements
 		return engineConfiguration;
 	}
 
+	/**
+	 * @return the validated, typed settings the engine was created with
+	 */
+	public EngineSettings getSettings() {
+		return settings;
+	}
+
 	public IVideoPicture getCurrentPicture() {
-		return (IVideoPicture) engineRuntime.getVideoFrameBuffer().get();
+		return (IVideoPicture) MediaLease.mediaOf(engineRuntime
+				.getVideoFrameBuffer().get());
 	}
 }
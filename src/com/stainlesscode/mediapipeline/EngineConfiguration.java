@@ -19,13 +19,19 @@
 
 package com.stainlesscode.mediapipeline;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
 /**
  * A container for storing all the information that a media pipeline engine
- * needs to construct itself. This file should (eventually) be serialized into a
- * properties or XML file for easy configuration of engines.
+ * needs to construct itself. It can be loaded from a properties or XML
+ * properties file with load(). The Engine validates it once, when it is
+ * created, into an immutable EngineSettings; the stages read that.
  * 
  * @author Dan Stieglitz
  * 
@@ -48,13 +54,29 @@ public class EngineConfiguration {
 
 	public static final String AUDIO_FRAME_BUFFER_SIZE_KEY = "audioFrameBufferSize";
 
+	public static final String VIDEO_PACKET_BUFFER_BYTES_KEY = "videoPacketBufferBytes";
+
+	public static final String AUDIO_PACKET_BUFFER_BYTES_KEY = "audioPacketBufferBytes";
+
+	public static final String VIDEO_FRAME_BUFFER_BYTES_KEY = "videoFrameBufferBytes";
+
+	public static final String AUDIO_FRAME_BUFFER_BYTES_KEY = "audioFrameBufferBytes";
+
+	public static final String VIDEO_PACKET_BUFFER_DURATION_KEY = "videoPacketBufferDuration";
+
+	public static final String AUDIO_PACKET_BUFFER_DURATION_KEY = "audioPacketBufferDuration";
+
+	public static final String VIDEO_FRAME_BUFFER_DURATION_KEY = "videoFrameBufferDuration";
+
+	public static final String AUDIO_FRAME_BUFFER_DURATION_KEY = "audioFrameBufferDuration";
+
 	public static final String CHECK_MEMORY_KEY = "checkMemory";
 
 	public static final String CHECK_THREADS_KEY = "checkThreads";
 
 	public static final String SHOW_FIRST_FRAME_KEY = "showFirstFrame";
 
-	public static final String AUTO_START_KEY = "showFirstFrame";
+	public static final String AUTO_START_KEY = "autoStart";
 
 	public static final String AUDIO_PACKET_DECODER_KEY = "audioPacketDecoder";
 
@@ -62,6 +84,72 @@ public class EngineConfiguration {
 
 	public static final String USE_OBJECT_POOLS = "useObjectPools";
 
+	public static final String MEDIA_BUFFER_KEY = "mediaBuffer";
+
+	public static final String BUFFER_WAIT_STRATEGY_KEY = "bufferWaitStrategy";
+
+	public static final String FRAME_REORDER_DEPTH_KEY = "frameReorderDepth";
+
+	public static final String BATCH_SIZE_KEY = "batchSize";
+
+	public static final String FRAME_HISTORY_SIZE_KEY = "frameHistorySize";
+
+	public static final String FRAME_HISTORY_BYTES_KEY = "frameHistoryBytes";
+
+	public static final String PACKET_SPILL_BYTES_KEY = "packetSpillBytes";
+
+	public static final String PACKET_SPILL_DIRECTORY_KEY = "packetSpillDirectory";
+
+	public static final String STAGE_EXECUTOR_KEY = "stageExecutor";
+
+	public static final String HOST_MAX_ENGINES_KEY = "hostMaxEngines";
+
+	public static final String HOST_MEMORY_BUDGET_KEY = "hostMemoryBudget";
+
+	public static final String HOST_CPU_BUDGET_KEY = "hostCpuBudget";
+
+	public static final String HOST_CLOCK_TICK_KEY = "hostClockTick";
+
+	public static final String WARM_RESET_KEY = "warmReset";
+
+	public static final String PLAYLIST_PREROLL_LEAD_KEY = "playlistPrerollLead";
+
+	public static final String PLAYLIST_PREROLL_FRAMES_KEY = "playlistPrerollFrames";
+
+	public static final String HEADLESS_KEY = "headless";
+
+	public static final String VIDEO_DECODER_THREADS_KEY = "videoDecoderThreads";
+
+	public static final String VIDEO_DECODER_THREAD_TYPE_KEY = "videoDecoderThreadType";
+
+	public static final String GOP_DECODER_WORKERS_KEY = "gopDecoderWorkers";
+
+	public static final String GOP_DECODER_QUEUE_SIZE_KEY = "gopDecoderQueueSize";
+
+	public static final String KEYFRAME_INDEX_KEY = "keyframeIndex";
+
+	public static final String KEYFRAME_INDEX_DIRECTORY_KEY = "keyframeIndexDirectory";
+
+	public static final String ACCURATE_SEEK_KEY = "accurateSeek";
+
+	public static final String DECODED_FRAME_CACHE_SIZE_KEY = "decodedFrameCacheSize";
+
+	public static final String DECODED_FRAME_CACHE_BYTES_KEY = "decodedFrameCacheBytes";
+
+	public static final String OBJECT_POOL_KEY = "objectPool";
+
+	public static final String POOL_MAGAZINE_SIZE_KEY = "poolMagazineSize";
+
+	public static final String POOL_MAX_IDLE_KEY = "poolMaxIdle";
+
+	public static final String POOL_LEAK_TRACKING_KEY = "poolLeakTracking";
+
+	public static final String LEASE_TRACKING_KEY = "leaseTracking";
+
+	public static final String NATIVE_MEMORY_BUDGET_KEY = "nativeMemoryBudget";
+
+	public static final String HOST_NATIVE_MEMORY_BUDGET_KEY = "hostNativeMemoryBudget";
+
 	private Map<String, String> configuration;
 
 	public EngineConfiguration() {
@@ -82,17 +170,135 @@ public class EngineConfiguration {
 		configuration
 				.put(AUDIO_PACKET_DECODER_KEY,
 						"com.stainlesscode.mediapipeline.packetdecoder.DefaultAudioPacketDecoder");
+		configuration.put(STAGE_EXECUTOR_KEY,
+				"com.stainlesscode.mediapipeline.stage.ThreadPerStageExecutor");
+		configuration.put(OBJECT_POOL_KEY,
+				"com.stainlesscode.mediapipeline.util.MagazineObjectPool");
+		configuration.put(MEDIA_BUFFER_KEY,
+				"com.stainlesscode.mediapipeline.buffer.SpscMediaBuffer");
+		configuration.put(BUFFER_WAIT_STRATEGY_KEY,
+				"com.stainlesscode.mediapipeline.buffer.ParkingWaitStrategy");
 		configuration.put(VIDEO_PACKET_BUFFER_SIZE_KEY, "1000");
 		configuration.put(AUDIO_PACKET_BUFFER_SIZE_KEY, "1000");
 		configuration.put(VIDEO_FRAME_BUFFER_SIZE_KEY, "50");
 		configuration.put(AUDIO_FRAME_BUFFER_SIZE_KEY, "100");
+		// byte and duration (microsecond) budgets, 0 means no limit
+		configuration.put(VIDEO_PACKET_BUFFER_BYTES_KEY, "0");
+		configuration.put(AUDIO_PACKET_BUFFER_BYTES_KEY, "0");
+		configuration.put(VIDEO_FRAME_BUFFER_BYTES_KEY, "0");
+		configuration.put(AUDIO_FRAME_BUFFER_BYTES_KEY, "0");
+		configuration.put(VIDEO_PACKET_BUFFER_DURATION_KEY, "0");
+		configuration.put(AUDIO_PACKET_BUFFER_DURATION_KEY, "0");
+		configuration.put(VIDEO_FRAME_BUFFER_DURATION_KEY, "0");
+		configuration.put(AUDIO_FRAME_BUFFER_DURATION_KEY, "0");
+		// the most decoded video frames held back to restore presentation
+		// order, 0 disables reordering
+		configuration.put(FRAME_REORDER_DEPTH_KEY, "4");
+		configuration.put(BATCH_SIZE_KEY, "16");
+		// EngineHost budgets (bytes, decoded pixels per second), 0 means no
+		// limit, and clock tick in microseconds
+		configuration.put(HOST_MAX_ENGINES_KEY, "0");
+		configuration.put(HOST_MEMORY_BUDGET_KEY, "0");
+		configuration.put(HOST_CPU_BUDGET_KEY, "0");
+		configuration.put(HOST_CLOCK_TICK_KEY, "5000");
+		// native bytes all the engines' media may hold before their
+		// demultiplexers hold off reading, 0 means no limit
+		configuration.put(HOST_NATIVE_MEMORY_BUDGET_KEY, "0");
+		// presented frames kept for stepping backward, 0 bytes means no limit
+		configuration.put(FRAME_HISTORY_SIZE_KEY, "25");
+		configuration.put(FRAME_HISTORY_BYTES_KEY, "0");
+		// size of the on-disk packet log for seeking back, 0 disables it
+		configuration.put(PACKET_SPILL_BYTES_KEY, "0");
+		configuration.put(PACKET_SPILL_DIRECTORY_KEY, System
+				.getProperty("java.io.tmpdir"));
+		// loadUrl() on a running engine swaps the media without restarting it
+		configuration.put(WARM_RESET_KEY, "true");
+		// start pre-rolling the next playlist item this long (microseconds)
+		// before the current one ends, staging at most this many frames
+		configuration.put(PLAYLIST_PREROLL_LEAD_KEY, "10000000");
+		configuration.put(PLAYLIST_PREROLL_FRAMES_KEY, "250");
+		// run the players as fast as the pipeline allows, see configureHeadless()
+		configuration.put(HEADLESS_KEY, "false");
+		// threads used by the video codec ("slice", "frame" or "frame+slice"),
+		// 0 and empty leave the codec's defaults
+		configuration.put(VIDEO_DECODER_THREADS_KEY, "0");
+		configuration.put(VIDEO_DECODER_THREAD_TYPE_KEY, "");
+		// only used by the ParallelGopVideoPacketDecoder: GOPs decoded at
+		// once, and decoded frames each may hold ahead of the output
+		configuration.put(GOP_DECODER_WORKERS_KEY, "4");
+		configuration.put(GOP_DECODER_QUEUE_SIZE_KEY, "8");
+		// index the key frames of local files for byte seeks, keeping the
+		// index in a sidecar next to the media unless a directory is given
+		configuration.put(KEYFRAME_INDEX_KEY, "false");
+		configuration.put(KEYFRAME_INDEX_DIRECTORY_KEY, "");
+		// seek to the key frame before the target and decode forward to the
+		// exact frame, caching the frames decoded on the way (0 bytes means
+		// no limit)
+		configuration.put(ACCURATE_SEEK_KEY, "false");
+		configuration.put(DECODED_FRAME_CACHE_SIZE_KEY, "120");
+		configuration.put(DECODED_FRAME_CACHE_BYTES_KEY, "0");
 		configuration.put(USE_OBJECT_POOLS, "false");
+		// only used by the MagazineObjectPool: objects per magazine, idle
+		// objects kept in the shared depot (0 sizes each pool from the
+		// buffer it feeds), and logging of objects never returned (slow, for
+		// debugging)
+		configuration.put(POOL_MAGAZINE_SIZE_KEY, "16");
+		configuration.put(POOL_MAX_IDLE_KEY, "0");
+		configuration.put(POOL_LEAK_TRACKING_KEY, "false");
+		// remember where each media lease was acquired, to log with the
+		// leases found leaked (slow, for debugging)
+		configuration.put(LEASE_TRACKING_KEY, "false");
+		// native bytes this engine's media (including the frame history) may
+		// hold before the demultiplexer holds off reading, 0 means no limit
+		configuration.put(NATIVE_MEMORY_BUDGET_KEY, "0");
 		configuration.put(CHECK_MEMORY_KEY, "false");
 		configuration.put(CHECK_THREADS_KEY, "false");
 		configuration.put(SHOW_FIRST_FRAME_KEY, "true");
 		configuration.put(AUTO_START_KEY, "true");
 	}
 
+	// the read-only snapshot held by EngineSettings
+	EngineConfiguration(Map<String, String> configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Load a configuration from a properties file, or from an XML properties
+	 * file if the name ends in .xml. Keys the file does not set keep their
+	 * defaults.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the file has an unknown key or a malformed value
+	 */
+	public static EngineConfiguration load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(in, file.getName().toLowerCase().endsWith(".xml"));
+		} finally {
+			in.close();
+		}
+	}
+
+	public static EngineConfiguration load(InputStream in, boolean xml)
+			throws IOException {
+		Properties properties = new Properties();
+		if (xml)
+			properties.loadFromXML(in);
+		else
+			properties.load(in);
+
+		EngineConfiguration config = new EngineConfiguration();
+		for (String key : properties.stringPropertyNames()) {
+			if (!EngineSettings.isKnownKey(key))
+				throw new IllegalArgumentException(
+						"unknown configuration key " + key);
+			config.put(key, properties.getProperty(key).trim());
+		}
+		// fail on a malformed value now rather than when the engine starts
+		new EngineSettings(config);
+		return config;
+	}
+
 	public Map<String, String> getConfiguration() {
 		return configuration;
 	}
@@ -101,10 +307,30 @@ public class EngineConfiguration {
 		return Integer.parseInt(configuration.get(key));
 	}
 
-	public boolean getConfigurationValueAsBoolean(String checkMemoryKey) {
-		if (configuration.get(CHECK_MEMORY_KEY) == null)
+	public long getConfigurationValueAsLong(String key) {
+		return Long.parseLong(configuration.get(key));
+	}
+
+	public boolean getConfigurationValueAsBoolean(String key) {
+		if (configuration.get(key) == null)
 			return false;
-		return Boolean.parseBoolean(configuration.get(checkMemoryKey));
+		return Boolean.parseBoolean(configuration.get(key));
+	}
+
+	/**
+	 * Set up for headless processing (batch analysis, transcoding): frames go
+	 * to outputs that present nothing, and a free-running clock lets the
+	 * players run as fast as the decoders produce frames. Replace the outputs
+	 * with Callback outputs (or Engine.setVideoOutput()) to get at the frames.
+	 */
+	public void configureHeadless() {
+		configuration.put(VIDEO_OUTPUT_KEY,
+				"com.stainlesscode.mediapipeline.videoout.NullVideoOutput");
+		configuration.put(AUDIO_OUTPUT_KEY,
+				"com.stainlesscode.mediapipeline.audioout2.NullAudioOutput");
+		configuration.put(SYNCHRONIZER_KEY,
+				"com.stainlesscode.mediapipeline.sync.FreeRunningSynchronizer");
+		configuration.put(HEADLESS_KEY, "true");
 	}
 
 	public void put(String key, String val) {
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges describing what an engine's pipeline is doing.
+ * Stages update their values as they run; callers read them with getValue()
+ * or take a snapshot() of all of them.
+ * 
+ */
+public class EngineMetrics {
+
+	private ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+
+	public AtomicLong get(String name) {
+		AtomicLong value = values.get(name);
+		if (value == null) {
+			AtomicLong newValue = new AtomicLong();
+			value = values.putIfAbsent(name, newValue);
+			if (value == null)
+				value = newValue;
+		}
+		return value;
+	}
+
+	public long increment(String name) {
+		return get(name).incrementAndGet();
+	}
+
+	public long add(String name, long delta) {
+		return get(name).addAndGet(delta);
+	}
+
+	public void set(String name, long value) {
+		get(name).set(value);
+	}
+
+	/**
+	 * Raise the named gauge to value if it is currently lower
+	 */
+	public void max(String name, long value) {
+		AtomicLong current = get(name);
+		long old;
+		while ((old = current.get()) < value) {
+			if (current.compareAndSet(old, value))
+				break;
+		}
+	}
+
+	public long getValue(String name) {
+		AtomicLong value = values.get(name);
+		return value == null ? 0 : value.get();
+	}
+
+	/**
+	 * @return a sorted copy of all metric values
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -26,12 +26,23 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.collections.Buffer;
 import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.SoftReferenceObjectPool;
-import org.apache.commons.pool.impl.StackObjectPool;
 
+import com.stainlesscode.mediapipeline.buffer.PacketSpill;
 import com.stainlesscode.mediapipeline.factory.IAudioSamplesObjectPoolFactory;
 import com.stainlesscode.mediapipeline.factory.IPacketObjectPoolFactory;
 import com.stainlesscode.mediapipeline.factory.IVideoPictureObjectPoolFactory;
+import com.stainlesscode.mediapipeline.factory.ObjectPoolFactory;
+import com.stainlesscode.mediapipeline.host.EngineHost;
+import com.stainlesscode.mediapipeline.host.SharedObjectPools;
+import com.stainlesscode.mediapipeline.packetdecoder.FrameReorderWindow;
+import com.stainlesscode.mediapipeline.seek.DecodedFrameCache;
+import com.stainlesscode.mediapipeline.seek.KeyframeIndex;
+import com.stainlesscode.mediapipeline.util.MagazineObjectPool;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.stainlesscode.mediapipeline.util.NativeMemory;
+import com.stainlesscode.mediapipeline.util.PoolWarmer;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
+import com.stainlesscode.mediapipeline.videoout.FrameHistory;
 import com.xuggle.xuggler.IContainer;
 import com.xuggle.xuggler.IStreamCoder;
 import com.xuggle.xuggler.IVideoResampler;
@@ -45,12 +56,23 @@ import com.xuggle.xuggler.IVideoResampler;
  */
 public class EngineRuntime {
 
+	// objects held outside the buffers: by the stages working on them, the
+	// outputs, and the demultiplexer's batch
+	private static final int POOL_SLACK = 8;
+
+	private static final int DEFAULT_AUDIO_SAMPLES_SIZE = 1024;
+
 	private Engine engine;
 
+	private String name;
+
+	private EngineHost host;
+
 	private ObjectPool packetPool;
 	private ObjectPool rawPicturePool;
 	private ObjectPool resampledPicturePool;
 	private ObjectPool audioSamplePool;
+	private PoolWarmer poolWarmer;
 
 	private IVideoResampler resampler;
 
@@ -66,17 +88,44 @@ public class EngineRuntime {
 	private volatile Buffer audioPacketBuffer;
 	private volatile Buffer audioFrameBuffer;
 
+	private FrameHistory frameHistory;
+
+	private volatile PacketSpill packetSpill;
+
+	private volatile KeyframeIndex keyframeIndex;
+
+	private DecodedFrameCache decodedFrameCache;
+
+	private MediaLeases leases;
+
+	private NativeMemory nativeMemory;
+
+	// frames before this are decoded but not presented, -1 when no accurate
+	// seek is in progress (microseconds)
+	private volatile long seekTarget = -1;
+
+	// added to the timestamps of packets read from the container, so the
+	// items of a playlist play out on one timeline (microseconds)
+	private volatile long timestampOffset;
+
 	private IContainer container;
 
 	private Synchronizer synchronizer;
 
 	private Map<Integer, IStreamCoder> packetDecoderMap;
 	private Map<Integer, Buffer> streamToBufferMap;
+	private FrameReorderWindow frameReorderWindow;
+
+	private EngineMetrics metrics = new EngineMetrics();
 
 	private double playSpeed = 1.0;
 
 	private volatile boolean paused;
 
+	private StageScheduler stageScheduler = new StageScheduler(this);
+
+	private StageExecutor stageExecutor;
+
 	private Map<String, Object> userObjects = new HashMap<String, Object>();
 
 	/**
@@ -89,30 +138,114 @@ public class EngineRuntime {
 					"No suitable video decoder could be loaded");
 		}
 
+		// size each pool for the buffer it feeds, plus what is in flight
+		EngineSettings settings = engine.getSettings();
+		int packets = settings
+				.getInt(EngineConfiguration.VIDEO_PACKET_BUFFER_SIZE_KEY)
+				+ settings.getInt(EngineConfiguration.AUDIO_PACKET_BUFFER_SIZE_KEY)
+				+ settings.getBatchSize() + POOL_SLACK;
+		int rawPictures = POOL_SLACK;
+		int resampledPictures = settings
+				.getInt(EngineConfiguration.VIDEO_FRAME_BUFFER_SIZE_KEY)
+				+ settings.getInt(EngineConfiguration.FRAME_REORDER_DEPTH_KEY)
+				+ POOL_SLACK;
+		int samples = settings
+				.getInt(EngineConfiguration.AUDIO_FRAME_BUFFER_SIZE_KEY)
+				+ POOL_SLACK;
+
 //		if (engine.getEngineConfiguration().getConfigurationValueAsBoolean(
 //				EngineConfiguration.USE_OBJECT_POOLS)) {
-			if (videoCoder != null) {
-				this.rawPicturePool = new StackObjectPool(
-						new IVideoPictureObjectPoolFactory(this.videoCoder
-								.getPixelType(), this.videoCoder.getWidth(),
-								this.videoCoder.getHeight()));
+			if (host != null) {
+				// engines on a host share pools for media of the same shape
+				SharedObjectPools pools = host.getPools();
+				this.rawPicturePool = pools.getPicturePool(videoCoder
+						.getPixelType(), videoCoder.getWidth(), videoCoder
+						.getHeight());
+				if (audioCoder != null)
+					this.audioSamplePool = pools.getAudioSamplePool(
+							getAudioSamplesSize(), audioCoder.getChannels());
+				this.resampledPicturePool = pools.getPicturePool(resampler
+						.getOutputPixelFormat(), resampler.getOutputWidth(),
+						resampler.getOutputHeight());
+				this.packetPool = pools.getPacketPool();
+			} else {
+				try {
+					this.rawPicturePool = ObjectPoolFactory.createObjectPool(
+							new IVideoPictureObjectPoolFactory(this.videoCoder
+									.getPixelType(), this.videoCoder
+									.getWidth(), this.videoCoder.getHeight(),
+									nativeMemory),
+							settings, rawPictures);
+
+					if (audioCoder != null) {
+						this.audioSamplePool = ObjectPoolFactory
+								.createObjectPool(
+										new IAudioSamplesObjectPoolFactory(
+												getAudioSamplesSize(),
+												audioCoder.getChannels(),
+												nativeMemory),
+										settings, samples);
+					}
+
+					this.resampledPicturePool = ObjectPoolFactory
+							.createObjectPool(new IVideoPictureObjectPoolFactory(
+									this.resampler.getOutputPixelFormat(),
+									this.resampler.getOutputWidth(),
+									this.resampler.getOutputHeight(),
+									nativeMemory), settings,
+									resampledPictures);
+
+					this.packetPool = ObjectPoolFactory.createObjectPool(
+							new IPacketObjectPoolFactory(), settings, packets);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
 			}
+//		}
 
-			// FIXME buffer size important? probably.
-			if (audioCoder != null) {
-				this.audioSamplePool = new StackObjectPool(
-						new IAudioSamplesObjectPoolFactory(1024, audioCoder
-								.getChannels()));
-			}
+		// Engine runs this in the background, so the pictures of the first
+		// GOP are not allocated on the decoders' hot path
+		this.poolWarmer = new PoolWarmer();
+		poolWarmer.add(packetPool, packets);
+		poolWarmer.add(rawPicturePool, rawPictures);
+		poolWarmer.add(resampledPicturePool, resampledPictures);
+		if (audioSamplePool != null)
+			poolWarmer.add(audioSamplePool, samples);
+	}
 
-			this.resampledPicturePool = new StackObjectPool(
-					new IVideoPictureObjectPoolFactory(this.resampler
-							.getOutputPixelFormat(), this.resampler
-							.getOutputWidth(), this.resampler.getOutputHeight()));
+	/**
+	 * @return the number of samples each pooled IAudioSamples holds: one
+	 *         frame of the audio coder, or a default for coders without a
+	 *         fixed frame size
+	 */
+	public int getAudioSamplesSize() {
+		int frameSize = audioCoder == null ? 0 : audioCoder
+				.getAudioFrameSize();
+		return frameSize > 0 ? frameSize : DEFAULT_AUDIO_SAMPLES_SIZE;
+	}
 
-			this.packetPool = new SoftReferenceObjectPool(
-					new IPacketObjectPoolFactory());
-//		}
+	/**
+	 * @return fills the pools created by init() up to their sizes
+	 */
+	public PoolWarmer getPoolWarmer() {
+		return poolWarmer;
+	}
+
+	/**
+	 * Log the pooled objects that were borrowed and never returned, for
+	 * pools that track leaks.
+	 * 
+	 * @return the number of outstanding objects
+	 */
+	public int reportPoolLeaks() {
+		int leaks = 0;
+		ObjectPool[] pools = { packetPool, rawPicturePool,
+				resampledPicturePool, audioSamplePool };
+		for (ObjectPool pool : pools) {
+			if (pool instanceof MagazineObjectPool)
+				leaks += ((MagazineObjectPool) pool).reportLeaks();
+		}
+		return leaks;
 	}
 
 	public ObjectPool getPacketPool() {
@@ -240,6 +373,60 @@ public class EngineRuntime {
 		this.audioFrameBuffer = audioFrameBuffer;
 	}
 
+	public FrameHistory getFrameHistory() {
+		return frameHistory;
+	}
+
+	public void setFrameHistory(FrameHistory frameHistory) {
+		this.frameHistory = frameHistory;
+	}
+
+	public PacketSpill getPacketSpill() {
+		return packetSpill;
+	}
+
+	public void setPacketSpill(PacketSpill packetSpill) {
+		this.packetSpill = packetSpill;
+	}
+
+	/**
+	 * @return the key frame index of the media, or null if it has none (yet)
+	 */
+	public KeyframeIndex getKeyframeIndex() {
+		return keyframeIndex;
+	}
+
+	public void setKeyframeIndex(KeyframeIndex keyframeIndex) {
+		this.keyframeIndex = keyframeIndex;
+	}
+
+	public DecodedFrameCache getDecodedFrameCache() {
+		return decodedFrameCache;
+	}
+
+	public void setDecodedFrameCache(DecodedFrameCache decodedFrameCache) {
+		this.decodedFrameCache = decodedFrameCache;
+	}
+
+	/**
+	 * @return the timestamp an accurate seek is decoding forward to, or -1
+	 */
+	public long getSeekTarget() {
+		return seekTarget;
+	}
+
+	public void setSeekTarget(long seekTarget) {
+		this.seekTarget = seekTarget;
+	}
+
+	public long getTimestampOffset() {
+		return timestampOffset;
+	}
+
+	public void setTimestampOffset(long timestampOffset) {
+		this.timestampOffset = timestampOffset;
+	}
+
 	public void setPacketDecoderMap(Map<Integer, IStreamCoder> packetDecoderMap) {
 		this.packetDecoderMap = packetDecoderMap;
 	}
@@ -256,6 +443,48 @@ public class EngineRuntime {
 		this.streamToBufferMap = streamToBufferMap;
 	}
 
+	/**
+	 * The reorder window between the video decoder and the video frame buffer,
+	 * or null if reordering is disabled.
+	 */
+	public FrameReorderWindow getFrameReorderWindow() {
+		return frameReorderWindow;
+	}
+
+	public void setFrameReorderWindow(FrameReorderWindow frameReorderWindow) {
+		this.frameReorderWindow = frameReorderWindow;
+	}
+
+	/**
+	 * @return the registry of leases on the media objects in the pipeline
+	 */
+	public MediaLeases getLeases() {
+		return leases;
+	}
+
+	public void setLeases(MediaLeases leases) {
+		this.leases = leases;
+	}
+
+	/**
+	 * @return the account of the native memory held by this engine's media
+	 */
+	public NativeMemory getNativeMemory() {
+		return nativeMemory;
+	}
+
+	public void setNativeMemory(NativeMemory nativeMemory) {
+		this.nativeMemory = nativeMemory;
+	}
+
+	public EngineMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(EngineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	public void setSynchronizer(Synchronizer synchronizer) {
 		this.synchronizer = synchronizer;
 	}
@@ -266,6 +495,7 @@ public class EngineRuntime {
 
 	public void setPaused(boolean paused) {
 		this.paused = paused;
+		stageScheduler.signalAll();
 	}
 
 	public boolean isPaused() {
@@ -280,6 +510,38 @@ public class EngineRuntime {
 		return playSpeed;
 	}
 
+	public StageScheduler getStageScheduler() {
+		return stageScheduler;
+	}
+
+	public StageExecutor getStageExecutor() {
+		return stageExecutor;
+	}
+
+	public void setStageExecutor(StageExecutor stageExecutor) {
+		this.stageExecutor = stageExecutor;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the host the engine was created on, or null for a standalone
+	 *         engine
+	 */
+	public EngineHost getHost() {
+		return host;
+	}
+
+	public void setHost(EngineHost host) {
+		this.host = host;
+	}
+
 	public Engine getEngine() {
 		return engine;
 	}
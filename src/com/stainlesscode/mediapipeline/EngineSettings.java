@@ -0,0 +1,239 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An immutable, validated snapshot of an EngineConfiguration, taken once when
+ * the Engine is created. Every value is parsed to its type up front, so a
+ * typo'd key or a malformed number fails the engine's construction instead of
+ * a stage in the middle of playback. Everything that reads the configuration
+ * at run time goes through the typed getters here instead of parsing strings.
+ * The stages copy what they use per packet into their own fields in init();
+ * those fields are not final, since the factories create stages through
+ * no-argument constructors, but they are only written before the stage starts.
+ * 
+ * Changes made to the EngineConfiguration afterwards are not seen by the
+ * engine; getConfiguration() returns the read-only copy the factories use.
+ * 
+ */
+public class EngineSettings {
+
+	private static enum ValueType {
+		CLASS, INT, LONG, BOOLEAN, STRING
+	}
+
+	private static final Map<String, ValueType> TYPES = new HashMap<String, ValueType>();
+
+	static {
+		type(ValueType.CLASS, EngineConfiguration.DEMUX_KEY,
+				EngineConfiguration.VIDEO_OUTPUT_KEY,
+				EngineConfiguration.SYNCHRONIZER_KEY,
+				EngineConfiguration.AUDIO_OUTPUT_KEY,
+				EngineConfiguration.AUDIO_PACKET_DECODER_KEY,
+				EngineConfiguration.VIDEO_PACKET_DECODER_KEY,
+				EngineConfiguration.MEDIA_BUFFER_KEY,
+				EngineConfiguration.BUFFER_WAIT_STRATEGY_KEY,
+				EngineConfiguration.STAGE_EXECUTOR_KEY,
+				EngineConfiguration.OBJECT_POOL_KEY);
+		type(ValueType.INT, EngineConfiguration.VIDEO_PACKET_BUFFER_SIZE_KEY,
+				EngineConfiguration.AUDIO_PACKET_BUFFER_SIZE_KEY,
+				EngineConfiguration.VIDEO_FRAME_BUFFER_SIZE_KEY,
+				EngineConfiguration.AUDIO_FRAME_BUFFER_SIZE_KEY,
+				EngineConfiguration.FRAME_REORDER_DEPTH_KEY,
+				EngineConfiguration.BATCH_SIZE_KEY,
+				EngineConfiguration.FRAME_HISTORY_SIZE_KEY,
+				EngineConfiguration.HOST_MAX_ENGINES_KEY,
+				EngineConfiguration.PLAYLIST_PREROLL_FRAMES_KEY,
+				EngineConfiguration.VIDEO_DECODER_THREADS_KEY,
+				EngineConfiguration.GOP_DECODER_WORKERS_KEY,
+				EngineConfiguration.GOP_DECODER_QUEUE_SIZE_KEY,
+				EngineConfiguration.DECODED_FRAME_CACHE_SIZE_KEY,
+				EngineConfiguration.POOL_MAGAZINE_SIZE_KEY,
+				EngineConfiguration.POOL_MAX_IDLE_KEY);
+		type(ValueType.LONG, EngineConfiguration.VIDEO_PACKET_BUFFER_BYTES_KEY,
+				EngineConfiguration.AUDIO_PACKET_BUFFER_BYTES_KEY,
+				EngineConfiguration.VIDEO_FRAME_BUFFER_BYTES_KEY,
+				EngineConfiguration.AUDIO_FRAME_BUFFER_BYTES_KEY,
+				EngineConfiguration.VIDEO_PACKET_BUFFER_DURATION_KEY,
+				EngineConfiguration.AUDIO_PACKET_BUFFER_DURATION_KEY,
+				EngineConfiguration.VIDEO_FRAME_BUFFER_DURATION_KEY,
+				EngineConfiguration.AUDIO_FRAME_BUFFER_DURATION_KEY,
+				EngineConfiguration.FRAME_HISTORY_BYTES_KEY,
+				EngineConfiguration.PACKET_SPILL_BYTES_KEY,
+				EngineConfiguration.HOST_MEMORY_BUDGET_KEY,
+				EngineConfiguration.HOST_CPU_BUDGET_KEY,
+				EngineConfiguration.HOST_CLOCK_TICK_KEY,
+				EngineConfiguration.HOST_NATIVE_MEMORY_BUDGET_KEY,
+				EngineConfiguration.PLAYLIST_PREROLL_LEAD_KEY,
+				EngineConfiguration.DECODED_FRAME_CACHE_BYTES_KEY,
+				EngineConfiguration.NATIVE_MEMORY_BUDGET_KEY);
+		type(ValueType.BOOLEAN, EngineConfiguration.CHECK_MEMORY_KEY,
+				EngineConfiguration.CHECK_THREADS_KEY,
+				EngineConfiguration.SHOW_FIRST_FRAME_KEY,
+				EngineConfiguration.AUTO_START_KEY,
+				EngineConfiguration.USE_OBJECT_POOLS,
+				EngineConfiguration.WARM_RESET_KEY,
+				EngineConfiguration.HEADLESS_KEY,
+				EngineConfiguration.KEYFRAME_INDEX_KEY,
+				EngineConfiguration.ACCURATE_SEEK_KEY,
+				EngineConfiguration.POOL_LEAK_TRACKING_KEY,
+				EngineConfiguration.LEASE_TRACKING_KEY);
+		type(ValueType.STRING, EngineConfiguration.PACKET_SPILL_DIRECTORY_KEY,
+				EngineConfiguration.VIDEO_DECODER_THREAD_TYPE_KEY,
+				EngineConfiguration.KEYFRAME_INDEX_DIRECTORY_KEY);
+	}
+
+	private static void type(ValueType type, String... keys) {
+		for (String key : keys)
+			TYPES.put(key, type);
+	}
+
+	/**
+	 * @return true if key is one of the EngineConfiguration keys
+	 */
+	public static boolean isKnownKey(String key) {
+		return TYPES.containsKey(key);
+	}
+
+	private final EngineConfiguration configuration;
+	private final Map<String, Long> numbers = new HashMap<String, Long>();
+	private final Map<String, Boolean> flags = new HashMap<String, Boolean>();
+
+	// read on the hot paths
+	private final boolean useObjectPools;
+	private final int batchSize;
+	private final boolean accurateSeek;
+	private final boolean headless;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the configuration has an unknown key, misses a key, or a
+	 *             value does not parse as its type
+	 */
+	public EngineSettings(EngineConfiguration configuration) {
+		Map<String, String> values = new HashMap<String, String>(
+				configuration.getConfiguration());
+
+		TreeSet<String> unknown = new TreeSet<String>(values.keySet());
+		unknown.removeAll(TYPES.keySet());
+		if (!unknown.isEmpty())
+			throw new IllegalArgumentException(
+					"unknown configuration keys " + unknown);
+
+		for (Map.Entry<String, ValueType> entry : TYPES.entrySet()) {
+			String key = entry.getKey();
+			String value = values.get(key);
+			if (value == null)
+				throw new IllegalArgumentException("no value for " + key);
+			parse(key, value.trim(), entry.getValue());
+		}
+
+		this.configuration = new EngineConfiguration(Collections
+				.unmodifiableMap(values));
+		this.useObjectPools = getBoolean(EngineConfiguration.USE_OBJECT_POOLS);
+		this.batchSize = getInt(EngineConfiguration.BATCH_SIZE_KEY);
+		this.accurateSeek = getBoolean(EngineConfiguration.ACCURATE_SEEK_KEY);
+		this.headless = getBoolean(EngineConfiguration.HEADLESS_KEY);
+
+		if (batchSize < 1)
+			throw new IllegalArgumentException(
+					EngineConfiguration.BATCH_SIZE_KEY + " must be at least 1");
+	}
+
+	private void parse(String key, String value, ValueType type) {
+		try {
+			switch (type) {
+			case INT:
+				numbers.put(key, Long.valueOf(Integer.parseInt(value)));
+				break;
+			case LONG:
+				numbers.put(key, Long.valueOf(value));
+				break;
+			case BOOLEAN:
+				if (!value.equalsIgnoreCase("true")
+						&& !value.equalsIgnoreCase("false"))
+					throw new IllegalArgumentException(key
+							+ " must be true or false, not " + value);
+				flags.put(key, Boolean.valueOf(value));
+				break;
+			case CLASS:
+				if (value.length() == 0)
+					throw new IllegalArgumentException("no class for " + key);
+				break;
+			default:
+				break;
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " must be a "
+					+ type.name().toLowerCase() + ", not " + value);
+		}
+	}
+
+	public int getInt(String key) {
+		return (int) getLong(key);
+	}
+
+	public long getLong(String key) {
+		Long value = numbers.get(key);
+		if (value == null)
+			throw new IllegalArgumentException(key + " is not a number");
+		return value;
+	}
+
+	public boolean getBoolean(String key) {
+		Boolean value = flags.get(key);
+		if (value == null)
+			throw new IllegalArgumentException(key + " is not a boolean");
+		return value;
+	}
+
+	public String getString(String key) {
+		return configuration.getConfiguration().get(key);
+	}
+
+	public boolean isUseObjectPools() {
+		return useObjectPools;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public boolean isAccurateSeek() {
+		return accurateSeek;
+	}
+
+	public boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * @return a read-only EngineConfiguration with the validated values
+	 */
+	public EngineConfiguration getConfiguration() {
+		return configuration;
+	}
+
+}
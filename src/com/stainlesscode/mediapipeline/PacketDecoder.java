@@ -19,12 +19,50 @@
 
 package com.stainlesscode.mediapipeline;
 
+import org.apache.commons.collections.Buffer;
+
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.xuggle.xuggler.IPacket;
 
 public interface PacketDecoder {
 	
 	void init(EngineRuntime engineRuntime);
 
-	void decodePacket(IPacket packet);
+	/**
+	 * Decode a packet. The decoder releases the lease when it is done with
+	 * the packet.
+	 */
+	void decodePacket(MediaLease<IPacket> packet);
+
+	/**
+	 * Drop any partially decoded frame and per-clip state, before packets
+	 * from new media arrive. Called with the decode lock held.
+	 */
+	void reset();
+
+	/**
+	 * Finish the current playlist item before its coder is closed: once the
+	 * packet buffer has run dry, the decoder's own thread flushes the frames
+	 * the coder is still holding back and publishes them. May be called from
+	 * any thread; isDrained() reports when it is done. A reset() cancels it.
+	 */
+	void drain();
+
+	/**
+	 * @return true once everything taken from the current item since the
+	 *         last drain() has been decoded and published
+	 */
+	boolean isDrained();
+
+	/**
+	 * Continue with the next playlist item. The decoder has been drained, so
+	 * nothing from the current item is left in it; the given frames,
+	 * pre-rolled from the next item, are published next, then whatever is
+	 * decoded from now on. Unlike reset() this drops no packet, as any packet
+	 * polled from here on is the next item's. The decoder publishes the
+	 * frames from its own thread and owns them from here on. Called with the
+	 * decode lock held.
+	 */
+	void handOff(Buffer frames);
 	
 }
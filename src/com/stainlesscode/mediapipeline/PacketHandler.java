@@ -20,10 +20,12 @@
 package com.stainlesscode.mediapipeline;
 
 import com.stainlesscode.mediapipeline.demux.DemultiplexerException;
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.xuggle.xuggler.IPacket;
 
 public interface PacketHandler {
 	
-	public void handlePacket(IPacket packet) throws DemultiplexerException;
+	public void handlePacket(MediaLease<IPacket> packet)
+			throws DemultiplexerException;
 
 }
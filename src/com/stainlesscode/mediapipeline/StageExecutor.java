@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline;
+
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+
+/**
+ * Implementations of StageExecutor run the long-lived loops of an engine (the
+ * demultiplexer, decoders and players, the synchronizer clock, the audio line
+ * writer) on whatever threads they see fit. All stages are started through
+ * the executor so they are named and prioritized the same way everywhere.
+ * 
+ */
+public interface StageExecutor {
+
+	public static final int DEMUX_PRIORITY = Thread.NORM_PRIORITY;
+
+	public static final int DECODE_PRIORITY = Thread.NORM_PRIORITY;
+
+	public static final int PLAYBACK_PRIORITY = Thread.NORM_PRIORITY + 1;
+
+	public static final int CLOCK_PRIORITY = Thread.MAX_PRIORITY;
+
+	public static final int HOUSEKEEPING_PRIORITY = Thread.MIN_PRIORITY;
+
+	void init(EngineSettings settings);
+
+	/**
+	 * Start running the stage. The stage keeps its thread until its run()
+	 * returns.
+	 * 
+	 * @param name
+	 *            thread name while the stage runs
+	 * @param priority
+	 *            thread priority while the stage runs, where supported
+	 */
+	StageHandle execute(Runnable stage, String name, int priority);
+
+	/**
+	 * Release the executor's threads once every stage has ended. Stages still
+	 * running are not stopped.
+	 */
+	void shutdown();
+
+}
@@ -53,4 +53,16 @@ public interface Synchronizer {
 	
 	long getStreamTimeZero();
 
+	/**
+	 * Forget the stream time zero, so the next clip loaded into a running
+	 * engine sets its own.
+	 */
+	void reset();
+
+	/**
+	 * Move the stream time zero without moving the clock, when the next item
+	 * of a playlist continues the timeline of the one before it.
+	 */
+	void rebaseStreamTimeZero(long streamTimeZero);
+
 }
@@ -6,6 +6,7 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.stainlesscode.mediapipeline.packetdecoder.FrameReorderWindow;
 import com.xuggle.xuggler.ICodec;
 import com.xuggle.xuggler.IStream;
 import com.xuggle.xuggler.IStreamCoder;
@@ -36,16 +37,25 @@ public class TrackConfiguration {
 	}
 
 	public void init(Engine engine) {
-		EngineRuntime engineRuntime = engine.getEngineRuntime();
+		init(engine, engine.getEngineRuntime(), engine.packetDecoderMap);
+	}
 
+	/**
+	 * Configure the tracks of the container held by the given runtime, which
+	 * need not be the engine's own (the playlist pre-rolls the next item into
+	 * a runtime of its own).
+	 */
+	public void init(Engine engine, EngineRuntime engineRuntime,
+			Map<Integer, IStreamCoder> packetDecoderMap) {
 		if (configurationMap.size() > 0) {
-			configureWithConfigurationMap(engine);
+			configureWithConfigurationMap(engine, engineRuntime,
+					packetDecoderMap);
 		} else { // try to figure out what's what
 			for (int i = 0; i < engineRuntime.getContainer().getNumStreams(); i++) {
 				Integer streamId = new Integer(i);
 				IStream stream = engineRuntime.getContainer().getStream(i);
 				IStreamCoder coder = stream.getStreamCoder();
-				engine.packetDecoderMap.put(streamId, coder);
+				packetDecoderMap.put(streamId, coder);
 
 				if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO) {
 					IVideoResampler resampler = engine.getResampler(coder);
@@ -54,7 +64,11 @@ public class TrackConfiguration {
 					}
 					engineRuntime.getStreamToBufferMap().put(streamId,
 							engineRuntime.getVideoPacketBuffer());
+					configureReorderWindow(engine, engineRuntime, streamId,
+							coder);
 					engineRuntime.setVideoCoder(coder);
+					configureDecoderThreads(engine.getSettings(),
+							coder);
 				} else if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO) {
 					engineRuntime.getStreamToBufferMap().put(streamId,
 							engineRuntime.getAudioPacketBuffer());
@@ -69,8 +83,9 @@ public class TrackConfiguration {
 		}
 	}
 
-	private void configureWithConfigurationMap(Engine engine) {
-		EngineRuntime engineRuntime = engine.getEngineRuntime();
+	private void configureWithConfigurationMap(Engine engine,
+			EngineRuntime engineRuntime,
+			Map<Integer, IStreamCoder> packetDecoderMap) {
 
 		if (!configurationMap.entrySet().contains(Type.VIDEO)) {
 			LogUtil.warn("No video track is configured in the engine");
@@ -85,7 +100,7 @@ public class TrackConfiguration {
 			Integer streamId = new Integer(i);
 			IStream stream = engineRuntime.getContainer().getStream(i);
 			IStreamCoder coder = stream.getStreamCoder();
-			engine.packetDecoderMap.put(streamId, coder);
+			packetDecoderMap.put(streamId, coder);
 
 			if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO
 					&& getTrackType(i) == Type.VIDEO) {
@@ -95,7 +110,9 @@ public class TrackConfiguration {
 				}
 				engineRuntime.getStreamToBufferMap().put(streamId,
 						engineRuntime.getVideoPacketBuffer());
+				configureReorderWindow(engine, engineRuntime, streamId, coder);
 				engineRuntime.setVideoCoder(coder);
+				configureDecoderThreads(engine.getSettings(), coder);
 			} else if (coder.getCodecType() == ICodec.Type.CODEC_TYPE_AUDIO
 					&& (getTrackType(i) == Type.MONO_AUDIO || getTrackType(i) == Type.STEREO_AUDIO)) {
 				engineRuntime.getStreamToBufferMap().put(streamId,
@@ -109,4 +126,67 @@ public class TrackConfiguration {
 			}
 		}
 	}
+
+	/**
+	 * Set the decoder thread count and threading type (slice, frame or
+	 * frame+slice) configured for video on a coder. Must be called before the
+	 * coder is opened. Unset values leave the codec's defaults.
+	 */
+	public static void configureDecoderThreads(EngineSettings settings,
+			IStreamCoder coder) {
+		int threads = settings
+				.getInt(EngineConfiguration.VIDEO_DECODER_THREADS_KEY);
+		String threadType = settings
+				.getString(EngineConfiguration.VIDEO_DECODER_THREAD_TYPE_KEY);
+
+		if (threads > 0 && coder.setProperty("threads", threads) < 0)
+			LogUtil.warn("could not set " + threads + " decoder threads");
+
+		if (threadType != null && threadType.length() > 0
+				&& coder.setProperty("thread_type", threadType) < 0)
+			LogUtil.warn("could not set decoder thread type " + threadType);
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("video decoder threads=" + threads + ", type="
+					+ threadType);
+	}
+
+	/**
+	 * Put a reorder window between the video decoder and the frame buffer.
+	 * The window starts at the decoder's reorder delay (has_b_frames), or at
+	 * the configured frameReorderDepth if the coder does not report one, and
+	 * never grows past frameReorderDepth; a depth of 0 disables reordering.
+	 * Audio frames come out of the decoder in order and are never held back.
+	 */
+	private void configureReorderWindow(Engine engine,
+			EngineRuntime engineRuntime, Integer streamId, IStreamCoder coder) {
+		int maxDepth = engine.getSettings().getInt(
+				EngineConfiguration.FRAME_REORDER_DEPTH_KEY);
+
+		if (maxDepth <= 0) {
+			engineRuntime.setFrameReorderWindow(null);
+			return;
+		}
+
+		int delay = getReorderDelay(coder);
+		int depth = delay < 0 ? maxDepth : Math.min(delay, maxDepth);
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("reorder depth for stream " + streamId + " is "
+					+ depth + " (max " + maxDepth + ")");
+
+		engineRuntime.setFrameReorderWindow(new FrameReorderWindow(
+				"reorder.stream" + streamId, depth, maxDepth, engineRuntime
+						.getMetrics()));
+	}
+
+	/**
+	 * @return the number of frames the decoder holds back to reorder them, or
+	 *         -1 if the coder does not say
+	 */
+	private int getReorderDelay(IStreamCoder coder) {
+		if (coder.getPropertyMetaData("has_b_frames") == null)
+			return -1;
+		return (int) coder.getPropertyAsLong("has_b_frames");
+	}
 }
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.stainlesscode.mediapipeline.AudioOutput;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.stainlesscode.mediapipeline.util.TimeUtil;
 import com.xuggle.xuggler.IAudioSamples;
 
@@ -70,7 +71,7 @@ public class DefaultAudioPlayer extends EngineThread {
 	protected Thread actualWriterThread;
 
 	protected boolean transferReadyFlag = false;
-	protected IAudioSamples lastSamples = null;
+	protected MediaLease<IAudioSamples> lastSamples = null;
 
 	protected boolean seekFlag = false;
 
@@ -209,7 +210,8 @@ public class DefaultAudioPlayer extends EngineThread {
 		return byteCount;
 	}
 
-	private void cache(IAudioSamples samples) {
+	private void cache(MediaLease<IAudioSamples> lease) {
+		IAudioSamples samples = lease.get();
 		// FIXME BufferOverflows can still happen here... need to
 		// do better locking or thread sync
 		try {
@@ -237,18 +239,15 @@ public class DefaultAudioPlayer extends EngineThread {
 					+ samples.getByteBuffer().remaining() + ", lim:"
 					+ smoothingBuffer.limit());
 		} finally {
-			returnBorrowed(samples);
+			returnBorrowed(lease);
 		}
 	}
 
-	protected void returnBorrowed(IAudioSamples samples) {
-		try {
-			engineRuntime.getAudioSamplePool().returnObject(samples);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	protected void returnBorrowed(MediaLease<IAudioSamples> samples) {
+		samples.release();
 	}
 
+	@SuppressWarnings("unchecked")
 	public void run() {
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("DefaultAudioPlayer starting...");
@@ -264,23 +263,25 @@ public class DefaultAudioPlayer extends EngineThread {
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug("isOKToCache()");
 
-				IAudioSamples samples = lastSamples;
+				MediaLease<IAudioSamples> lease = lastSamples;
 
-				if (samples == null) {
+				if (lease == null) {
 					// if (audioFrameBuffer.isEmpty()) {
 					// if (LogUtil.isDebugEnabled())
 					// LogUtil
 					// .debug("audio frame buffer seems to be empty");
 					// Thread.yield();
 					// }
-					samples = (IAudioSamples) audioFrameBuffer.remove();
+					lease = (MediaLease<IAudioSamples>) audioFrameBuffer
+							.remove();
 				}
 
-				if (samples == null) {
+				if (lease == null) {
 					if (LogUtil.isDebugEnabled())
 						LogUtil.debug("no audio samples!");
 					continue;
 				}
+				IAudioSamples samples = lease.get();
 
 				if (playBuffer == null) {
 					this.bufferSizeInFrames = TimeUtil.millisToAudioFrames(
@@ -307,12 +308,14 @@ public class DefaultAudioPlayer extends EngineThread {
 				if (samplesAreStale(samples)) {
 					if (LogUtil.isDebugEnabled())
 						LogUtil.debug("discarding a stale sample");
+					returnBorrowed(lease);
 					lastSamples = null;
 					continue;
 				}
 
 				if (smoothingBuffer.remaining() >= samples.getSize()) {
-					cache(samples.copyReference());
+					// cache() releases the samples
+					cache(lease);
 					lastSamples = null;
 				} else {
 					if (LogUtil.isDebugEnabled()) {
@@ -329,12 +332,14 @@ public class DefaultAudioPlayer extends EngineThread {
 					// seekFlag = false;
 					// }
 
-					lastSamples = samples;
+					lastSamples = lease;
 					transferReadyFlag = true;
 				}
 			}
 		}
 
+		if (lastSamples != null)
+			returnBorrowed(lastSamples);
 		lastSamples = null;
 		audioFrameBuffer = null;
 		LogUtil.info("DefaultAudioPlayThread shutting down gracefully");
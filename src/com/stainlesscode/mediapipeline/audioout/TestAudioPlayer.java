@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.stainlesscode.mediapipeline.AudioOutput;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.stainlesscode.mediapipeline.util.TimeUtil;
 import com.xuggle.xuggler.IAudioSamples;
 
@@ -292,7 +293,8 @@ public class TestAudioPlayer extends EngineThread {
 					// .debug("audio frame buffer seems to be empty");
 					// Thread.yield();
 					// }
-					samples = (IAudioSamples) audioFrameBuffer.remove();
+					samples = (IAudioSamples) MediaLease.mediaOf(audioFrameBuffer
+							.remove());
 				}
 
 				if (samples == null) {
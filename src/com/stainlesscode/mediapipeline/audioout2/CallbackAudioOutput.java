@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.audioout2;
+
+import com.xuggle.xuggler.IAudioSamples;
+
+/**
+ * A headless AudioOutput2 that hands every set of samples to a callback, on
+ * the audio player's thread, as fast as the pipeline produces them. Call
+ * copyReference() on the samples to keep them past the callback.
+ * 
+ * Set it on the engine with Engine.setAudioOutput() before loading media.
+ */
+public class CallbackAudioOutput extends NullAudioOutput {
+
+	public interface Callback {
+		void samplesDelivered(IAudioSamples samples);
+	}
+
+	private volatile Callback callback;
+
+	public CallbackAudioOutput() {
+	}
+
+	public CallbackAudioOutput(Callback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	protected void deliver(IAudioSamples samples) {
+		Callback callback = this.callback;
+		if (callback != null)
+			callback.samplesDelivered(samples);
+	}
+
+	public Callback getCallback() {
+		return callback;
+	}
+
+	public void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+}
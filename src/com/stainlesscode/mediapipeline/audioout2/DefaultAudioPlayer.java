@@ -19,14 +19,18 @@
 
 package com.stainlesscode.mediapipeline.audioout2;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.collections.Buffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.AudioOutput2;
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.xuggle.xuggler.IAudioSamples;
 
 public class DefaultAudioPlayer extends EngineThread {
@@ -37,6 +41,13 @@ public class DefaultAudioPlayer extends EngineThread {
 	protected EngineRuntime engineRuntime;
 	protected Buffer audioFrameBuffer;
 	protected AudioOutput2 audioOutput;
+	protected boolean doSync = true;
+
+	private final StageScheduler.Condition streamTimeStarted = new StageScheduler.Condition() {
+		public boolean isSatisfied() {
+			return syncReady();
+		}
+	};
 
 	public DefaultAudioPlayer(AudioOutput2 output, EngineRuntime runtime) {
 		this.engineRuntime = runtime;
@@ -44,27 +55,41 @@ public class DefaultAudioPlayer extends EngineThread {
 		this.audioOutput = output;
 	}
 
+	@SuppressWarnings("unchecked")
 	public void run() {
+		StageScheduler scheduler = engineRuntime.getStageScheduler();
+
 		while (!isMarkedForDeath()) {
-			if (engineRuntime.isPaused()) {
-				if (LogUtil.isTraceEnabled())
-					LogUtil.trace("waiting while paused");
+			try {
+				if (engineRuntime.isPaused()) {
+					if (LogUtil.isTraceEnabled())
+						LogUtil.trace("waiting while paused");
+					scheduler.awaitUnpaused(this);
+					continue;
+				}
+
+				if (!syncReady()) {
+					scheduler.await(streamTimeStarted, this);
+					continue;
+				}
+			} catch (InterruptedException e) {
+				// seeking and stopping interrupt the player
 				continue;
 			}
 
-			IAudioSamples samples = null;
+			MediaLease<IAudioSamples> lease = null;
 
 			if (this.clipEnded && audioFrameBuffer.isEmpty()) {
 				setMarkedForDeath(true);
 				continue;
 			}
-			
-			if (audioFrameBuffer.isEmpty() || !syncReady())
-				continue;
 
-			samples = (IAudioSamples) audioFrameBuffer.remove();
+			// blocks until the decoder publishes samples
+			lease = (MediaLease<IAudioSamples>) ((MediaBuffer) audioFrameBuffer)
+					.poll(StageScheduler.IDLE_MILLIS, TimeUnit.MILLISECONDS);
 
-			if (samples != null) {
+			if (lease != null) {
+				IAudioSamples samples = lease.get();
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug("$$AUDIO REMOVE " + samples.getTimeStamp());
 
@@ -74,8 +99,7 @@ public class DefaultAudioPlayer extends EngineThread {
 								+ samples.getTimeStamp());
 						LogUtil.debug("discarding a stale frame");
 					}
-					returnBorrowed(samples);
-					samples = null;
+					returnBorrowed(lease);
 					continue;
 				}
 
@@ -88,9 +112,7 @@ public class DefaultAudioPlayer extends EngineThread {
 
 					// doSync(true);
 				}
-			} else {
-				if (LogUtil.isDebugEnabled())
-					LogUtil.debug("$$AUDIO REMOVE NULL");
+				returnBorrowed(lease);
 			}
 		}
 
@@ -98,17 +120,8 @@ public class DefaultAudioPlayer extends EngineThread {
 		LogUtil.info("DefaultVideoPlayThread shutting down gracefully");
 	}
 
-	protected void returnBorrowed(IAudioSamples picture) {
-		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getAudioSamplePool().returnObject(picture);
-			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	protected void returnBorrowed(MediaLease<IAudioSamples> samples) {
+		samples.release();
 	}
 
 	protected boolean framesAreStale(IAudioSamples samples) {
@@ -121,9 +134,21 @@ public class DefaultAudioPlayer extends EngineThread {
 
 	// TODO refactor to AbstractSynchronizedPlayer
 	private boolean syncReady() {
+		// unsynchronized (headless) players start with the clock, which the
+		// output itself moves
+		if (!doSync)
+			return engineRuntime.getSynchronizer().syncReady();
 		return engineRuntime.getSynchronizer().getStreamTime() > 0;
 	}
 
+	public boolean isDoSync() {
+		return doSync;
+	}
+
+	public void setDoSync(boolean doSync) {
+		this.doSync = doSync;
+	}
+
 	/**
 	 * @deprecated this is the video sync algorithm
 	 * @param sleep
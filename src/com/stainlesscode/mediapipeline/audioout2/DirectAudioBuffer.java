@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.audioout2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.util.TimeUtil;
+import com.xuggle.xuggler.IAudioSamples;
+
+/**
+ * An AudioBuffer variant backed by a preallocated direct ByteBuffer used as a
+ * single-producer/single-consumer ring. The audio player thread writes decoded
+ * samples straight from IAudioSamples.getByteBuffer() and the driver's line
+ * writer reads into an array it owns, so steady-state playback allocates
+ * nothing per chunk.
+ *
+ * Each side works on its own duplicate of the ring so neither touches the
+ * other's position and limit. clear() and skipMillis() may be called from any
+ * thread; they move the read position with a CAS, as does the reader.
+ *
+ * ALL TIMESTAMPS IN MICROSECONDS
+ *
+ */
+public class DirectAudioBuffer {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(DirectAudioBuffer.class);
+
+	private static final long WRITE_BACKSTOP_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	private final ByteBuffer writeView;
+	private final ByteBuffer readView;
+	private final int capacity;
+	private final AudioFormat format;
+	private final int frameSize;
+	private final long bytesPerSecond;
+	private final boolean blockingWrite;
+
+	// total bytes ever written (producer) and consumed (reader, clear())
+	private volatile long writePosition;
+	private final AtomicLong readPosition = new AtomicLong();
+
+	private volatile Thread waitingWriter;
+
+	private volatile long startTimestamp = -1;
+	private volatile long endTimestamp = -1;
+
+	public DirectAudioBuffer(AudioFormat format, int size, boolean blockingWrite) {
+		this.format = format;
+		this.frameSize = format.getFrameSize();
+		// keep whole frames in the ring so a read never splits one
+		this.capacity = size - (size % frameSize);
+		this.bytesPerSecond = (long) (format.getSampleRate() * frameSize);
+		this.blockingWrite = blockingWrite;
+
+		ByteBuffer ring = ByteBuffer.allocateDirect(capacity);
+		this.writeView = ring.duplicate();
+		this.readView = ring.duplicate();
+	}
+
+	/**
+	 * Copy the samples into the ring. A blocking buffer waits for the reader to
+	 * make room; otherwise whatever doesn't fit is dropped. An interrupt also
+	 * ends the write early.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int write(IAudioSamples samples) {
+		ByteBuffer src = samples.getByteBuffer();
+		if (src == null)
+			return 0;
+
+		int length = samples.getSize();
+		src.clear();
+		src.limit(Math.min(length, src.capacity()));
+
+		int written = 0;
+		while (src.hasRemaining()) {
+			long w = writePosition;
+			int free = (int) (capacity - (w - readPosition.get()));
+
+			if (free < frameSize) {
+				if (!blockingWrite || !awaitSpace())
+					break;
+				continue;
+			}
+
+			int offset = (int) (w % capacity);
+			int chunk = Math.min(src.remaining(), Math.min(free, capacity
+					- offset));
+
+			int limit = src.limit();
+			src.limit(src.position() + chunk);
+			writeView.clear();
+			writeView.position(offset);
+			writeView.put(src);
+			src.limit(limit);
+
+			// publishes the bytes to the reader
+			writePosition = w + chunk;
+			written += chunk;
+		}
+
+		endTimestamp += bytesToMicros(written);
+
+		if (LogUtil.isDebugEnabled() && written < length)
+			LogUtil.debug("dropped " + (length - written) + " bytes");
+
+		return written;
+	}
+
+	private boolean awaitSpace() {
+		waitingWriter = Thread.currentThread();
+		try {
+			// re-checked by the caller; the reader unparks us after a read
+			LockSupport.parkNanos(this, WRITE_BACKSTOP_NANOS);
+			return !Thread.interrupted();
+		} finally {
+			waitingWriter = null;
+		}
+	}
+
+	/**
+	 * Copies the next available audio data, up to the specified length and the
+	 * length of dst, into dst. Always copies an integral number of frames.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int readInto(byte[] dst, long millis) {
+		int len = TimeUtil.millisToAudioFrames(format, millis) * frameSize;
+		len = Math.min(len, dst.length - (dst.length % frameSize));
+
+		long r = readPosition.get();
+		int available = (int) (writePosition - r);
+		if (len > available)
+			len = available - (available % frameSize);
+
+		if (len <= 0)
+			return 0;
+
+		int offset = (int) (r % capacity);
+		int first = Math.min(len, capacity - offset);
+		readView.clear();
+		readView.position(offset);
+		readView.get(dst, 0, first);
+		if (first < len) {
+			readView.clear();
+			readView.get(dst, first, len - first);
+		}
+
+		// a failed CAS means the data was cleared or skipped meanwhile
+		if (!readPosition.compareAndSet(r, r + len))
+			return 0;
+
+		startTimestamp += bytesToMicros(len);
+		signalWriter();
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("read " + len + " bytes");
+
+		return len;
+	}
+
+	/**
+	 * Discard a segment from the audio buffer of the specified time duration in
+	 * milliseconds. If the time duration is greater than the amount buffered
+	 * this method effectively functions identically to the clear() method.
+	 *
+	 * @return the number of bytes skipped
+	 */
+	public int skipMillis(long millis) {
+		long bytes = TimeUtil.millisToAudioFrames(format, millis) * frameSize;
+		long r, skip;
+		do {
+			r = readPosition.get();
+			long available = writePosition - r;
+			skip = Math.min(bytes, available - (available % frameSize));
+			if (skip <= 0)
+				return 0;
+		} while (!readPosition.compareAndSet(r, r + skip));
+
+		startTimestamp += bytesToMicros(skip);
+		signalWriter();
+		return (int) skip;
+	}
+
+	public void clear() {
+		long r;
+		do {
+			r = readPosition.get();
+		} while (!readPosition.compareAndSet(r, Math.max(r, writePosition)));
+
+		startTimestamp = -1;
+		endTimestamp = -1;
+		signalWriter();
+	}
+
+	private void signalWriter() {
+		Thread waiter = waitingWriter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	private long bytesToMicros(long bytes) {
+		return bytesPerSecond == 0 ? 0 : bytes * 1000000L / bytesPerSecond;
+	}
+
+	public int getAvailable() {
+		long available = writePosition - readPosition.get();
+		return available < 0 ? 0 : (int) available;
+	}
+
+	public int getSize() {
+		return capacity;
+	}
+
+	public int getSpaceLeft() {
+		return capacity - getAvailable();
+	}
+
+	public long getBufferTime() {
+		return TimeUtil.audioBytesToMillis(format, capacity);
+	}
+
+	public long getCachedAudioTime() {
+		return TimeUtil.audioBytesToMillis(format, getAvailable());
+	}
+
+	public long getStartTimestamp() {
+		return startTimestamp;
+	}
+
+	public void setStartTimestamp(long startTimestamp) {
+		this.startTimestamp = startTimestamp;
+	}
+
+	public long getEndTimestamp() {
+		return endTimestamp;
+	}
+
+	public void setEndTimestamp(long endTimestamp) {
+		this.endTimestamp = endTimestamp;
+	}
+}
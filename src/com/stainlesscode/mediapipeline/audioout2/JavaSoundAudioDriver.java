@@ -19,8 +19,9 @@
 
 package com.stainlesscode.mediapipeline.audioout2;
 
-import java.io.IOException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -33,8 +34,11 @@ import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.AudioOutput2;
 import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.StageExecutor;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.stainlesscode.mediapipeline.util.TimeUtil;
 import com.xuggle.xuggler.IAudioSamples;
 
@@ -48,12 +52,16 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 	private SourceDataLine line = null;
 	private AudioFormat format;
 	private EngineRuntime engineRuntime;
-	private AudioBuffer buf;
+	private DirectAudioBuffer buf;
 	private int bufferSizeInFrames = 48000;
 	// private long firstTimestampInStream = -1;
 	private long chunkTime = 60;
 	private byte[] bbuf = null;
 	private long threshold = 60000;
+	private StageHandle writerThread;
+	// each writer has its own, so a writer stopped by close() stays stopped
+	// when init() starts the next one
+	private AtomicBoolean writerRunning;
 
 	private static Logger LogUtil = LoggerFactory
 			.getLogger(JavaSoundAudioDriver.class);
@@ -61,6 +69,18 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 	@Override
 	public void close() {
 		// firstTimestampInStream = -1;
+		if (writerThread != null) {
+			writerRunning.set(false);
+			writerThread.interrupt();
+			// a write blocked on the line returns once the line is closed
+			line.close();
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writerThread = null;
+		}
 		buf.clear();
 		line.close();
 	}
@@ -80,8 +100,11 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 		this.engineRuntime = engineRuntime;
 		this.format = format;
 		DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-		buf = new AudioBuffer(format, bufferSizeInFrames
+		buf = new DirectAudioBuffer(format, bufferSizeInFrames
 				* format.getFrameSize(), true);
+		// re-used for every chunk written to the line
+		bbuf = new byte[TimeUtil.millisToAudioFrames(format, chunkTime)
+				* format.getFrameSize()];
 
 		if (LogUtil.isDebugEnabled()) {
 			LogUtil.debug("frameSize=" + format.getFrameSize());
@@ -99,12 +122,37 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 			throw new RuntimeException(e);
 		}
 
-		Thread thread = new Thread(new Runnable() {
+		// the writer keeps to the line and buffer it was started with
+		final SourceDataLine line = this.line;
+		final DirectAudioBuffer buf = this.buf;
+		final byte[] bbuf = this.bbuf;
+		final AtomicBoolean running = new AtomicBoolean(true);
+		writerRunning = running;
+		writerThread = engineRuntime.getStageExecutor().execute(new Runnable() {
 			@Override
 			public void run() {
-				while (true) {
-					if (JavaSoundAudioDriver.this.engineRuntime.isPaused())
+				StageScheduler scheduler = JavaSoundAudioDriver.this.engineRuntime
+						.getStageScheduler();
+
+				while (running.get()) {
+					try {
+						if (JavaSoundAudioDriver.this.engineRuntime.isPaused()) {
+							scheduler.awaitUnpaused(null);
+							continue;
+						}
+
+						if (JavaSoundAudioDriver.this.engineRuntime
+								.getSynchronizer() == null
+								|| buf.getAvailable() == 0) {
+							// woken by setCurrentSamples()
+							LockSupport.parkNanos(TimeUnit.MILLISECONDS
+									.toNanos(StageScheduler.IDLE_MILLIS));
+							continue;
+						}
+					} catch (InterruptedException e) {
+						// close() interrupts the writer
 						continue;
+					}
 
 					if (JavaSoundAudioDriver.this.engineRuntime
 							.getSynchronizer() != null) {
@@ -112,6 +160,7 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 						long vpts = JavaSoundAudioDriver.this.engineRuntime
 								.getSynchronizer().getStreamTime();
 						long epts = buf.getStartTimestamp();
+						int length = 0;
 
 						if (LogUtil.isDebugEnabled()) {
 							// LogUtil.debug("vpts=" + vpts);
@@ -155,15 +204,14 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 								continue;
 							}
 
-							bbuf = buf.readMillis(chunkTime);
+							length = buf.readInto(bbuf, chunkTime);
 
-						} catch (IOException e) {
-							e.printStackTrace();
 						} catch (InterruptedException e) {
-							e.printStackTrace();
+							// close() interrupts the writer
+							continue;
 						}
 
-						while (!line.isOpen()) {
+						while (running.get() && !line.isOpen()) {
 							Thread.yield();
 						}
 
@@ -179,7 +227,7 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 						// .getSynchronizer()).setStreamTimeZero(epts
 						// - chunkTime, true);
 
-						if (bbuf.length > 0) {
+						if (length > 0) {
 							// if (LogUtil.isDebugEnabled()) {
 							// if (LogUtil.isDebugEnabled()) {
 							// vpts = JavaSoundAudioDriver.this.engineRuntime
@@ -192,7 +240,7 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 							engineRuntime.getSynchronizer().setAudioClock(epts);
 
 							// long start = System.currentTimeMillis();
-							line.write(bbuf, 0, bbuf.length);
+							line.write(bbuf, 0, length);
 							// long end = System.currentTimeMillis();
 
 							// audioWriteLatency = (end - start);
@@ -205,17 +253,12 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 					}
 				}
 			}
-		});
-
-		thread.start();
+		}, "Audio Line Writer Thread", StageExecutor.PLAYBACK_PRIORITY);
 	}
 
 	@Override
 	public void setCurrentSamples(IAudioSamples samples) {
-		byte[] arr = new byte[samples.getSize()];
-		samples.get(0, arr, 0, arr.length);
-
-		// the AudioBuffer uses RELATIVE time when reading/writing buffers
+		// the DirectAudioBuffer uses RELATIVE time when reading/writing buffers
 		if (buf.getStartTimestamp() < 0) {
 			buf.setStartTimestamp(samples.getTimeStamp());
 			buf.setEndTimestamp(samples.getTimeStamp());
@@ -238,27 +281,24 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 
 		// this.lastPts = samples.getTimeStamp();
 
-		try {
-			// LogUtil.debug("++++++++++ CACHE FROM STREAM +++++++++++");
-			// LogUtil.debug(timeAlreadyCached +
-			// "ms waiting to be played");
-			// LogUtil.debug("caching " + samples.getSize() + " bytes");
-			// LogUtil.debug("caching " + samples.getTimeStamp() +
-			// " (pts)");
-			// LogUtil.debug("caching "
-			// + TimeUtil.audioBytesToMillis(this.format, arr.length)
-			// + "ms");
-			// LogUtil.debug("cache space left=" + buf.getSpaceLeft());
-			// LogUtil.debug("+++++++++++++++++++++++++++++++++++++++");
-
-			// long start = System.currentTimeMillis();
-			buf.write(arr);
-			// long end = System.currentTimeMillis();
-			// LogUtil.debug("cache took " + (end - start) + " ms");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		// LogUtil.debug("++++++++++ CACHE FROM STREAM +++++++++++");
+		// LogUtil.debug(timeAlreadyCached +
+		// "ms waiting to be played");
+		// LogUtil.debug("caching " + samples.getSize() + " bytes");
+		// LogUtil.debug("caching " + samples.getTimeStamp() +
+		// " (pts)");
+		// LogUtil.debug("caching "
+		// + TimeUtil.audioBytesToMillis(this.format, arr.length)
+		// + "ms");
+		// LogUtil.debug("cache space left=" + buf.getSpaceLeft());
+		// LogUtil.debug("+++++++++++++++++++++++++++++++++++++++");
+
+		// long start = System.currentTimeMillis();
+		buf.write(samples);
+		if (writerThread != null)
+			writerThread.unpark();
+		// long end = System.currentTimeMillis();
+		// LogUtil.debug("cache took " + (end - start) + " ms");
 	}
 
 	@Override
@@ -267,7 +307,8 @@ public class JavaSoundAudioDriver implements AudioOutput2,
 			LogUtil.debug("got event " + evt);
 		}
 
-		if (evt.getType() == MediaPlayerEvent.Type.SEEK) {
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK
+				|| evt.getType() == MediaPlayerEvent.Type.BUFFERED_SEEK) {
 			buf.clear();
 		}
 	}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.audioout2;
+
+import javax.sound.sampled.AudioFormat;
+
+import com.stainlesscode.mediapipeline.AudioOutput2;
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.Synchronizer;
+import com.stainlesscode.mediapipeline.util.ThroughputMeter;
+import com.xuggle.xuggler.IAudioSamples;
+
+/**
+ * An AudioOutput2 that plays nothing, for headless processing and machines
+ * with no sound card. Each set of samples is counted (metrics
+ * output.audio.frames and output.audio.fps) and reported to the synchronizer
+ * as delivered, which is what drives a FreeRunningSynchronizer. Subclasses do
+ * something with the samples in deliver().
+ * 
+ * @see CallbackAudioOutput
+ */
+public class NullAudioOutput implements AudioOutput2 {
+
+	protected EngineRuntime engineRuntime;
+	protected AudioFormat format;
+	protected ThroughputMeter meter;
+	protected long lastPts = -1;
+
+	public void init(EngineRuntime engineRuntime, AudioFormat format) {
+		this.engineRuntime = engineRuntime;
+		this.format = format;
+		// a warm reset re-initializes the output; keep counting
+		if (meter == null)
+			meter = new ThroughputMeter(engineRuntime.getMetrics(),
+					"output.audio");
+	}
+
+	public void setCurrentSamples(IAudioSamples samples) {
+		this.lastPts = samples.getTimeStamp();
+		meter.frame();
+
+		deliver(samples);
+
+		Synchronizer synchronizer = engineRuntime.getSynchronizer();
+		if (synchronizer != null)
+			synchronizer.setAudioClock(samples.getTimeStamp());
+	}
+
+	/**
+	 * Called for every set of samples played. Does nothing here.
+	 */
+	protected void deliver(IAudioSamples samples) {
+	}
+
+	public void close() {
+	}
+
+	public long getLastPts() {
+		return lastPts;
+	}
+
+	public AudioFormat getAudioFormat() {
+		return format;
+	}
+
+	/**
+	 * @return sets of samples played per second since the first one
+	 */
+	public long getFramesPerSecond() {
+		return meter == null ? 0 : meter.getFramesPerSecond();
+	}
+
+}
@@ -26,20 +26,19 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.collections.Buffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent.Type;
+import com.stainlesscode.mediapipeline.util.MediaLease;
 import com.stainlesscode.mediapipeline.util.TimeUtil;
 import com.xuggle.xuggler.IMediaData;
 
 /**
- * Buffer of IMediaData objects.
- * 
- * TODO remove casts since changing the underlying array type
+ * Buffer of IMediaData objects, or of the MediaLeases on them. clear() and
+ * advanceTo() release the leases of the elements they drop.
  * 
  * ALL TIMESTAMPS IN MICROSECONDS
  * 
@@ -47,12 +46,12 @@ import com.xuggle.xuggler.IMediaData;
  * 
  */
 public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
-		Buffer {
+		MediaBuffer {
 
 	private Logger LogUtil = LoggerFactory
 			.getLogger(CircularFifoMediaBuffer.class);
 
-	protected IMediaData data[];
+	protected Object data[];
 	protected int head;
 	protected int tail;
 	protected int fillCount;
@@ -62,9 +61,14 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 	protected Condition bufferEmpty = lock.newCondition();
 	protected long startTimestamp = -1;
 	protected long endTimestamp = -1;
+	protected long bufferedBytes;
+	protected long byteBudget;
+	protected long durationBudget;
+	// true while a snapshot may still be reading data[]
+	protected boolean shared;
 
 	public CircularFifoMediaBuffer(Integer number) {
-		data = new IMediaData[number];
+		data = new Object[number];
 		head = 0;
 		tail = 0;
 		fillCount = 0;
@@ -72,51 +76,77 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 
 	public CircularFifoMediaBuffer(String name, Integer number) {
 		this.name = name;
-		data = new IMediaData[number];
+		data = new Object[number];
 		head = 0;
 		tail = 0;
 		fillCount = 0;
 	}
 
 	/**
-	 * Create a copy of the source object (effectively a shallow clone)
-	 * 
-	 * @param source
+	 * The view shares the array, which this buffer copies before it next
+	 * overwrites a slot, and retains the leases it covers. Removing elements
+	 * doesn't write to the array, so a snapshot taken while the producer is
+	 * blocked on a full buffer costs the producer one array copy and nothing
+	 * else.
 	 */
-	public CircularFifoMediaBuffer(CircularFifoMediaBuffer source) {
-		this.data = new IMediaData[source.getCapacity()];
-		this.head = source.head;
-		this.tail = source.tail;
-		this.fillCount = source.fillCount;
-		this.name = source.name;
-		for (int i = 0; i < source.data.length; i++) {
-			this.data[i] = source.data[i];
+	public MediaBufferSnapshot snapshot() {
+		lock.lock();
+		try {
+			for (int i = 0; i < fillCount; i++) {
+				Object element = data[(head + i) % data.length];
+				if (element instanceof MediaLease)
+					((MediaLease<?>) element).retain();
+			}
+			if (fillCount == 0)
+				return new MediaBufferSnapshot(new Object[0], 0, 0, -1, -1);
+			return new MediaBufferSnapshot(share(), head, fillCount,
+					media(data[head]).getTimeStamp(), media(
+							data[(head + fillCount - 1) % data.length])
+							.getTimeStamp());
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	public void cloneInto(CircularFifoMediaBuffer existingBuffer) {
-		if (existingBuffer.getCapacity() != this.getCapacity())
-			throw new RuntimeException(
-					"Can't clone into a buffer with different capacity "
-							+ existingBuffer.getCapacity());
-		existingBuffer.head = this.head;
-		existingBuffer.tail = this.tail;
-		existingBuffer.fillCount = this.fillCount;
-		for (int i = 0; i < data.length; i++) {
-			if (this.data[i] != null) {
-				existingBuffer.data[i] = this.data[i].copyReference();
-			}
-			// existingBuffer.data[i] = this.data[i];
+	/**
+	 * Must be called with the lock held.
+	 */
+	private Object[] share() {
+		shared = true;
+		return data;
+	}
+
+	/**
+	 * Copy the array if a snapshot still shares it. Must be called
+	 * with the lock held, before any write to data[].
+	 */
+	private void ensureWritable() {
+		if (shared) {
+			data = data.clone();
+			shared = false;
 		}
 	}
 
 	public void clear() {
-		for (int i = 0; i < data.length; i++) {
-			data[i] = null;
+		lock.lock();
+		try {
+			for (int i = 0; i < fillCount; i++)
+				MediaLease.releaseElement(data[(head + i) % data.length]);
+			if (shared) {
+				data = new Object[data.length];
+				shared = false;
+			} else {
+				for (int i = 0; i < data.length; i++) {
+					data[i] = null;
+				}
+			}
+			head = 0;
+			tail = 0;
+			fillCount = 0;
+			bufferedBytes = 0;
+		} finally {
+			lock.unlock();
 		}
-		head = 0;
-		tail = 0;
-		fillCount = 0;
 	}
 
 	private int checkBounds(int index) {
@@ -133,14 +163,15 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		LogUtil.debug("msg is " + msg);
 		for (int i = 0; i < data.length; i++) {
 			String ts = "null";
-			IMediaData value1 = (IMediaData) data[i];
+			IMediaData value1 = media(data[i]);
 			if (value1 != null)
 				ts = "" + TimeUtil.getTimecode(29.97f, value1.getTimeStamp());
 			LogUtil.debug("(" + i + ") " + ts);
 		}
 	}
 
-	public void placeInOrder(IMediaData value) {
+	public void placeInOrder(Object element) {
+		IMediaData value = media(element);
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("[" + head + "," + tail + "] " + value.getTimeStamp()
 					+ " is out of order");
@@ -153,14 +184,14 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		while (outOfOrder && !duplicate) {
 			curtail = checkBounds(curtail);
 
-			duplicate = ((data[curtail] != null) && (((IMediaData) data[curtail])
+			duplicate = ((data[curtail] != null) && (media(data[curtail])
 					.getTimeStamp() == value.getTimeStamp()));
 
-			data[curtail] = (IMediaData) get();
+			data[curtail] = get();
 			curtail = checkBounds(curtail - 1);
-			data[curtail] = value;
+			data[curtail] = element;
 
-			outOfOrder = ((data[curtail] != null) && (((IMediaData) data[curtail])
+			outOfOrder = ((data[curtail] != null) && (media(data[curtail])
 					.getTimeStamp() > value.getTimeStamp()));
 		}
 	}
@@ -173,7 +204,9 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		try {
 			lock.lockInterruptibly();
 
-			while (bufferFull()) {
+			IMediaData mediaData = media(value);
+
+			while (bufferFull() || overBudget(mediaData)) {
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug(name + " waiting while full");
 				fireMediaPlayerEvent(new MediaPlayerEvent(this,
@@ -181,28 +214,7 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 				bufferFull.await(10, TimeUnit.MILLISECONDS);
 			}
 
-			// make sure the order of the packets is preserved
-			if (LogUtil.isDebugEnabled()) {
-				LogUtil.debug("get()=" + get());
-				LogUtil.debug("value=" + value);
-			}
-
-			IMediaData mediaData = (IMediaData) value;
-			IMediaData tailValue = (IMediaData) get();
-
-			if (tailValue != null
-					&& tailValue.getTimeStamp() > mediaData.getTimeStamp()) {
-				placeInOrder(mediaData);
-			} else {
-				data[tail++] = mediaData;
-				this.endTimestamp = mediaData.getTimeStamp();
-			}
-
-			if (tail == data.length) {
-				tail = 0;
-			}
-
-			fillCount++;
+			insert(value);
 			bufferEmpty.signal();
 		} catch (InterruptedException e1) {
 			if (((ReentrantLock) lock).isHeldByCurrentThread()) {
@@ -227,14 +239,128 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		return true;
 	}
 
+	public int addAll(Object[] src, int n) {
+		int added = 0;
+
+		try {
+			lock.lockInterruptibly();
+
+			for (int i = 0; i < n; i++) {
+				if (src[i] == null)
+					continue;
+				IMediaData mediaData = media(src[i]);
+
+				while (bufferFull() || overBudget(mediaData)) {
+					if (LogUtil.isDebugEnabled())
+						LogUtil.debug(name + " waiting while full");
+					fireMediaPlayerEvent(new MediaPlayerEvent(this,
+							Type.BUFFER_FULL, null));
+					// let the consumer drain what this batch has added
+					bufferEmpty.signal();
+					bufferFull.await(10, TimeUnit.MILLISECONDS);
+				}
+
+				insert(src[i]);
+				added++;
+			}
+
+			bufferEmpty.signal();
+		} catch (InterruptedException e1) {
+			if (((ReentrantLock) lock).isHeldByCurrentThread()) {
+				bufferFull.signalAll();
+				bufferEmpty.signalAll();
+			}
+			clear();
+		} finally {
+			if (((ReentrantLock) lock).isLocked()
+					&& ((ReentrantLock) lock).isHeldByCurrentThread())
+				lock.unlock();
+		}
+
+		return added;
+	}
+
+	/**
+	 * Must be called with the lock held and space available.
+	 */
+	private void insert(Object element) {
+		IMediaData mediaData = media(element);
+		ensureWritable();
+
+		// make sure the order of the packets is preserved
+		if (LogUtil.isDebugEnabled()) {
+			LogUtil.debug("get()=" + get());
+			LogUtil.debug("value=" + mediaData);
+		}
+
+		IMediaData tailValue = media(get());
+
+		if (tailValue != null
+				&& tailValue.getTimeStamp() > mediaData.getTimeStamp()) {
+			placeInOrder(element);
+		} else {
+			data[tail++] = element;
+			this.endTimestamp = mediaData.getTimeStamp();
+		}
+
+		if (tail == data.length) {
+			tail = 0;
+		}
+
+		fillCount++;
+		bufferedBytes += mediaData.getSize();
+	}
+
 	@Override
 	public Object remove() {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	public int drainTo(Object[] dst, int max) {
+		int n = 0;
+
+		lock.lock();
+		try {
+			while (n < max && fillCount > 0) {
+				Object result = data[head++];
+
+				if (head == data.length) {
+					head = 0;
+				}
+
+				fillCount--;
+
+				if (result != null)
+					bufferedBytes -= media(result).getSize();
+
+				dst[n++] = result;
+			}
+
+			if (n > 0) {
+				if (fillCount > 0)
+					this.startTimestamp = media(peekAt(head)).getTimeStamp();
+				bufferFull.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return n;
+	}
+
+	public Object poll(long timeout, TimeUnit unit) {
 		Object result = null;
+		long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System
+				.nanoTime()
+				+ unit.toNanos(timeout);
 
 		try {
 			lock.lockInterruptibly();
 
 			while (isEmpty()) {
+				if (deadline != Long.MAX_VALUE
+						&& System.nanoTime() - deadline >= 0)
+					return null;
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug(name + " waiting while empty");
 				fireMediaPlayerEvent(new MediaPlayerEvent(this,
@@ -250,9 +376,11 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 
 			fillCount--;
 
+			if (result != null)
+				bufferedBytes -= media(result).getSize();
+
 			if (fillCount > 0)
-				this.startTimestamp = ((IMediaData) peekAt(head))
-						.getTimeStamp();
+				this.startTimestamp = media(peekAt(head)).getTimeStamp();
 
 			bufferFull.signal();
 		} catch (InterruptedException e1) {
@@ -276,6 +404,71 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		return result;
 	}
 
+	public IMediaData find(long timestamp) {
+		lock.lock();
+		try {
+			int i = search(timestamp);
+			return i < 0 ? null : media(data[(head + i) % data.length]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean advanceTo(long timestamp, boolean keyFrame) {
+		lock.lock();
+		try {
+			int i = search(timestamp);
+			if (i < 0)
+				return false;
+
+			if (keyFrame) {
+				while (i >= 0
+						&& !media(data[(head + i) % data.length]).isKey())
+					i--;
+				if (i < 0)
+					return false;
+			}
+
+			for (int n = 0; n < i; n++) {
+				bufferedBytes -= media(data[head]).getSize();
+				MediaLease.releaseElement(data[head]);
+				head = checkBounds(head + 1);
+				fillCount--;
+			}
+
+			this.startTimestamp = media(data[head]).getTimeStamp();
+			bufferFull.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 * 
+	 * @return the offset from head of the last element at or before the
+	 *         timestamp, or -1 if it is outside the buffered window
+	 */
+	private int search(long timestamp) {
+		if (fillCount == 0
+				|| timestamp < media(data[head]).getTimeStamp()
+				|| timestamp > media(data[(head + fillCount - 1) % data.length])
+						.getTimeStamp())
+			return -1;
+
+		int lo = 0;
+		int hi = fillCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (media(data[(head + mid) % data.length]).getTimeStamp() <= timestamp)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
 	@Override
 	public Object get() {
 		int idx = tail - 1;
@@ -296,6 +489,23 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		return (fillCount == data.length);
 	}
 
+	/**
+	 * Must be called with the lock held. An empty buffer is never over budget.
+	 */
+	protected boolean overBudget(IMediaData value) {
+		if (fillCount == 0)
+			return false;
+
+		if (byteBudget > 0 && bufferedBytes + value.getSize() > byteBudget)
+			return true;
+
+		if (durationBudget > 0
+				&& value.getTimeStamp() - media(data[head]).getTimeStamp() > durationBudget)
+			return true;
+
+		return false;
+	}
+
 	public boolean isEmpty() {
 		return (fillCount == 0);
 	}
@@ -325,6 +535,10 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 		return name;
 	}
 
+	private static IMediaData media(Object element) {
+		return MediaLease.mediaOf(element);
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public boolean addAll(Collection c) {
@@ -388,6 +602,32 @@ public class CircularFifoMediaBuffer extends MediaPlayerEventSupport implements
 				"This operation is not supported.");
 	}
 
+	public long getByteBudget() {
+		return byteBudget;
+	}
+
+	public void setByteBudget(long byteBudget) {
+		this.byteBudget = byteBudget;
+	}
+
+	public long getDurationBudget() {
+		return durationBudget;
+	}
+
+	public void setDurationBudget(long durationBudget) {
+		this.durationBudget = durationBudget;
+	}
+
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public long getBufferedDuration() {
+		if (fillCount == 0)
+			return 0;
+		return endTimestamp - media(data[head]).getTimeStamp();
+	}
+
 	public long getStartTimestamp() {
 		return startTimestamp;
 	}
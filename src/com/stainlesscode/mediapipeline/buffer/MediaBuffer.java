@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.collections.Buffer;
+
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * A FIFO buffer of IMediaData objects that keeps track of the timestamps of
+ * the media it holds. Implementations sit on each edge of the pipeline
+ * (demux-&gt;decode and decode-&gt;play), where the elements are the
+ * MediaLeases on the media rather than the media itself. Whatever the buffer
+ * discards instead of handing to the consumer (clear(), advanceTo()) has its
+ * lease released.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public interface MediaBuffer extends Buffer {
+
+	int getCapacity();
+
+	/**
+	 * Like remove(), but gives up after the specified time. Lets a consumer
+	 * block on an empty buffer and still re-check its own state now and then.
+	 * 
+	 * @return the next element, or null if the time elapsed or the calling
+	 *         thread was interrupted
+	 */
+	Object poll(long timeout, TimeUnit unit);
+
+	/**
+	 * Remove up to max elements, in order, into dst without waiting. The
+	 * consumer is charged one wake-up of the producer for the whole batch.
+	 * 
+	 * @return the number of elements removed, possibly 0
+	 */
+	int drainTo(Object[] dst, int max);
+
+	/**
+	 * Add the first n elements of src, in order, waiting for space as add()
+	 * does. The consumer is woken once for the batch rather than per element.
+	 * If the calling thread is interrupted the buffer is cleared, as with
+	 * add(), and the elements not added yet are left to the caller. Null
+	 * entries are skipped and not counted, so a caller that treats the result
+	 * as an index into src must not pass any.
+	 * 
+	 * @return the number of elements that went into the buffer (and so are
+	 *         the buffer's to release), counted from the start of src
+	 */
+	int addAll(Object[] src, int n);
+
+	boolean bufferFull();
+
+	/**
+	 * @return the timestamp of the next element to be removed, or -1 if it is
+	 *         not yet known
+	 */
+	long getStartTimestamp();
+
+	/**
+	 * @return the timestamp of the most recently added element, or -1 if
+	 *         nothing has been added yet
+	 */
+	long getEndTimestamp();
+
+	/**
+	 * Binary search of the buffered elements by timestamp. Elements are held
+	 * in timestamp order, so this costs O(log n) and does not disturb either
+	 * side of the buffer.
+	 * 
+	 * @return the element with the greatest timestamp at or before the given
+	 *         one, or null if the timestamp lies outside the buffered window
+	 */
+	IMediaData find(long timestamp);
+
+	/**
+	 * Discard every element ahead of the one find(timestamp) would return, so
+	 * that it becomes the next element removed. If keyFrame is true, stop at
+	 * the closest key element at or before it instead. May be called from any
+	 * thread.
+	 * 
+	 * @return false, leaving the buffer untouched, if the timestamp lies
+	 *         outside the buffered window or no key element precedes it
+	 */
+	boolean advanceTo(long timestamp, boolean keyFrame);
+
+	/**
+	 * Take an immutable view of the buffered elements without stalling the
+	 * producer or the consumer. The view retains their leases; close() it
+	 * when done.
+	 */
+	MediaBufferSnapshot snapshot();
+
+	/**
+	 * Limit the buffer to the given number of bytes of media data (as reported
+	 * by IMediaData.getSize()). add() blocks while the budget would be
+	 * exceeded. A budget of 0 means no limit. An empty buffer always accepts
+	 * one element, however large.
+	 */
+	void setByteBudget(long bytes);
+
+	long getByteBudget();
+
+	/**
+	 * Limit the buffer to the given span of media time, measured from the
+	 * oldest to the newest timestamp held. add() blocks while the budget would
+	 * be exceeded. A budget of 0 means no limit.
+	 */
+	void setDurationBudget(long microseconds);
+
+	long getDurationBudget();
+
+	long getBufferedBytes();
+
+	long getBufferedDuration();
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * An immutable view of the elements a MediaBuffer held at one point in time,
+ * oldest first. The view may share its backing array with the buffer; the
+ * buffer copies the array before it next overwrites a slot, so the pipeline
+ * keeps running while a UI or analysis thread walks the view.
+ * 
+ * The view retains the leases of its elements, so the buffer moving on does
+ * not recycle them; close() gives them back, and the view must not be used
+ * afterwards. get() and the iterator hand out copyReference()s, so an element
+ * stays valid for as long as the caller holds on to it, closed view or not.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class MediaBufferSnapshot implements Iterable<IMediaData> {
+
+	private final Object[] elements;
+	private final int offset;
+	private final int size;
+	private final long startTimestamp;
+	private final long endTimestamp;
+	private boolean closed;
+
+	/**
+	 * @param elements
+	 *            backing array of media or leases, used as a ring; must not
+	 *            be written to afterwards. The view takes over one hold on
+	 *            each lease in it
+	 * @param offset
+	 *            index of the oldest element
+	 * @param size
+	 *            number of elements
+	 */
+	public MediaBufferSnapshot(Object[] elements, int offset, int size,
+			long startTimestamp, long endTimestamp) {
+		this.elements = elements;
+		this.offset = offset;
+		this.size = size;
+		this.startTimestamp = startTimestamp;
+		this.endTimestamp = endTimestamp;
+	}
+
+	public IMediaData get(int i) {
+		if (closed)
+			throw new IllegalStateException("snapshot is closed");
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException(i + " of " + size);
+		IMediaData element = MediaLease.mediaOf(elements[(offset + i)
+				% elements.length]);
+		return element == null ? null : element.copyReference();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getStartTimestamp() {
+		return startTimestamp;
+	}
+
+	public long getEndTimestamp() {
+		return endTimestamp;
+	}
+
+	/**
+	 * @return true if o is one of the elements, or is or leases the media of
+	 *         one of them
+	 */
+	public boolean contains(Object o) {
+		if (!(o instanceof MediaLease) && !(o instanceof IMediaData))
+			return false;
+		if (closed)
+			throw new IllegalStateException("snapshot is closed");
+		IMediaData media = MediaLease.mediaOf(o);
+		for (int i = 0; i < size; i++) {
+			Object element = elements[(offset + i) % elements.length];
+			if (element == o
+					|| (media != null && MediaLease.mediaOf(element) == media))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Release the leases the view holds. Calling it again does nothing.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (int i = 0; i < size; i++)
+			MediaLease.releaseElement(elements[(offset + i) % elements.length]);
+	}
+
+	public Iterator<IMediaData> iterator() {
+		return new Iterator<IMediaData>() {
+			private int next;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public IMediaData next() {
+				if (next >= size)
+					throw new NoSuchElementException();
+				return get(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException(
+						"This operation is not supported.");
+			}
+		};
+	}
+
+}
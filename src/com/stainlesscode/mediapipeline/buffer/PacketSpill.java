@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IRational;
+
+/**
+ * A disk-backed log of every packet the demultiplexer has read, in container
+ * order, kept in a memory-mapped file used as a ring. Each record holds the
+ * packet payload and the fields needed to rebuild it; a small in-memory index
+ * (one entry per record) maps stream timestamps to records.
+ *
+ * The packet buffers only hold what has not been decoded yet. The spill keeps
+ * the last few minutes of input, so a seek back into that window replays
+ * packets from the spill (see replayFrom()) instead of re-reading the source.
+ * When the file is full the oldest records are dropped.
+ *
+ * Records are numbered in the order they were appended. The log must stay
+ * contiguous for replay to be valid, so clear() it whenever the container is
+ * repositioned.
+ *
+ * TIMESTAMPS ARE IN STREAM TIME BASE UNITS
+ *
+ */
+public class PacketSpill {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(PacketSpill.class);
+
+	// size, stream, flags, tb num, tb den, pts, dts, duration, position
+	private static final int HEADER_SIZE = 5 * 4 + 4 * 8;
+
+	private static final int INITIAL_INDEX_SIZE = 1024;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer map;
+	private final int capacity;
+
+	// the index is a ring of records first..next-1, oldest at indexHead
+	private long[] offsets = new long[INITIAL_INDEX_SIZE];
+	private long[] timestamps = new long[INITIAL_INDEX_SIZE];
+	private int[] streams = new int[INITIAL_INDEX_SIZE];
+	private boolean[] keys = new boolean[INITIAL_INDEX_SIZE];
+	private int indexHead;
+	private long first;
+	private long next;
+
+	// logical write position, only ever grows; offset in file is % capacity
+	private long writePosition;
+
+	private long replayPosition;
+
+	/**
+	 * @param directory
+	 *            where to create the spill file, null for the default
+	 *            temporary directory
+	 * @param capacity
+	 *            size of the spill file in bytes
+	 */
+	public PacketSpill(File directory, long capacity) throws IOException {
+		this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE);
+		this.file = File.createTempFile("daedalum", ".spill", directory);
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength(this.capacity);
+		this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				this.capacity);
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("spilling packets to " + file + " (" + this.capacity
+					+ " bytes)");
+	}
+
+	/**
+	 * Append a packet read from the container. Packets being replayed must not
+	 * be appended again.
+	 */
+	public synchronized void append(IPacket packet) {
+		ByteBuffer payload = packet.getByteBuffer();
+		int size = payload == null ? 0 : Math.min(packet.getSize(), payload
+				.capacity());
+		int length = HEADER_SIZE + size;
+
+		if (length > capacity) {
+			// can't keep it, and a gap would break replay
+			LogUtil.warn("packet of " + size + " bytes does not fit the spill");
+			clear();
+			return;
+		}
+
+		// records never wrap around the end of the file
+		long position = writePosition;
+		int offset = (int) (position % capacity);
+		if (offset + length > capacity) {
+			position += capacity - offset;
+			offset = 0;
+		}
+
+		// drop records the new one overwrites
+		while (first < next && offsets[slot(first)] < position + length - capacity)
+			evict();
+
+		if (next - first == offsets.length)
+			growIndex();
+
+		ByteBuffer record = map.duplicate();
+		record.position(offset);
+		record.putInt(size);
+		record.putInt(packet.getStreamIndex());
+		record.putInt(packet.getFlags());
+		IRational timeBase = packet.getTimeBase();
+		record.putInt(timeBase == null ? 0 : timeBase.getNumerator());
+		record.putInt(timeBase == null ? 0 : timeBase.getDenominator());
+		record.putLong(packet.getPts());
+		record.putLong(packet.getDts());
+		record.putLong(packet.getDuration());
+		record.putLong(packet.getPosition());
+		if (size > 0) {
+			payload.clear();
+			payload.limit(size);
+			record.put(payload);
+		}
+
+		int i = slot(next);
+		offsets[i] = position;
+		timestamps[i] = packet.getTimeStamp();
+		streams[i] = packet.getStreamIndex();
+		keys[i] = packet.isKey();
+
+		if (replayPosition == next)
+			replayPosition++;
+		next++;
+		writePosition = position + length;
+	}
+
+	/**
+	 * Find the record to replay from to reach the given time in a stream: the
+	 * newest record of the stream at or before the timestamp (a key frame, if
+	 * keyFrame is set). The stream must also have been spilled up to the
+	 * timestamp.
+	 *
+	 * @return the record number, or -1 if the spill does not cover it
+	 */
+	public synchronized long find(int streamIndex, long timestamp,
+			boolean keyFrame) {
+		boolean covered = false;
+		for (long n = next - 1; n >= first; n--) {
+			int i = slot(n);
+			if (streams[i] != streamIndex)
+				continue;
+			if (timestamps[i] >= timestamp)
+				covered = true;
+			else if (!covered)
+				return -1;
+			if (timestamps[i] <= timestamp && (keys[i] || !keyFrame))
+				return n;
+		}
+		return -1;
+	}
+
+	/**
+	 * Make nextReplayPacket() hand out the records from the given one on,
+	 * until it catches up with the newest.
+	 */
+	public synchronized void replayFrom(long record) {
+		replayPosition = Math.max(Math.min(record, next), first);
+	}
+
+	public synchronized boolean isReplaying() {
+		return replayPosition < next;
+	}
+
+	/**
+	 * @return a new packet rebuilt from the next record to replay, or null if
+	 *         the replay has caught up (or its records have been dropped)
+	 */
+	public synchronized IPacket nextReplayPacket() {
+		if (replayPosition >= next)
+			return null;
+
+		if (replayPosition < first) {
+			LogUtil.warn("replay fell behind the spill, skipping to the end");
+			replayPosition = next;
+			return null;
+		}
+
+		ByteBuffer record = map.duplicate();
+		record.position((int) (offsets[slot(replayPosition)] % capacity));
+		int size = record.getInt();
+
+		IPacket packet = IPacket.make(size);
+		packet.setStreamIndex(record.getInt());
+		packet.setFlags(record.getInt());
+		int num = record.getInt();
+		int den = record.getInt();
+		if (den != 0)
+			packet.setTimeBase(IRational.make(num, den));
+		packet.setPts(record.getLong());
+		packet.setDts(record.getLong());
+		packet.setDuration(record.getLong());
+		packet.setPosition(record.getLong());
+
+		if (size > 0) {
+			record.limit(record.position() + size);
+			ByteBuffer payload = packet.getByteBuffer();
+			payload.clear();
+			payload.put(record);
+		}
+		packet.setComplete(true, size);
+
+		replayPosition++;
+		return packet;
+	}
+
+	/**
+	 * Drop every record. Record numbers keep increasing, so a replay in
+	 * progress just stops.
+	 */
+	public synchronized void clear() {
+		first = next;
+		indexHead = 0;
+		replayPosition = next;
+	}
+
+	public synchronized void close() {
+		clear();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			LogUtil.warn("could not close " + file, e);
+		}
+		// the mapping stays valid until collected, so this may not succeed
+		// until exit
+		file.delete();
+	}
+
+	public synchronized int size() {
+		return (int) (next - first);
+	}
+
+	public synchronized long getBufferedBytes() {
+		return first == next ? 0 : writePosition - offsets[slot(first)];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private int slot(long record) {
+		return (int) ((indexHead + (record - first)) % offsets.length);
+	}
+
+	private void evict() {
+		first++;
+		indexHead = (indexHead + 1) % offsets.length;
+	}
+
+	private void growIndex() {
+		int size = (int) (next - first);
+		long[] newOffsets = new long[offsets.length * 2];
+		long[] newTimestamps = new long[offsets.length * 2];
+		int[] newStreams = new int[offsets.length * 2];
+		boolean[] newKeys = new boolean[offsets.length * 2];
+		for (int n = 0; n < size; n++) {
+			int i = (indexHead + n) % offsets.length;
+			newOffsets[n] = offsets[i];
+			newTimestamps[n] = timestamps[i];
+			newStreams[n] = streams[i];
+			newKeys[n] = keys[i];
+		}
+		offsets = newOffsets;
+		timestamps = newTimestamps;
+		streams = newStreams;
+		keys = newKeys;
+		indexHead = 0;
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the waiting thread until the other side of the ring publishes or
+ * consumes an element and unparks it. A waiting stage costs no CPU. The park
+ * timeout is only a backstop; normally the thread is woken by signal().
+ * 
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+	private static final long DEFAULT_MAX_PARK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	private long maxParkNanos;
+
+	public ParkingWaitStrategy() {
+		this(DEFAULT_MAX_PARK_NANOS);
+	}
+
+	public ParkingWaitStrategy(long maxParkNanos) {
+		this.maxParkNanos = maxParkNanos;
+	}
+
+	@Override
+	public void idle(int attempt) throws InterruptedException {
+		LockSupport.parkNanos(this, maxParkNanos);
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	@Override
+	public void signal(Thread waiter) {
+		LockSupport.unpark(waiter);
+	}
+
+}
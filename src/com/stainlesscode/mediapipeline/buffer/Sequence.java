@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A sequence counter padded on both sides so that the producer and consumer
+ * counters of a ring never share a cache line.
+ * 
+ */
+final class Sequence extends SequenceValue {
+
+	@SuppressWarnings("unused")
+	private long p9, p10, p11, p12, p13, p14, p15;
+
+	private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater
+			.newUpdater(SequenceValue.class, "value");
+
+	Sequence(long initialValue) {
+		this.value = initialValue;
+	}
+
+	long get() {
+		return value;
+	}
+
+	void set(long newValue) {
+		value = newValue;
+	}
+
+	void lazySet(long newValue) {
+		UPDATER.lazySet(this, newValue);
+	}
+
+	boolean compareAndSet(long expect, long update) {
+		return UPDATER.compareAndSet(this, expect, update);
+	}
+
+	public String toString() {
+		return Long.toString(value);
+	}
+}
+
+class SequencePadding {
+	@SuppressWarnings("unused")
+	private long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequencePadding {
+	protected volatile long value;
+}
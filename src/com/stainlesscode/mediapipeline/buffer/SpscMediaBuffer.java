@@ -0,0 +1,675 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent.Type;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * Single-producer/single-consumer ring of IMediaData objects. Every edge of the
+ * pipeline has exactly one producer and one consumer, so add() and remove() do
+ * not take a lock: the producer owns the tail sequence and the consumer owns
+ * the head sequence. A waiting side is woken as soon as the other side
+ * publishes or consumes an element, according to the configured WaitStrategy.
+ * 
+ * clear() and advanceTo() may be called from any thread (e.g. during a seek);
+ * they move the head with a CAS, which is why the consumer advances the head
+ * with a CAS too. There is still only one consumer: whoever wins the CAS owns
+ * the elements it moved past and nulls their slots, so the ring never pins a
+ * consumed element. clear() and advanceTo() release the leases of the
+ * elements they drop.
+ * 
+ * Besides the element count, add() applies backpressure on the optional byte
+ * and duration budgets, whichever trips first. Each slot records the size and
+ * timestamp of its element so neither side has to call back into the media
+ * object to do the accounting.
+ * 
+ * Unlike CircularFifoMediaBuffer this buffer does not re-order late elements;
+ * the producer is expected to add elements in timestamp order.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class SpscMediaBuffer extends MediaPlayerEventSupport implements
+		MediaBuffer {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(SpscMediaBuffer.class);
+
+	protected final AtomicReferenceArray<Object> data;
+	protected final int sizes[];
+	protected final long timestamps[];
+	protected final boolean keys[];
+	protected final int mask;
+	protected final int capacity;
+	protected String name = "buffer";
+	protected WaitStrategy waitStrategy = new ParkingWaitStrategy();
+
+	// next sequence to remove, written by the consumer (and clear())
+	private final Sequence head = new Sequence(0);
+	// next sequence to publish, written by the producer only
+	private final Sequence tail = new Sequence(0);
+
+	// producer-local view of head, consumer-local view of tail
+	private long cachedHead;
+	private long cachedTail;
+
+	// bytesAdded is written by the producer only; bytesRemoved by the consumer
+	// and clear()
+	private volatile long bytesAdded;
+	private final AtomicLong bytesRemoved = new AtomicLong();
+	private volatile long byteBudget;
+	private volatile long durationBudget;
+
+	private volatile Thread waitingProducer;
+	private volatile Thread waitingConsumer;
+
+	protected volatile long startTimestamp = -1;
+	protected volatile long endTimestamp = -1;
+
+	public SpscMediaBuffer(Integer number) {
+		this.capacity = number;
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.data = new AtomicReferenceArray<Object>(size);
+		this.sizes = new int[size];
+		this.timestamps = new long[size];
+		this.keys = new boolean[size];
+		this.mask = size - 1;
+	}
+
+	public SpscMediaBuffer(String name, Integer number) {
+		this(number);
+		this.name = name;
+	}
+
+	public SpscMediaBuffer(String name, Integer number,
+			WaitStrategy waitStrategy) {
+		this(name, number);
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Override
+	public boolean add(Object value) {
+		if (value == null)
+			return false;
+
+		long t = tail.get();
+		try {
+			store(t, value);
+		} catch (InterruptedException e) {
+			// same contract as CircularFifoMediaBuffer: an interrupted
+			// producer (seek, stop) drops its element and the buffer
+			clear();
+			return false;
+		}
+		publish(t + 1);
+		return true;
+	}
+
+	/**
+	 * Null entries of src are skipped and not counted. On interrupt only what
+	 * store() already published was taken; clear() drops it along with the
+	 * rest of the buffer. What was stored but not yet published is taken back
+	 * out of the ring, unreleased, and left to the caller with the elements
+	 * not reached.
+	 */
+	public int addAll(Object[] src, int n) {
+		long t = tail.get();
+		int added = 0;
+		try {
+			for (int i = 0; i < n; i++) {
+				if (src[i] == null)
+					continue;
+				store(t, src[i]);
+				t++;
+				added++;
+			}
+		} catch (InterruptedException e) {
+			long published = tail.get();
+			for (long s = published; s < t; s++)
+				data.lazySet((int) (s & mask), null);
+			clear();
+			return added - (int) (t - published);
+		}
+		publish(t);
+		return added;
+	}
+
+	/**
+	 * Write an element into slot t, waiting for space first if necessary. The
+	 * element is not visible to the consumer until publish().
+	 */
+	private void store(long t, Object element) throws InterruptedException {
+		IMediaData mediaData = MediaLease.mediaOf(element);
+		int size = mediaData.getSize();
+		long ts = mediaData.getTimeStamp();
+
+		if (t - cachedHead >= capacity || byteBudget > 0 || durationBudget > 0) {
+			cachedHead = head.get();
+			if (mustWait(t, size, ts)) {
+				// let the consumer drain whatever this batch has stored
+				publish(t);
+				awaitSpace(t, size, ts);
+			}
+		}
+
+		int idx = (int) (t & mask);
+		data.lazySet(idx, element);
+		sizes[idx] = size;
+		timestamps[idx] = ts;
+		keys[idx] = mediaData.isKey();
+		bytesAdded += size;
+		this.endTimestamp = ts;
+	}
+
+	private void publish(long t) {
+		if (t == tail.get())
+			return;
+
+		tail.set(t);
+
+		Thread waiter = waitingConsumer;
+		if (waiter != null)
+			waitStrategy.signal(waiter);
+	}
+
+	/**
+	 * True if adding an element of the given size and timestamp would exceed
+	 * the element count, byte budget or duration budget. Only called by the
+	 * producer, after refreshing cachedHead.
+	 */
+	private boolean mustWait(long t, int size, long ts) {
+		if (t - cachedHead >= capacity)
+			return true;
+
+		// always admit into an empty buffer so one oversized element can't
+		// stall the pipeline
+		if (t <= cachedHead)
+			return false;
+
+		if (byteBudget > 0
+				&& bytesAdded - bytesRemoved.get() + size > byteBudget)
+			return true;
+
+		if (durationBudget > 0
+				&& ts - timestamps[(int) (cachedHead & mask)] > durationBudget)
+			return true;
+
+		return false;
+	}
+
+	private void awaitSpace(long t, int size, long ts)
+			throws InterruptedException {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug(name + " waiting while full");
+		fireMediaPlayerEvent(new MediaPlayerEvent(this, Type.BUFFER_FULL, null));
+
+		waitingProducer = Thread.currentThread();
+		try {
+			int attempt = 0;
+			cachedHead = head.get();
+			while (mustWait(t, size, ts)) {
+				waitStrategy.idle(attempt++);
+				cachedHead = head.get();
+			}
+		} finally {
+			waitingProducer = null;
+		}
+	}
+
+	@Override
+	public Object remove() {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	public Object poll(long timeout, TimeUnit unit) {
+		long deadline = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : System
+				.nanoTime()
+				+ unit.toNanos(timeout);
+		try {
+			while (true) {
+				long h = head.get();
+
+				if (h >= cachedTail && h >= (cachedTail = tail.get())) {
+					if (!awaitData(deadline))
+						return null;
+					continue;
+				}
+
+				int idx = (int) (h & mask);
+				Object result = data.get(idx);
+				int size = sizes[idx];
+
+				// a failed CAS means clear() moved the head; start over
+				if (head.compareAndSet(h, h + 1)) {
+					release(idx, result);
+					bytesRemoved.addAndGet(size);
+					if (h + 1 < cachedTail)
+						this.startTimestamp = timestamps[(int) ((h + 1) & mask)];
+
+					Thread waiter = waitingProducer;
+					if (waiter != null)
+						waitStrategy.signal(waiter);
+
+					return result;
+				}
+			}
+		} catch (InterruptedException e) {
+			// seeking interrupts the consumer; @see CircularFifoMediaBuffer
+			return null;
+		}
+	}
+
+	public int drainTo(Object[] dst, int max) {
+		while (true) {
+			long h = head.get();
+			long t = cachedTail = tail.get();
+			int n = (int) Math.min(max, t - h);
+			if (n <= 0)
+				return 0;
+
+			long bytes = 0;
+			for (int i = 0; i < n; i++) {
+				int idx = (int) ((h + i) & mask);
+				dst[i] = data.get(idx);
+				bytes += sizes[idx];
+			}
+
+			// a failed CAS means clear() moved the head; start over
+			if (head.compareAndSet(h, h + n)) {
+				for (int i = 0; i < n; i++) {
+					release((int) ((h + i) & mask), dst[i]);
+				}
+				bytesRemoved.addAndGet(bytes);
+				if (h + n < t)
+					this.startTimestamp = timestamps[(int) ((h + n) & mask)];
+
+				Thread waiter = waitingProducer;
+				if (waiter != null)
+					waitStrategy.signal(waiter);
+
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * @return false if the deadline passed before anything was published
+	 */
+	private boolean awaitData(long deadline) throws InterruptedException {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug(name + " waiting while empty");
+		fireMediaPlayerEvent(new MediaPlayerEvent(this, Type.BUFFER_EMPTY, null));
+
+		waitingConsumer = Thread.currentThread();
+		try {
+			int attempt = 0;
+			while (head.get() >= (cachedTail = tail.get())) {
+				if (deadline != Long.MAX_VALUE
+						&& System.nanoTime() - deadline >= 0)
+					return false;
+				waitStrategy.idle(attempt++);
+			}
+			return true;
+		} finally {
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * Null a slot the caller has just moved the head past. The producer may
+	 * already have re-filled it, in which case it holds a different element
+	 * and is left alone.
+	 */
+	private void release(int idx, Object consumed) {
+		data.compareAndSet(idx, consumed, null);
+	}
+
+	/**
+	 * Discards everything currently in the buffer, releasing the leases.
+	 * Safe to call from any thread.
+	 */
+	public void clear() {
+		long h, t, bytes;
+		Object[] dropped;
+		do {
+			h = head.get();
+			t = tail.get();
+			// slots between head and tail are stable until the head moves
+			bytes = 0;
+			dropped = new Object[(int) Math.max(0, t - h)];
+			for (long seq = h; seq < t; seq++) {
+				int idx = (int) (seq & mask);
+				dropped[(int) (seq - h)] = data.get(idx);
+				bytes += sizes[idx];
+			}
+		} while (h < t && !head.compareAndSet(h, t));
+
+		for (long seq = h; seq < t; seq++) {
+			release((int) (seq & mask), dropped[(int) (seq - h)]);
+		}
+		bytesRemoved.addAndGet(bytes);
+
+		Thread waiter = waitingProducer;
+		if (waiter != null)
+			waitStrategy.signal(waiter);
+
+		for (Object element : dropped) {
+			MediaLease.releaseElement(element);
+		}
+	}
+
+	public IMediaData find(long timestamp) {
+		while (true) {
+			long h = head.get();
+			long seq = search(h, tail.get(), timestamp);
+			if (seq < 0)
+				return null;
+			IMediaData result = MediaLease.mediaOf(data
+					.get((int) (seq & mask)));
+			// the slot can only have been re-used if the head moved past it
+			if (head.get() <= seq)
+				return result;
+		}
+	}
+
+	public boolean advanceTo(long timestamp, boolean keyFrame) {
+		while (true) {
+			long h = head.get();
+			long seq = search(h, tail.get(), timestamp);
+			if (seq < 0)
+				return false;
+
+			if (keyFrame) {
+				while (seq >= h && !keys[(int) (seq & mask)])
+					seq--;
+				if (seq < h)
+					return false;
+			}
+
+			long bytes = 0;
+			Object[] dropped = new Object[(int) (seq - h)];
+			for (long i = h; i < seq; i++) {
+				int idx = (int) (i & mask);
+				dropped[(int) (i - h)] = data.get(idx);
+				bytes += sizes[idx];
+			}
+			long startTimestamp = timestamps[(int) (seq & mask)];
+
+			// a failed CAS means the consumer or clear() moved the head
+			if (head.compareAndSet(h, seq)) {
+				for (long i = h; i < seq; i++) {
+					release((int) (i & mask), dropped[(int) (i - h)]);
+				}
+				bytesRemoved.addAndGet(bytes);
+				this.startTimestamp = startTimestamp;
+
+				Thread waiter = waitingProducer;
+				if (waiter != null)
+					waitStrategy.signal(waiter);
+
+				for (Object element : dropped) {
+					MediaLease.releaseElement(element);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Copies the buffered references (not the media) out of the ring and
+	 * retains their leases. Slots are only re-used once the head has moved
+	 * past them, and an element is only released after that, so anything the
+	 * head has not passed once the leases are retained was retained intact;
+	 * the snapshot starts there. The leases copied ahead of it are given back
+	 * straight away.
+	 */
+	public MediaBufferSnapshot snapshot() {
+		long h = head.get();
+		long t = tail.get();
+		int count = (int) Math.max(0, t - h);
+		Object[] elements = new Object[count];
+		for (int i = 0; i < count; i++) {
+			Object element = data.get((int) ((h + i) & mask));
+			if (element != null && MediaLease.tryRetainElement(element))
+				elements[i] = element;
+		}
+
+		int skip = (int) Math.min(count, Math.max(0, head.get() - h));
+		for (int i = 0; i < skip; i++) {
+			MediaLease.releaseElement(elements[i]);
+			elements[i] = null;
+		}
+		if (skip == count)
+			return new MediaBufferSnapshot(elements, 0, 0, -1, -1);
+
+		return new MediaBufferSnapshot(elements, skip, count - skip,
+				MediaLease.mediaOf(elements[skip]).getTimeStamp(), MediaLease
+						.mediaOf(elements[count - 1]).getTimeStamp());
+	}
+
+	/**
+	 * @return the greatest sequence in [h, t) whose timestamp is at or before
+	 *         the given one, or -1 if the timestamp is outside that window
+	 */
+	private long search(long h, long t, long timestamp) {
+		if (t <= h || timestamp < timestamps[(int) (h & mask)]
+				|| timestamp > timestamps[(int) ((t - 1) & mask)])
+			return -1;
+
+		long lo = h;
+		long hi = t - 1;
+		while (lo < hi) {
+			long mid = (lo + hi + 1) >>> 1;
+			if (timestamps[(int) (mid & mask)] <= timestamp)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	@Override
+	public Object get() {
+		long t = tail.get();
+		if (t == 0)
+			return null;
+		return data.get((int) ((t - 1) & mask));
+	}
+
+	public boolean bufferFull() {
+		return size() >= capacity;
+	}
+
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) size;
+	}
+
+	public void setByteBudget(long bytes) {
+		this.byteBudget = bytes;
+	}
+
+	public long getByteBudget() {
+		return byteBudget;
+	}
+
+	public void setDurationBudget(long microseconds) {
+		this.durationBudget = microseconds;
+	}
+
+	public long getDurationBudget() {
+		return durationBudget;
+	}
+
+	public long getBufferedBytes() {
+		long bytes = bytesAdded - bytesRemoved.get();
+		return bytes < 0 ? 0 : bytes;
+	}
+
+	public long getBufferedDuration() {
+		long h = head.get();
+		long t = tail.get();
+		if (t <= h)
+			return 0;
+		return timestamps[(int) ((t - 1) & mask)]
+				- timestamps[(int) (h & mask)];
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean addAll(Collection c) {
+		throw new UnsupportedOperationException(
+				"This operation is not supported.");
+	}
+
+	/**
+	 * @return true if o, or the media it leases, was in the buffer when a
+	 *         snapshot() was taken
+	 */
+	@Override
+	public boolean contains(Object o) {
+		MediaBufferSnapshot snapshot = snapshot();
+		try {
+			return snapshot.contains(o);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean containsAll(Collection c) {
+		throw new UnsupportedOperationException(
+				"This operation is not supported.");
+	}
+
+	/**
+	 * Iterates over a copy of the buffered elements as toArray() returns
+	 * them; the buffer is free to move on meanwhile.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Iterator iterator() {
+		return Arrays.asList(toArray()).iterator();
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		throw new UnsupportedOperationException(
+				"This operation is not supported.");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean removeAll(Collection c) {
+		throw new UnsupportedOperationException(
+				"This operation is not supported.");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean retainAll(Collection c) {
+		throw new UnsupportedOperationException(
+				"This operation is not supported.");
+	}
+
+	/**
+	 * @return a copy of the buffered elements, oldest first
+	 */
+	@Override
+	public Object[] toArray() {
+		MediaBufferSnapshot snapshot = snapshot();
+		try {
+			Object[] result = new Object[snapshot.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = snapshot.get(i);
+			}
+			return result;
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	@Override
+	public Object[] toArray(Object[] a) {
+		Object[] elements = toArray();
+		if (a.length < elements.length)
+			a = (Object[]) Array.newInstance(a.getClass().getComponentType(),
+					elements.length);
+		System.arraycopy(elements, 0, a, 0, elements.length);
+		if (a.length > elements.length)
+			a[elements.length] = null;
+		return a;
+	}
+
+	public long getStartTimestamp() {
+		return startTimestamp;
+	}
+
+	public void setStartTimestamp(long startTimestamp) {
+		this.startTimestamp = startTimestamp;
+	}
+
+	public long getEndTimestamp() {
+		return endTimestamp;
+	}
+
+	public void setEndTimestamp(long endTimestamp) {
+		this.endTimestamp = endTimestamp;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+/**
+ * Decides what a producer or consumer does while it cannot make progress on a
+ * ring (full for the producer, empty for the consumer).
+ * 
+ */
+public interface WaitStrategy {
+
+	/**
+	 * Called repeatedly while the calling thread cannot make progress. Returns
+	 * when the caller should re-check its condition.
+	 * 
+	 * @param attempt
+	 *            the number of consecutive unsuccessful checks so far
+	 * @throws InterruptedException
+	 *             if the waiting thread was interrupted
+	 */
+	void idle(int attempt) throws InterruptedException;
+
+	/**
+	 * Wake a thread that may be waiting in idle(). Called by the other side of
+	 * the ring right after it publishes or consumes an element.
+	 * 
+	 * @param waiter
+	 */
+	void signal(Thread waiter);
+
+}
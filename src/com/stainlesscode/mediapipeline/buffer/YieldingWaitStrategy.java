@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.buffer;
+
+/**
+ * Yields the CPU to other runnable threads while waiting. Low latency, but a
+ * starved stage still shows up as busy to the scheduler.
+ * 
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+	@Override
+	public void idle(int attempt) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		Thread.yield();
+	}
+
+	@Override
+	public void signal(Thread waiter) {
+		// yielding threads notice new data on their own
+	}
+
+}
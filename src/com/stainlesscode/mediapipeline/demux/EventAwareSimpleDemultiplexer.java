@@ -26,11 +26,12 @@ import org.apache.commons.collections.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.Demultiplexer;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
 import com.stainlesscode.mediapipeline.util.SeekHelper;
 import com.xuggle.xuggler.IError;
 import com.xuggle.xuggler.IPacket;
@@ -49,7 +50,7 @@ public class EventAwareSimpleDemultiplexer extends EngineThread implements
 	protected EngineRuntime engineRuntime;
 	protected String url;
 	protected SeekHelper seekHelper;
-	protected IPacket packet = null;
+	protected MediaLease<IPacket> packet = null;
 
 	public void init(String url, EngineRuntime engineRuntime) {
 		this.seekHelper = new SeekHelper(engineRuntime);
@@ -108,14 +109,21 @@ public class EventAwareSimpleDemultiplexer extends EngineThread implements
 		int result = -1;
 
 		if (packet == null) {
-			packet = (IPacket) engineRuntime.getPacketPool().borrowObject();
+			if (engineRuntime.getNativeMemory().backOff())
+				return;
+
+			IPacket read = (IPacket) engineRuntime.getPacketPool()
+					.borrowObject();
+			packet = engineRuntime.getLeases().acquire(read,
+					engineRuntime.getPacketPool(), MediaLeases.DEMUX_STAGE);
 
 			engineRuntime.getContainerLock().lock();
 			try {
-				result = engineRuntime.getContainer().readNextPacket(packet);
+				result = engineRuntime.getContainer().readNextPacket(read);
+				engineRuntime.getLeases().measure(packet);
 				if (LogUtil.isDebugEnabled())
-					LogUtil.debug("read packet " + packet.getTimeStamp()
-							+ " for stream " + packet.getStreamIndex());
+					LogUtil.debug("read packet " + read.getTimeStamp()
+							+ " for stream " + read.getStreamIndex());
 			} finally {
 				engineRuntime.getContainerLock().unlock();
 			}
@@ -127,15 +135,16 @@ public class EventAwareSimpleDemultiplexer extends EngineThread implements
 			if (packet != null) {
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug("extracting packet to buffer "
-							+ packet.getStreamIndex());
+							+ packet.get().getStreamIndex());
 				Buffer destinationBuffer = engineRuntime.getStreamToBufferMap()
-						.get(packet.getStreamIndex());
+						.get(packet.get().getStreamIndex());
 
 				if (destinationBuffer == null) {
+					packet.release();
 					packet = null;
 				} else {
 					try {
-						destinationBuffer.add(packet.copyReference());
+						destinationBuffer.add(packet);
 						packet = null;
 					} catch (BufferOverflowException e) {
 						Thread.yield();
@@ -143,6 +152,8 @@ public class EventAwareSimpleDemultiplexer extends EngineThread implements
 				}
 			}
 		} else {
+			packet.release();
+			packet = null;
 			LogUtil.error("result is " + result);
 			if (result == -32) {
 				// System.out.println("CLIP_END detected, firing event");
@@ -26,9 +26,10 @@ import org.apache.commons.collections.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.Demultiplexer;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
 import com.stainlesscode.mediapipeline.util.SeekHelper;
 import com.xuggle.xuggler.IError;
 import com.xuggle.xuggler.IPacket;
@@ -49,7 +50,7 @@ public class MultispeedDemultiplexer extends EngineThread {
 	protected EngineRuntime engineRuntime;
 	protected String url;
 	protected SeekHelper seekHelper;
-	protected IPacket packet = null;
+	protected MediaLease<IPacket> packet = null;
 	protected int multispeedPacketCounter = 0;
 	protected int speed = 1;
 
@@ -91,9 +92,16 @@ public class MultispeedDemultiplexer extends EngineThread {
 			int result = -1;
 
 			if (packet == null) {
+				if (engineRuntime.getNativeMemory().backOff())
+					continue;
+
+				IPacket read;
 				try {
-					packet = (IPacket) engineRuntime.getPacketPool()
+					read = (IPacket) engineRuntime.getPacketPool()
 							.borrowObject();
+					packet = engineRuntime.getLeases().acquire(read,
+							engineRuntime.getPacketPool(),
+							MediaLeases.DEMUX_STAGE);
 				} catch (NoSuchElementException e) {
 					LogUtil.error("Unable to borrow packet for decode");
 					continue;
@@ -107,11 +115,11 @@ public class MultispeedDemultiplexer extends EngineThread {
 
 				engineRuntime.getContainerLock().lock();
 				try {
-					result = engineRuntime.getContainer()
-							.readNextPacket(packet);
+					result = engineRuntime.getContainer().readNextPacket(read);
+					engineRuntime.getLeases().measure(packet);
 					if (LogUtil.isDebugEnabled())
-						LogUtil.debug("read packet " + packet.getTimeStamp()
-								+ " for stream " + packet.getStreamIndex());
+						LogUtil.debug("read packet " + read.getTimeStamp()
+								+ " for stream " + read.getStreamIndex());
 				} finally {
 					engineRuntime.getContainerLock().unlock();
 				}
@@ -123,10 +131,10 @@ public class MultispeedDemultiplexer extends EngineThread {
 				if (packet != null) {
 					if (LogUtil.isDebugEnabled())
 						LogUtil.debug("extracting packet to buffer "
-								+ packet.getStreamIndex());
+								+ packet.get().getStreamIndex());
 					Buffer destinationBuffer = engineRuntime
-							.getStreamToBufferMap()
-							.get(packet.getStreamIndex());
+							.getStreamToBufferMap().get(
+									packet.get().getStreamIndex());
 
 					int modulo = 0;
 					speed = new Double(engineRuntime.getPlaySpeed()).intValue();
@@ -140,17 +148,20 @@ public class MultispeedDemultiplexer extends EngineThread {
 
 					if (destinationBuffer != null && modulo == 0) {
 						try {
-							destinationBuffer.add(packet.copyReference());
+							destinationBuffer.add(packet);
 							packet = null;
 						} catch (BufferOverflowException e) {
 							return;
 						}
 					} else {
+						packet.release();
 						packet = null;
 						return;
 					}
 				}
 			} else {
+				packet.release();
+				packet = null;
 				LogUtil.error("result is " + result);
 				if (result == -32) {
 					// System.out.println("CLIP_END detected, firing event");
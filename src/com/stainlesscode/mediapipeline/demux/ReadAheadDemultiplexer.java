@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.demux;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.collections.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+
+/**
+ * A demultiplexer that owns the container for reading and seeking. Callers
+ * don't touch the container: they queue a command (seek, flush, read), and
+ * the stage runs it between bursts of reads. A seek never waits behind a read
+ * on a user thread, and seeks are carried out one at a time, in order; a seek
+ * followed by another before it started is skipped. The
+ * rest of the time the stage reads ahead as far as the packet buffers allow.
+ * 
+ * The time from a seek being queued to the first packet read after it is
+ * published as the seek.latency metric (microseconds), with its maximum in
+ * seek.latency.max.
+ * 
+ * At the end of the container the stage stops reading until a command, a
+ * playlist splice or a warm reset gives it something to read.
+ * 
+ * Set demultiplexer to this class to use it; Engine.seek() then goes through
+ * the command queue.
+ */
+public class ReadAheadDemultiplexer extends SimpleDemultiplexer {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(ReadAheadDemultiplexer.class);
+
+	private static class Command {
+
+		enum Type {
+			SEEK, FLUSH, READ
+		};
+
+		final Type type;
+		final long microseconds;
+		final boolean clearBuffers;
+		final long requested = System.nanoTime();
+
+		Command(Type type, long microseconds, boolean clearBuffers) {
+			this.type = type;
+			this.microseconds = microseconds;
+			this.clearBuffers = clearBuffers;
+		}
+	}
+
+	private final BlockingQueue<Command> commands = new LinkedBlockingQueue<Command>();
+
+	// when the last seek was queued, until its first packet is read
+	private long seekRequested;
+	private int seekLatencyGeneration;
+
+	/**
+	 * Queue a seek to the given time. Returns at once.
+	 */
+	public void seek(long microseconds, boolean clearBuffers) {
+		commands.add(new Command(Command.Type.SEEK, microseconds,
+				clearBuffers));
+	}
+
+	/**
+	 * Queue a flush: what has been read but not decoded is dropped, and
+	 * reading carries on from the current position.
+	 */
+	public void flush() {
+		commands.add(new Command(Command.Type.FLUSH, 0, true));
+	}
+
+	/**
+	 * Queue a read, which makes the stage try the container again after it
+	 * has reached the end (e.g. of a file that is still being written).
+	 */
+	public void read() {
+		commands.add(new Command(Command.Type.READ, 0, false));
+	}
+
+	@Override
+	public void run() {
+		boolean more = true;
+
+		while (!isMarkedForDeath()) {
+			Command command;
+			while ((command = commands.poll()) != null) {
+				Command next = commands.peek();
+				if (command.type == Command.Type.SEEK && next != null
+						&& next.type == Command.Type.SEEK) {
+					// superseded before we got to it
+					engineRuntime.getMetrics().increment("seek.coalesced");
+					continue;
+				}
+				execute(command);
+				more = true;
+			}
+
+			if (more) {
+				IContainer container = engineRuntime.getContainer();
+				int generation = seekGeneration;
+				more = readBurst();
+				// a splice or warm reset at the end gives us new media
+				if (!more
+						&& (container != engineRuntime.getContainer() || generation != seekGeneration))
+					more = true;
+				continue;
+			}
+
+			// at the end of the container; wait for something to do
+			try {
+				command = commands.poll(StageScheduler.IDLE_MILLIS,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (command != null) {
+				execute(command);
+				more = true;
+			}
+		}
+
+		LogUtil.info("thread shutting down gracefully");
+	}
+
+	private void execute(Command command) {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("executing " + command.type);
+
+		switch (command.type) {
+		case SEEK:
+			// SEEK moves the generation on, so pending batches are dropped
+			engineRuntime.getEngine().seekContainer(command.microseconds,
+					command.clearBuffers);
+			seekRequested = command.requested;
+			seekLatencyGeneration = seekGeneration;
+			break;
+		case FLUSH:
+			engineRuntime.getContainerLock().lock();
+			try {
+				dropPendingBatches();
+				for (Buffer buffer : engineRuntime.getStreamToBufferMap()
+						.values())
+					engineRuntime.getLeases().releaseAll(buffer);
+			} finally {
+				engineRuntime.getContainerLock().unlock();
+			}
+			break;
+		case READ:
+			break;
+		}
+
+		// the engine interrupts the demultiplexer when it seeks; that's us
+		Thread.interrupted();
+	}
+
+	@Override
+	public MediaLease<IPacket> getNextPacket() throws DemultiplexerException {
+		MediaLease<IPacket> packet = super.getNextPacket();
+
+		if (seekRequested != 0 && readGeneration == seekLatencyGeneration) {
+			long latency = (System.nanoTime() - seekRequested) / 1000l;
+			engineRuntime.getMetrics().set("seek.latency", latency);
+			engineRuntime.getMetrics().max("seek.latency.max", latency);
+			seekRequested = 0;
+		}
+
+		return packet;
+	}
+
+}
@@ -19,9 +19,10 @@
 
 package com.stainlesscode.mediapipeline.demux;
 
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Map.Entry;
 
 import org.apache.commons.collections.Buffer;
 import org.apache.commons.collections.BufferOverflowException;
@@ -29,13 +30,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.Demultiplexer;
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.PacketSpill;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent.Type;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
 import com.stainlesscode.mediapipeline.util.MediaPlayerEventSupportedEngineThread;
 import com.stainlesscode.mediapipeline.util.SeekHelper;
+import com.stainlesscode.mediapipeline.util.TimeUtil;
 import com.xuggle.xuggler.IError;
 import com.xuggle.xuggler.IPacket;
 
@@ -49,21 +54,67 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 	protected String url;
 	protected SeekHelper seekHelper;
 
+	/**
+	 * Packets waiting to be handed to one destination buffer in a single
+	 * addAll().
+	 */
+	private static class PendingBatch {
+		final MediaBuffer buffer;
+		final Object[] packets;
+		int count;
+
+		PendingBatch(MediaBuffer buffer, int size) {
+			this.buffer = buffer;
+			this.packets = new Object[size];
+		}
+	}
+
+	private Map<Buffer, PendingBatch> pendingBatches = new IdentityHashMap<Buffer, PendingBatch>();
+	private int batchSize;
+	private boolean usePools;
+	protected volatile int seekGeneration;
+	protected int readGeneration;
+
 	public void init(String url, EngineRuntime engineRuntime) {
 		this.seekHelper = new SeekHelper(engineRuntime);
 		this.engineRuntime = engineRuntime;
+		this.batchSize = engineRuntime.getEngine().getSettings().getBatchSize();
+		this.usePools = engineRuntime.getEngine().getSettings()
+				.isUseObjectPools();
+		this.engineRuntime.getEngine().addMediaPlayerEventListener(this);
 	}
 
-	@SuppressWarnings("unchecked")
 	public void run() {
 		while (!isMarkedForDeath()) {
 //			if (engineRuntime.isPaused())
 //				continue;
 
-			if (LogUtil.isDebugEnabled())
-				LogUtil.debug("In demultiplexerLoop()");
+			readBurst();
+		}
+
+		LogUtil.info("thread shutting down gracefully");
+	}
 
-			IPacket packet = null;
+	/**
+	 * Read a burst of packets, then give each buffer its share at once.
+	 * 
+	 * @return false if the container has no more packets
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean readBurst() {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("In demultiplexerLoop()");
+
+		// over the native memory budget, wait for the later stages to
+		// release some before reading more
+		if (engineRuntime.getNativeMemory().backOff())
+			return true;
+
+		int generation = seekGeneration;
+		boolean more = true;
+
+		for (int i = 0; i < batchSize && !isMarkedForDeath(); i++) {
+			MediaLease<IPacket> packet = null;
 
 			try {
 				packet = getNextPacket();
@@ -72,8 +123,10 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 					if (LogUtil.isDebugEnabled())
 						LogUtil.debug("result is " + e1.getResult());
 					if (e1.getResult() == -32) {
+						flushPendingBatches(generation);
 						fireMediaPlayerEvent(new MediaPlayerEvent(this,
 								Type.CLIP_END, null));
+						more = false;
 					} else {
 						IError error = IError.make(e1.getResult());
 						LogUtil.error("ERROR: " + error.getDescription());
@@ -81,6 +134,14 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 				} else {
 					LogUtil.error(e1.getMessage());
 				}
+				break;
+			}
+
+			if (readGeneration != generation) {
+				// a seek came in after the burst began, so what we have
+				// read so far is stale but this packet is not
+				dropPendingBatches();
+				generation = readGeneration;
 			}
 
 			if (packet != null) {
@@ -92,32 +153,36 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 			}
 		}
 
-		LogUtil.info("thread shutting down gracefully");
-	}
-
-	private void returnBorrowed(IPacket packet) {
-		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getPacketPool().returnObject(packet);
-			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		flushPendingBatches(generation);
+		return more;
 	}
 
 	@Override
-	public IPacket getNextPacket() throws DemultiplexerException {
+	public MediaLease<IPacket> getNextPacket() throws DemultiplexerException {
 		int result = 0;
 		IPacket packet = null;
+		MediaLease<IPacket> lease;
+
+		// after a seek into the spill, its packets come before the container's
+		PacketSpill spill = engineRuntime.getPacketSpill();
+		if (spill != null && spill.isReplaying()) {
+			engineRuntime.getContainerLock().lock();
+			try {
+				readGeneration = seekGeneration;
+				packet = spill.nextReplayPacket();
+			} finally {
+				engineRuntime.getContainerLock().unlock();
+			}
+			if (packet != null)
+				return engineRuntime.getLeases().acquire(packet, null,
+						MediaLeases.DEMUX_STAGE);
+		}
 
-		if (engineRuntime.getEngine().getEngineConfiguration()
-				.getConfigurationValueAsBoolean(
-						EngineConfiguration.USE_OBJECT_POOLS)) {
+		if (usePools) {
 			try {
 				packet = (IPacket) engineRuntime.getPacketPool().borrowObject();
+				lease = engineRuntime.getLeases().acquire(packet,
+						engineRuntime.getPacketPool(), MediaLeases.DEMUX_STAGE);
 			} catch (NoSuchElementException e) {
 				throw new DemultiplexerException(e);
 			} catch (IllegalStateException e) {
@@ -127,26 +192,38 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 			}
 		} else {
 			packet = IPacket.make();
+			lease = engineRuntime.getLeases().acquire(packet, null,
+					MediaLeases.DEMUX_STAGE);
 		}
 
 		engineRuntime.getContainerLock().lock();
 		try {
+			// seeks happen under the container lock
+			readGeneration = seekGeneration;
 			result = engineRuntime.getContainer().readNextPacket(packet);
 			if (result < 0) {
+				lease.release();
 				throw new DemultiplexerException(result);
 			}
+			engineRuntime.getLeases().measure(lease);
+			// later playlist items continue the timeline of the first
+			TimeUtil.rebasePacket(packet, engineRuntime.getTimestampOffset());
 			if (LogUtil.isDebugEnabled())
 				LogUtil.debug("read packet " + packet.getTimeStamp()
 						+ " for stream " + packet.getStreamIndex());
+			if (spill != null)
+				spill.append(packet);
 		} finally {
 			engineRuntime.getContainerLock().unlock();
 		}
 
-		return packet;
+		return lease;
 	}
 
 	@Override
-	public void handlePacket(IPacket packet) throws DemultiplexerException {
+	public void handlePacket(MediaLease<IPacket> lease)
+			throws DemultiplexerException {
+		IPacket packet = lease.get();
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("extracting packet to buffer "
 					+ packet.getStreamIndex());
@@ -157,26 +234,85 @@ public class SimpleDemultiplexer extends MediaPlayerEventSupportedEngineThread
 		if (destinationBuffer == null) {
 			LogUtil.debug("No destination configured for packet stream "
 					+ packet.getStreamIndex());
-			returnBorrowed(packet);
-		} else {
-			try {
-				destinationBuffer.add(packet.copyReference());
-				// packet = null;
-			} catch (BufferOverflowException e) {
-				System.err.println(e.getMessage());
-				return;
+			lease.release();
+			return;
+		}
+
+		addToBuffer(destinationBuffer, lease);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addToBuffer(Buffer destinationBuffer,
+			MediaLease<IPacket> packet) {
+		if (destinationBuffer instanceof MediaBuffer) {
+			PendingBatch batch = pendingBatches.get(destinationBuffer);
+			if (batch == null) {
+				batch = new PendingBatch((MediaBuffer) destinationBuffer,
+						batchSize);
+				pendingBatches.put(destinationBuffer, batch);
 			}
+			batch.packets[batch.count++] = packet;
+			if (batch.count == batch.packets.length)
+				flushPendingBatch(batch);
+			return;
+		}
+
+		try {
+			destinationBuffer.add(packet);
+		} catch (BufferOverflowException e) {
+			System.err.println(e.getMessage());
+			packet.release();
 		}
 	}
 
+	/**
+	 * Hand every pending batch to its buffer. Batches read before a seek are
+	 * dropped, as clearing the buffers would have dropped them.
+	 */
+	protected void flushPendingBatches(int generation) {
+		// the seek's interrupt is accounted for by the generation; a stale
+		// flag would only make addAll() drop fresh packets
+		Thread.interrupted();
+
+		if (generation != seekGeneration) {
+			dropPendingBatches();
+			return;
+		}
+
+		for (PendingBatch batch : pendingBatches.values()) {
+			flushPendingBatch(batch);
+		}
+	}
+
+	protected void dropPendingBatches() {
+		for (PendingBatch batch : pendingBatches.values()) {
+			for (int i = 0; i < batch.count; i++)
+				MediaLease.releaseElement(batch.packets[i]);
+			Arrays.fill(batch.packets, 0, batch.count, null);
+			batch.count = 0;
+		}
+	}
+
+	private void flushPendingBatch(PendingBatch batch) {
+		if (batch.count == 0)
+			return;
+		// what an interrupted addAll() did not take is ours to release
+		int added = batch.buffer.addAll(batch.packets, batch.count);
+		for (int i = added; i < batch.count; i++)
+			MediaLease.releaseElement(batch.packets[i]);
+		Arrays.fill(batch.packets, 0, batch.count, null);
+		batch.count = 0;
+	}
+
 	@Override
 	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
 		LogUtil.debug("got event "+evt);
-		if (evt.getType() == MediaPlayerEvent.Type.SEEK) {
-			Iterator<Entry<Integer, Buffer>> i = engineRuntime.getStreamToBufferMap().entrySet().iterator();
-			while (i.hasNext()) {
-				i.next().getValue().clear();
-			}
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK
+				|| evt.getType() == MediaPlayerEvent.Type.MEDIA_LOADED) {
+			// the engine fires SEEK (and MEDIA_LOADED on a warm reset) under
+			// the container lock and has already cleared the buffers if it
+			// was asked to
+			seekGeneration++;
 		}
 	}
 }
@@ -31,7 +31,7 @@ public class MediaPlayerEvent extends EventObject {
 		MEDIA_LOADED, PLAY, STOP, PAUSE, UNPAUSE, CLIP_END, ERROR, PICTURE_DECODED, 
 		KEY_FRAME_DECODED, AUDIO_FRAME_DECODED, BUFFER_FULL, BUFFER_EMPTY, 
 		VIDEO_FRAME_PRESENTED, AUDIO_FRAME_PRESENTED, FIRST_VIDEO_FRAME_PRESENTED,
-		STREAM_TIME_TICK, SEEK, PLAY_SPEED_CHANGED
+		STREAM_TIME_TICK, SEEK, BUFFERED_SEEK, PLAY_SPEED_CHANGED, NEXT_ITEM
 	};
 
 	private IVideoPicture picture;
@@ -19,32 +19,46 @@
 
 package com.stainlesscode.mediapipeline.factory;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 import org.apache.commons.pool.BasePoolableObjectFactory;
 
+import com.stainlesscode.mediapipeline.util.NativeMemory;
 import com.xuggle.xuggler.IAudioSamples;
 
 public class IAudioSamplesObjectPoolFactory extends BasePoolableObjectFactory {
 
 	private int bufferSize;
 	private int channels;
-	private Lock nativeLock = new ReentrantLock(false);
+	private NativeMemory memory;
 
 	public IAudioSamplesObjectPoolFactory(int bufferSize, int channels) {
+		this(bufferSize, channels, null);
+	}
+
+	/**
+	 * @param memory
+	 *            accounts for the samples made and destroyed, may be null
+	 */
+	public IAudioSamplesObjectPoolFactory(int bufferSize, int channels,
+			NativeMemory memory) {
 		this.bufferSize = bufferSize;
 		this.channels = channels;
+		this.memory = memory;
 	}
 
 	@Override
 	public Object makeObject() throws Exception {
-		nativeLock.lock();
-		try {
-			return IAudioSamples.make(this.bufferSize, this.channels);
-		} finally {
-			nativeLock.unlock();
-		}
+		IAudioSamples samples = IAudioSamples.make(this.bufferSize,
+				this.channels);
+		if (memory != null)
+			memory.pooled(NativeMemory.SAMPLES, samples.getSize());
+		return samples;
+	}
+
+	@Override
+	public void destroyObject(Object obj) throws Exception {
+		if (memory != null)
+			memory.unpooled(NativeMemory.SAMPLES, ((IAudioSamples) obj)
+					.getSize());
 	}
 
 }
@@ -19,17 +19,12 @@
 
 package com.stainlesscode.mediapipeline.factory;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 import org.apache.commons.pool.BasePoolableObjectFactory;
 
 import com.xuggle.xuggler.IPacket;
 
 public class IPacketObjectPoolFactory extends BasePoolableObjectFactory {
 
-	private Lock nativeLock = new ReentrantLock(false);
-
 //	@Override
 //    public void passivateObject(Object obj) { 
 //		System.out.println("Passivating packet");
@@ -37,12 +32,7 @@ public class IPacketObjectPoolFactory extends BasePoolableObjectFactory {
 	
 	@Override
 	public Object makeObject() throws Exception {
-		nativeLock.lock();
-		try {
-			return IPacket.make();
-		} finally {
-			nativeLock.unlock();
-		}
+		return IPacket.make();
 	}
 
 }
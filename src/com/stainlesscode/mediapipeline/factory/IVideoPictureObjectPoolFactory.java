@@ -19,11 +19,9 @@
 
 package com.stainlesscode.mediapipeline.factory;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 import org.apache.commons.pool.BasePoolableObjectFactory;
 
+import com.stainlesscode.mediapipeline.util.NativeMemory;
 import com.xuggle.xuggler.IVideoPicture;
 import com.xuggle.xuggler.IPixelFormat.Type;
 
@@ -32,22 +30,37 @@ public class IVideoPictureObjectPoolFactory extends BasePoolableObjectFactory {
 	private Type pixelType;
 	private int width;
 	private int height;
-	private Lock nativeCodeLock = new ReentrantLock(false);
+	private NativeMemory memory;
 
 	public IVideoPictureObjectPoolFactory(Type pixelType, int width, int height) {
+		this(pixelType, width, height, null);
+	}
+
+	/**
+	 * @param memory
+	 *            accounts for the pictures made and destroyed, may be null
+	 */
+	public IVideoPictureObjectPoolFactory(Type pixelType, int width,
+			int height, NativeMemory memory) {
 		this.pixelType = pixelType;
 		this.width = width;
 		this.height = height;
+		this.memory = memory;
 	}
 
 	@Override
 	public Object makeObject() throws Exception {
-		nativeCodeLock.lock();
-		try {
-			return IVideoPicture.make(pixelType, width, height);
-		} finally {
-			nativeCodeLock.unlock();
-		}
+		IVideoPicture picture = IVideoPicture.make(pixelType, width, height);
+		if (memory != null)
+			memory.pooled(NativeMemory.PICTURE, picture.getSize());
+		return picture;
+	}
+
+	@Override
+	public void destroyObject(Object obj) throws Exception {
+		if (memory != null)
+			memory.unpooled(NativeMemory.PICTURE, ((IVideoPicture) obj)
+					.getSize());
 	}
 
 }
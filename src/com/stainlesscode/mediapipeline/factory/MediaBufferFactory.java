@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.factory;
+
+import java.lang.reflect.InvocationTargetException;
+
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.SpscMediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.WaitStrategy;
+
+public class MediaBufferFactory {
+
+	public static MediaBuffer createMediaBuffer(String name, int capacity,
+			EngineConfiguration config) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException,
+			NoSuchMethodException, InvocationTargetException {
+		String bufferClassName = config.getConfiguration().get(
+				EngineConfiguration.MEDIA_BUFFER_KEY);
+		MediaBuffer buffer = (MediaBuffer) Class.forName(bufferClassName)
+				.getConstructor(String.class, Integer.class).newInstance(name,
+						capacity);
+
+		if (buffer instanceof SpscMediaBuffer) {
+			String waitStrategyClassName = config.getConfiguration().get(
+					EngineConfiguration.BUFFER_WAIT_STRATEGY_KEY);
+			WaitStrategy waitStrategy = (WaitStrategy) Class.forName(
+					waitStrategyClassName).newInstance();
+			((SpscMediaBuffer) buffer).setWaitStrategy(waitStrategy);
+		}
+
+		return buffer;
+	}
+
+}
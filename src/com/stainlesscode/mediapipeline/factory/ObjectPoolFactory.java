@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.factory;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.EngineSettings;
+import com.stainlesscode.mediapipeline.util.MagazineObjectPool;
+
+public class ObjectPoolFactory {
+
+	/**
+	 * @param size
+	 *            the number of objects the pool is expected to hand out at
+	 *            once, used to bound the idle objects unless the
+	 *            configuration sets a limit
+	 */
+	public static ObjectPool createObjectPool(PoolableObjectFactory factory,
+			EngineSettings settings, int size) throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException,
+			NoSuchMethodException, InvocationTargetException {
+		String poolClassName = settings
+				.getString(EngineConfiguration.OBJECT_POOL_KEY);
+		ObjectPool pool = (ObjectPool) Class.forName(poolClassName)
+				.getConstructor(PoolableObjectFactory.class).newInstance(
+						factory);
+
+		if (pool instanceof MagazineObjectPool) {
+			MagazineObjectPool magazinePool = (MagazineObjectPool) pool;
+			magazinePool.setMagazineSize(settings
+					.getInt(EngineConfiguration.POOL_MAGAZINE_SIZE_KEY));
+			int maxIdle = settings
+					.getInt(EngineConfiguration.POOL_MAX_IDLE_KEY);
+			magazinePool.setMaxIdle(maxIdle > 0 ? maxIdle : size);
+			magazinePool.setLeakTracking(settings
+					.getBoolean(EngineConfiguration.POOL_LEAK_TRACKING_KEY));
+		}
+
+		return pool;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.host;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.StageExecutor;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+
+/**
+ * A single clock thread that ticks the synchronizers of every engine on an
+ * EngineHost, instead of each synchronizer running its own. The thread is
+ * started with the first client and ends with the last one.
+ * 
+ */
+public class ClockService implements Runnable {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(ClockService.class);
+
+	public interface Client {
+		/**
+		 * Advance the client's clock to now. Called on the clock thread,
+		 * must not block.
+		 */
+		void tick();
+	}
+
+	private final StageExecutor stageExecutor;
+	private final long tickMicroseconds;
+	private final Set<Client> clients = new CopyOnWriteArraySet<Client>();
+	private StageHandle clockThread;
+
+	public ClockService(StageExecutor stageExecutor, long tickMicroseconds) {
+		this.stageExecutor = stageExecutor;
+		this.tickMicroseconds = tickMicroseconds;
+	}
+
+	public synchronized void register(Client client) {
+		clients.add(client);
+		if (clockThread == null || !clockThread.isAlive()) {
+			clockThread = stageExecutor.execute(this, "Host Clock Thread",
+					StageExecutor.CLOCK_PRIORITY);
+		}
+	}
+
+	public synchronized void unregister(Client client) {
+		clients.remove(client);
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (clients.isEmpty()) {
+					clockThread = null;
+					break;
+				}
+			}
+
+			for (Client client : clients) {
+				try {
+					client.tick();
+				} catch (Throwable t) {
+					LogUtil.error("clock client " + client + " failed", t);
+				}
+			}
+
+			try {
+				TimeUnit.MICROSECONDS.sleep(tickMicroseconds);
+			} catch (InterruptedException e) {
+				// re-check the clients
+			}
+		}
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("thread shutting down gracefully");
+	}
+
+	public synchronized void shutdown() {
+		clients.clear();
+		if (clockThread != null)
+			clockThread.interrupt();
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.host;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.Engine;
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.EngineMetrics;
+import com.stainlesscode.mediapipeline.EngineSettings;
+import com.stainlesscode.mediapipeline.StageExecutor;
+import com.stainlesscode.mediapipeline.factory.StageExecutorFactory;
+import com.stainlesscode.mediapipeline.util.NativeMemory;
+import com.stainlesscode.mediapipeline.util.ThreadWatchdog;
+import com.xuggle.xuggler.IStreamCoder;
+
+/**
+ * Creates engines that share one set of infrastructure: the stage executor,
+ * the object pools, one clock thread for all synchronizers, one thread
+ * watchdog and a registry of every engine's metrics. Use it when many
+ * engines run in the same JVM.
+ * 
+ * The host also admits engines against its budgets (see the HOST_*_KEY
+ * settings): a maximum engine count, checked by createEngine(), and memory
+ * and CPU budgets, checked when an engine starts playing media. Memory is
+ * estimated from the engine's frame buffer and frame history sizes, CPU as
+ * decoded pixels per second. A refused engine gets an
+ * EngineAdmissionException.
+ * 
+ * The native memory actually held by the engines' media is accounted to the
+ * host's NativeMemory as well; over its budget (HOST_NATIVE_MEMORY_BUDGET_KEY)
+ * every engine's demultiplexer holds off reading.
+ * 
+ */
+public class EngineHost {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(EngineHost.class);
+
+	/**
+	 * What an admitted engine has reserved from the host's budgets
+	 */
+	private static class Reservation {
+		long memory;
+		long pixelsPerSecond;
+	}
+
+	private final EngineConfiguration hostConfiguration;
+	private final StageExecutor stageExecutor;
+	private final ClockService clockService;
+	private final EngineMetrics metrics = new EngineMetrics();
+	private final NativeMemory nativeMemory;
+	private final SharedObjectPools pools;
+
+	private final ConcurrentMap<String, Engine> engines = new ConcurrentHashMap<String, Engine>();
+	private final Map<Engine, Reservation> reservations = new HashMap<Engine, Reservation>();
+
+	private final int maxEngines;
+	private final long memoryBudget;
+	private final long cpuBudget;
+
+	private ThreadWatchdog watchdog;
+
+	public EngineHost(EngineConfiguration hostConfiguration) {
+		// rejects unknown keys and malformed values up front
+		EngineSettings settings = new EngineSettings(hostConfiguration);
+		this.hostConfiguration = settings.getConfiguration();
+		try {
+			this.stageExecutor = StageExecutorFactory
+					.createStageExecutor(settings);
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		this.clockService = new ClockService(stageExecutor, settings
+				.getLong(EngineConfiguration.HOST_CLOCK_TICK_KEY));
+		this.maxEngines = settings
+				.getInt(EngineConfiguration.HOST_MAX_ENGINES_KEY);
+		this.memoryBudget = settings
+				.getLong(EngineConfiguration.HOST_MEMORY_BUDGET_KEY);
+		this.cpuBudget = settings
+				.getLong(EngineConfiguration.HOST_CPU_BUDGET_KEY);
+		this.nativeMemory = new NativeMemory(null, metrics, settings
+				.getLong(EngineConfiguration.HOST_NATIVE_MEMORY_BUDGET_KEY));
+		this.pools = new SharedObjectPools(nativeMemory);
+	}
+
+	/**
+	 * Construct an engine on this host
+	 * 
+	 * @param name
+	 *            unique name, used for the metrics registry
+	 */
+	public Engine createEngine(String name, EngineConfiguration config) {
+		synchronized (engines) {
+			if (engines.containsKey(name))
+				throw new IllegalArgumentException("an engine named " + name
+						+ " already exists");
+			if (maxEngines > 0 && engines.size() >= maxEngines)
+				throw new EngineAdmissionException("host is full ("
+						+ maxEngines + " engines), refusing " + name);
+
+			Engine engine = Engine.createEngine(config, this);
+			engine.getEngineRuntime().setName(name);
+			engines.put(name, engine);
+			metrics.set("host.engines", engines.size());
+			return engine;
+		}
+	}
+
+	/**
+	 * Stop the engine and give back everything it held on this host
+	 */
+	public void releaseEngine(Engine engine) {
+		engine.stop();
+		synchronized (engines) {
+			engines.remove(engine.getEngineRuntime().getName());
+			metrics.set("host.engines", engines.size());
+		}
+	}
+
+	/**
+	 * Reserve memory and CPU for the media an engine has just loaded. Called
+	 * by the engine before it starts its stages.
+	 * 
+	 * @throws EngineAdmissionException
+	 *             if either budget would be exceeded
+	 */
+	public synchronized void admit(Engine engine) {
+		release(engine);
+
+		Reservation reservation = estimate(engine);
+
+		long memory = metrics.getValue("host.memory.reserved");
+		long pixels = metrics.getValue("host.cpu.reserved");
+
+		String name = engine.getEngineRuntime().getName();
+		if (memoryBudget > 0 && memory + reservation.memory > memoryBudget)
+			throw new EngineAdmissionException(name + " needs "
+					+ reservation.memory + " bytes, " + (memoryBudget - memory)
+					+ " left");
+		if (cpuBudget > 0 && pixels + reservation.pixelsPerSecond > cpuBudget)
+			throw new EngineAdmissionException(name + " needs "
+					+ reservation.pixelsPerSecond + " pixels/s, "
+					+ (cpuBudget - pixels) + " left");
+
+		reservations.put(engine, reservation);
+		metrics.add("host.memory.reserved", reservation.memory);
+		metrics.add("host.cpu.reserved", reservation.pixelsPerSecond);
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("admitted " + name + " (" + reservation.memory
+					+ " bytes, " + reservation.pixelsPerSecond + " pixels/s)");
+	}
+
+	/**
+	 * Give back what an engine reserved in admit(). Called by the engine when
+	 * it stops.
+	 */
+	public synchronized void release(Engine engine) {
+		Reservation reservation = reservations.remove(engine);
+		if (reservation != null) {
+			metrics.add("host.memory.reserved", -reservation.memory);
+			metrics.add("host.cpu.reserved", -reservation.pixelsPerSecond);
+		}
+	}
+
+	protected Reservation estimate(Engine engine) {
+		EngineSettings settings = engine.getSettings();
+		IStreamCoder videoCoder = engine.getEngineRuntime().getVideoCoder();
+		Reservation reservation = new Reservation();
+		if (videoCoder == null)
+			return reservation;
+
+		// decoded frames are converted to BGR24
+		long frameBytes = 3L * videoCoder.getWidth() * videoCoder.getHeight();
+
+		long frameBuffer = frameBytes
+				* settings.getInt(EngineConfiguration.VIDEO_FRAME_BUFFER_SIZE_KEY);
+		long frameBufferBudget = settings
+				.getLong(EngineConfiguration.VIDEO_FRAME_BUFFER_BYTES_KEY);
+		if (frameBufferBudget > 0)
+			frameBuffer = Math.min(frameBuffer, frameBufferBudget);
+
+		long history = frameBytes
+				* settings.getInt(EngineConfiguration.FRAME_HISTORY_SIZE_KEY);
+		long historyBudget = settings
+				.getLong(EngineConfiguration.FRAME_HISTORY_BYTES_KEY);
+		if (historyBudget > 0)
+			history = Math.min(history, historyBudget);
+
+		reservation.memory = frameBuffer + history;
+
+		double frameRate = videoCoder.getFrameRate() == null ? 0
+				: videoCoder.getFrameRate().getValue();
+		reservation.pixelsPerSecond = (long) (videoCoder.getWidth()
+				* videoCoder.getHeight() * frameRate);
+
+		return reservation;
+	}
+
+	/**
+	 * Start the host's thread watchdog if it isn't running yet
+	 */
+	public synchronized void startWatchdog() {
+		if (watchdog == null) {
+			watchdog = new ThreadWatchdog();
+			stageExecutor.execute(watchdog, "Thread Watchdog Thread",
+					StageExecutor.HOUSEKEEPING_PRIORITY);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the host's metrics and those of every engine,
+	 *         by engine name ("host" for the host itself)
+	 */
+	public Map<String, Map<String, Long>> getMetrics() {
+		Map<String, Map<String, Long>> all = new TreeMap<String, Map<String, Long>>();
+		all.put("host", metrics.snapshot());
+		for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+			all.put(entry.getKey(), entry.getValue().getEngineRuntime()
+					.getMetrics().snapshot());
+		}
+		return all;
+	}
+
+	public Engine getEngine(String name) {
+		return engines.get(name);
+	}
+
+	public int getEngineCount() {
+		return engines.size();
+	}
+
+	/**
+	 * Stop every engine and release the host's threads and pools
+	 */
+	public void shutdown() {
+		for (Engine engine : engines.values()) {
+			releaseEngine(engine);
+		}
+		if (watchdog != null)
+			watchdog.setMarkedForDeath(true);
+		clockService.shutdown();
+		stageExecutor.shutdown();
+		pools.clear();
+	}
+
+	public EngineConfiguration getHostConfiguration() {
+		return hostConfiguration;
+	}
+
+	public StageExecutor getStageExecutor() {
+		return stageExecutor;
+	}
+
+	public SharedObjectPools getPools() {
+		return pools;
+	}
+
+	public ClockService getClockService() {
+		return clockService;
+	}
+
+	public EngineMetrics getHostMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the native memory held by the media of all the engines
+	 */
+	public NativeMemory getNativeMemory() {
+		return nativeMemory;
+	}
+
+}
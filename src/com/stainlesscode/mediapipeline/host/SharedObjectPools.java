@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.host;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.pool.ObjectPool;
+
+import com.stainlesscode.mediapipeline.factory.IAudioSamplesObjectPoolFactory;
+import com.stainlesscode.mediapipeline.factory.IPacketObjectPoolFactory;
+import com.stainlesscode.mediapipeline.factory.IVideoPictureObjectPoolFactory;
+import com.stainlesscode.mediapipeline.util.MagazineObjectPool;
+import com.stainlesscode.mediapipeline.util.NativeMemory;
+import com.xuggle.xuggler.IPixelFormat;
+
+/**
+ * Object pools shared by all the engines of an EngineHost. Picture pools are
+ * keyed by pixel format and dimensions and sample pools by size and channel
+ * count, so engines playing media of the same shape draw from the same pool.
+ * The pools are MagazineObjectPools with the default settings. The pictures
+ * and samples they make are accounted to the host's NativeMemory.
+ * 
+ */
+public class SharedObjectPools {
+
+	private ConcurrentMap<String, ObjectPool> pools = new ConcurrentHashMap<String, ObjectPool>();
+
+	private final NativeMemory memory;
+
+	private ObjectPool packetPool = new MagazineObjectPool(
+			new IPacketObjectPoolFactory());
+
+	public SharedObjectPools() {
+		this(null);
+	}
+
+	public SharedObjectPools(NativeMemory memory) {
+		this.memory = memory;
+	}
+
+	public ObjectPool getPicturePool(IPixelFormat.Type pixelType, int width,
+			int height) {
+		String key = "picture:" + pixelType + ":" + width + "x" + height;
+		ObjectPool pool = pools.get(key);
+		if (pool == null) {
+			ObjectPool newPool = new MagazineObjectPool(
+					new IVideoPictureObjectPoolFactory(pixelType, width,
+							height, memory));
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null)
+				pool = newPool;
+		}
+		return pool;
+	}
+
+	public ObjectPool getAudioSamplePool(int numSamples, int channels) {
+		String key = "samples:" + numSamples + ":" + channels;
+		ObjectPool pool = pools.get(key);
+		if (pool == null) {
+			ObjectPool newPool = new MagazineObjectPool(
+					new IAudioSamplesObjectPoolFactory(numSamples, channels,
+							memory));
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null)
+				pool = newPool;
+		}
+		return pool;
+	}
+
+	public ObjectPool getPacketPool() {
+		return packetPool;
+	}
+
+	/**
+	 * @return active/idle counts for every pool, by key
+	 */
+	public Map<String, String> getUsage() {
+		Map<String, String> usage = new TreeMap<String, String>();
+		usage.put("packet", packetPool.getNumActive() + "/"
+				+ packetPool.getNumIdle());
+		for (Map.Entry<String, ObjectPool> entry : pools.entrySet()) {
+			ObjectPool pool = entry.getValue();
+			usage.put(entry.getKey(), pool.getNumActive() + "/"
+					+ pool.getNumIdle());
+		}
+		return usage;
+	}
+
+	public void clear() {
+		try {
+			packetPool.clear();
+			for (ObjectPool pool : pools.values()) {
+				pool.clear();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
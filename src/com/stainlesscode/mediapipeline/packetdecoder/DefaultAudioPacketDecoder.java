@@ -20,16 +20,21 @@
 package com.stainlesscode.mediapipeline.packetdecoder;
 
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.commons.collections.Buffer;
 import org.apache.commons.collections.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.PacketDecoder;
-import com.stainlesscode.mediapipeline.sync.MultispeedVptsSynchronizer;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.IPacket;
 
@@ -39,20 +44,66 @@ public class DefaultAudioPacketDecoder extends EngineThread implements
 	private static Logger LogUtil = LoggerFactory
 			.getLogger(DefaultAudioPacketDecoder.class);
 
+	// bound on sample sets drained from the coder at the end of an item
+	private static final int FLUSH_LIMIT = 64;
+
 	private EngineRuntime engineRuntime;
-	private IAudioSamples samples = null;
+	private MediaLease<IAudioSamples> samples = null;
 	private boolean nextFrame = true;
 	private boolean firstTimestamp = true;
+	private boolean usePools;
+
+	// bumped by reset(); a packet polled before a warm reset belongs to the
+	// old container and is dropped
+	private volatile int resets;
+
+	// staged samples of the next playlist item, published by this thread
+	private final AtomicReference<Buffer> handoff = new AtomicReference<Buffer>();
+
+	// set by drain(), served by this thread once the packet buffer is empty
+	private volatile boolean drainRequested;
+	private volatile boolean drained;
 
 	public DefaultAudioPacketDecoder() {
 	}
 
 	public void init(EngineRuntime engineRuntime) {
 		this.engineRuntime = engineRuntime;
+		this.usePools = engineRuntime.getEngine().getSettings()
+				.isUseObjectPools();
 	}
 
-	@SuppressWarnings("unchecked")
-	public void decodePacket(IPacket packet) {
+	public void decodePacket(MediaLease<IPacket> packet) {
+		decodePacket(packet, resets);
+	}
+
+	/**
+	 * Decode a packet with the decode lock held only around the coder, and
+	 * publish the samples it completes after letting go.
+	 */
+	private void decodePacket(MediaLease<IPacket> packet, int generation) {
+		MediaLease<IAudioSamples> complete;
+		// a warm reset swaps the coder under this lock
+		engineRuntime.getAudioDecodeLock().lock();
+		try {
+			if (generation != resets) {
+				packet.release();
+				return;
+			}
+			complete = decode(packet);
+		} finally {
+			engineRuntime.getAudioDecodeLock().unlock();
+		}
+
+		if (complete != null)
+			publish(complete);
+	}
+
+	/**
+	 * @return the samples if the packet completed a set, otherwise null
+	 */
+	private MediaLease<IAudioSamples> decode(MediaLease<IPacket> lease) {
+		IPacket packet = lease.get();
 		if (LogUtil.isDebugEnabled()) {
 			LogUtil.debug("buffer size = "
 					+ engineRuntime.getAudioFrameBuffer().size());
@@ -65,68 +116,44 @@ public class DefaultAudioPacketDecoder extends EngineThread implements
 					LogUtil.debug("starting a new frame");
 				}
 
-				if (engineRuntime.getEngine().getEngineConfiguration()
-						.getConfigurationValueAsBoolean(
-								EngineConfiguration.USE_OBJECT_POOLS)) {
-					samples = (IAudioSamples) engineRuntime
-							.getAudioSamplePool().borrowObject();
-				} else {
-					samples = IAudioSamples.make(1024, engineRuntime
-							.getAudioCoder().getChannels());
-				}
-
+				samples = acquireSamples();
 				nextFrame = false;
 			}
 
-			int offset = 0;
+			try {
+				int offset = 0;
 
-			/*
-			 * Keep going until we've processed all data
-			 */
-			while (offset < packet.getSize()) {
-				int bytesDecoded = engineRuntime.getAudioCoder().decodeAudio(
-						samples, packet, offset);
-				if (bytesDecoded < 0)
-					throw new RuntimeException("got error decoding audio");
-				offset += bytesDecoded;
-				if (LogUtil.isDebugEnabled())
-					LogUtil.debug("decoded " + offset
-							+ " total bytes from packet");
+				/*
+				 * Keep going until we've processed all data
+				 */
+				while (offset < packet.getSize()) {
+					int bytesDecoded = engineRuntime.getAudioCoder()
+							.decodeAudio(samples.get(), packet, offset);
+					if (bytesDecoded < 0)
+						throw new RuntimeException("got error decoding audio");
+					offset += bytesDecoded;
+					if (LogUtil.isDebugEnabled())
+						LogUtil.debug("decoded " + offset
+								+ " total bytes from packet");
+				}
+			} finally {
+				lease.release();
 			}
 
-			returnBorrowed(packet);
-
 			/*
 			 * Some decoder will consume data in a packet, but will not be able
 			 * to construct a full set of samples yet. Therefore you should
 			 * always check if you got a complete set of samples from the
 			 * decoder
 			 */
-			if (samples.isComplete()) {
-				try {
-
-					if (firstTimestamp) {
-						LogUtil.info("First audio PTS is "
-								+ samples.getTimeStamp());
-						firstTimestamp = false;
-					}
-
-					// XXX audio drives sync with this code
-					if (!engineRuntime.getSynchronizer().isStreamTimeZeroSet()) {
-
-						engineRuntime.getSynchronizer().setStreamTimeZero(
-								samples.getTimeStamp(), true);
-					}
-
-					engineRuntime.getAudioFrameBuffer().add(samples);
-					if (LogUtil.isDebugEnabled()) {
-						LogUtil.debug("$$STORE AUDIO FRAME "
-								+ samples.getTimeStamp());
-					}
-					nextFrame = true;
-				} catch (BufferOverflowException e) {
-					e.printStackTrace();
+			if (samples.get().isComplete()) {
+				if (firstTimestamp) {
+					LogUtil.info("First audio PTS is "
+							+ samples.get().getTimeStamp());
+					firstTimestamp = false;
 				}
+				nextFrame = true;
+				return samples;
 			}
 		} catch (NoSuchElementException e) {
 			e.printStackTrace();
@@ -135,46 +162,208 @@ public class DefaultAudioPacketDecoder extends EngineThread implements
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		return null;
 	}
 
+	/**
+	 * @return false if the frame buffer refused the samples because of a seek
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean publish(MediaLease<IAudioSamples> complete) {
+		long timestamp = complete.get().getTimeStamp();
+		// XXX audio drives sync with this code
+		if (!engineRuntime.getSynchronizer().isStreamTimeZeroSet()) {
+
+			engineRuntime.getSynchronizer().setStreamTimeZero(timestamp, true);
+		}
+
+		boolean added = false;
+		try {
+			added = engineRuntime.getAudioFrameBuffer().add(complete);
+			if (LogUtil.isDebugEnabled()) {
+				LogUtil.debug("$$STORE AUDIO FRAME " + timestamp);
+			}
+		} catch (BufferOverflowException e) {
+			e.printStackTrace();
+		} finally {
+			if (!added)
+				complete.release();
+		}
+		return added;
+	}
+
+	/**
+	 * Publish the samples handed over by a playlist splice. This thread does
+	 * it, so the frame buffer keeps a single producer and no lock is held
+	 * while it waits for room.
+	 */
+	@SuppressWarnings("unchecked")
+	private void publishHandoff() {
+		Buffer frames = handoff.getAndSet(null);
+		if (frames == null)
+			return;
+
+		int generation = resets;
+		while (!frames.isEmpty()) {
+			MediaLease<IAudioSamples> complete = (MediaLease<IAudioSamples>) frames
+					.remove();
+			// a warm reset or a seek drops the rest
+			if (generation != resets) {
+				complete.release();
+				break;
+			}
+			if (!publish(complete))
+				break;
+		}
+		engineRuntime.getLeases().releaseAll(frames);
+	}
+
+	public void drain() {
+		drained = false;
+		drainRequested = true;
+	}
+
+	public boolean isDrained() {
+		return drained;
+	}
+
+	/**
+	 * Serve a drain(): feed the coder empty packets until it gives up no more
+	 * samples. Every packet polled before was decoded on this thread already.
+	 */
+	private void finishItem(int generation) {
+		IPacket empty = IPacket.make();
+		for (int i = 0; i < FLUSH_LIMIT; i++) {
+			MediaLease<IAudioSamples> complete = decodeDelayed(empty,
+					generation);
+			if (complete == null || !publish(complete))
+				break;
+		}
+
+		drainRequested = false;
+		drained = true;
+		engineRuntime.getStageScheduler().signalAll();
+	}
+
+	/**
+	 * @return samples the coder was holding back, or null once it has none
+	 *         left or a reset intervened
+	 */
+	private MediaLease<IAudioSamples> decodeDelayed(IPacket empty,
+			int generation) {
+		engineRuntime.getAudioDecodeLock().lock();
+		try {
+			if (generation != resets)
+				return null;
+			if (nextFrame) {
+				samples = acquireSamples();
+				nextFrame = false;
+			}
+			if (engineRuntime.getAudioCoder().decodeAudio(samples.get(),
+					empty, 0) < 0
+					|| !samples.get().isComplete())
+				return null;
+			nextFrame = true;
+			return samples;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			engineRuntime.getAudioDecodeLock().unlock();
+		}
+	}
+
+	private MediaLease<IAudioSamples> acquireSamples() throws Exception {
+		if (usePools)
+			return engineRuntime.getLeases().acquire(
+					(IAudioSamples) engineRuntime.getAudioSamplePool()
+							.borrowObject(),
+					engineRuntime.getAudioSamplePool(),
+					MediaLeases.AUDIO_DECODE_STAGE);
+		return engineRuntime.getLeases().acquire(
+				IAudioSamples.make(engineRuntime.getAudioSamplesSize(),
+						engineRuntime.getAudioCoder().getChannels()), null,
+				MediaLeases.AUDIO_DECODE_STAGE);
+	}
+
+	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
+		MediaBuffer packetBuffer = (MediaBuffer) engineRuntime
+				.getAudioPacketBuffer();
+
+		// audio packets are small and many; take whatever is buffered in one
+		// go rather than paying for a remove() per packet
+		Object[] batch = new Object[engineRuntime.getEngine().getSettings()
+				.getBatchSize()];
+
 		while (!isMarkedForDeath()) {
-			if (engineRuntime.getAudioPacketBuffer().isEmpty()) {
-				if (clipEnded)
+			if (handoff.get() != null)
+				publishHandoff();
+
+			int generation = resets;
+			int count = packetBuffer.drainTo(batch, batch.length);
+
+			if (count == 0) {
+				// blocks until the demultiplexer publishes a packet
+				Object packet = packetBuffer.poll(StageScheduler.IDLE_MILLIS,
+						TimeUnit.MILLISECONDS);
+				if (packet != null) {
+					batch[0] = packet;
+					count = 1;
+				} else if (drainRequested && packetBuffer.isEmpty()) {
+					finishItem(generation);
+				} else if (clipEnded && packetBuffer.isEmpty()) {
 					setMarkedForDeath(true);
-				else
-					continue;
+				}
 			}
-			IPacket packet = (IPacket) engineRuntime.getAudioPacketBuffer()
-					.remove();
-			if (packet != null) {
+
+			for (int i = 0; i < count; i++) {
+				MediaLease<IPacket> packet = (MediaLease<IPacket>) batch[i];
+				batch[i] = null;
+				if (packet == null)
+					continue;
 				if (LogUtil.isDebugEnabled()) {
 					LogUtil.debug("$$DECODE AUDIO PACKET "
-							+ packet.getTimeStamp());
-				}
-				decodePacket(packet);
-			} else {
-				if (LogUtil.isDebugEnabled()) {
-					LogUtil.debug("$$DECODE NULL AUDIO PACKET");
+							+ packet.get().getTimeStamp());
 				}
+				decodePacket(packet, generation);
 			}
 		}
 
 		LogUtil.info("thread shutting down gracefully");
 	}
 
-	private void returnBorrowed(IPacket packet) {
-		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getPacketPool().returnObject(packet);
-			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * Called with the decode lock held.
+	 */
+	public void reset() {
+		resets++;
+		drainRequested = false;
+		clearItem();
+
+		Buffer frames = handoff.getAndSet(null);
+		if (frames != null)
+			engineRuntime.getLeases().releaseAll(frames);
+	}
+
+	/**
+	 * Called with the decode lock held, after drain().
+	 */
+	public void handOff(Buffer frames) {
+		clearItem();
+		Buffer stale = handoff.getAndSet(frames);
+		if (stale != null)
+			engineRuntime.getLeases().releaseAll(stale);
+	}
+
+	private void clearItem() {
+		// the pool it came from may be rebuilt for the new media
+		if (samples != null && !nextFrame)
+			samples.release();
+		samples = null;
+		nextFrame = true;
+		firstTimestamp = true;
 	}
 
 }
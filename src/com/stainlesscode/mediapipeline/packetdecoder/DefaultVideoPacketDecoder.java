@@ -20,16 +20,21 @@
 package com.stainlesscode.mediapipeline.packetdecoder;
 
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.commons.collections.Buffer;
 import org.apache.commons.collections.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.PacketDecoder;
-import com.stainlesscode.mediapipeline.sync.MultispeedVptsSynchronizer;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.xuggle.xuggler.IError;
 import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IPixelFormat;
@@ -48,59 +53,100 @@ public class DefaultVideoPacketDecoder extends EngineThread implements
 
 	private static Logger LogUtil = LoggerFactory
 			.getLogger(DefaultVideoPacketDecoder.class);
+
+	// bound on frames drained from the coder at the end of an item
+	private static final int FLUSH_LIMIT = 64;
 	private EngineRuntime engineRuntime;
-	private IVideoPicture picture = null;
+	private MediaLease<IVideoPicture> picture = null;
 	private boolean firstTimestamp = true;
+	private boolean usePools;
+
+	// bumped by reset(); a packet polled before a warm reset belongs to the
+	// old container and is dropped
+	private volatile int resets;
+
+	// staged frames of the next playlist item, published by this thread
+	private final AtomicReference<Buffer> handoff = new AtomicReference<Buffer>();
+
+	// set by drain(), served by this thread once the packet buffer is empty
+	private volatile boolean drainRequested;
+	private volatile boolean drained;
 
 	public DefaultVideoPacketDecoder() {
 	}
 
 	public void init(EngineRuntime engineRuntime) {
 		this.engineRuntime = engineRuntime;
+		this.usePools = engineRuntime.getEngine().getSettings()
+				.isUseObjectPools();
 	}
 
-	public void decodePacket(IPacket packet) {
-		if (LogUtil.isDebugEnabled())
-			LogUtil.debug("decode video packet " + packet.getTimeStamp());
+	public void decodePacket(MediaLease<IPacket> packet) {
+		decodePacket(packet, resets);
+	}
 
+	/**
+	 * Decode a packet with the decode lock held only around the coder and
+	 * resampler, and publish the frame it completes after letting go.
+	 */
+	private void decodePacket(MediaLease<IPacket> packet, int generation) {
+		MediaLease<IVideoPicture> frame;
+		// a warm reset swaps the coder under this lock
+		engineRuntime.getVideoDecodeLock().lock();
 		try {
-			if (picture == null) {
-				if (engineRuntime.getEngine().getEngineConfiguration()
-						.getConfigurationValueAsBoolean(
-								EngineConfiguration.USE_OBJECT_POOLS)) {
-					picture = (IVideoPicture) engineRuntime.getRawPicturePool()
-							.borrowObject();
-				} else {
-					picture = IVideoPicture.make(engineRuntime.getVideoCoder()
-							.getPixelType(), engineRuntime.getVideoCoder()
-							.getWidth(), engineRuntime.getVideoCoder()
-							.getHeight());
-				}
+			if (generation != resets) {
+				packet.release();
+				return;
 			}
+			frame = decode(packet);
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
 
-			int offset = 0;
-			while (offset < packet.getSize()) {
-				int bytesDecoded = engineRuntime.getVideoCoder().decodeVideo(
-						picture, packet, offset);
+		if (frame == null)
+			return;
 
-				if (bytesDecoded < 0)
-					throw new RuntimeException("got error decoding video "
-							+ bytesDecoded);
-				offset += bytesDecoded;
-			}
+		try {
+			publish(frame);
+		} catch (BufferOverflowException e) {
+			// dropped, the frame was released
+		}
+	}
 
-			returnBorrowed(packet);
+	/**
+	 * @return the resampled frame if the packet completed one, otherwise null
+	 */
+	private MediaLease<IVideoPicture> decode(MediaLease<IPacket> lease) {
+		IPacket packet = lease.get();
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("decode video packet " + packet.getTimeStamp());
 
-			if (picture.isComplete()) {
-				try {
+		try {
+			ensurePicture();
+
+			try {
+				int offset = 0;
+				while (offset < packet.getSize()) {
+					int bytesDecoded = engineRuntime.getVideoCoder()
+							.decodeVideo(picture.get(), packet, offset);
 
-					if (firstTimestamp) {
-						LogUtil.info("First video PTS is "
-								+ picture.getTimeStamp());
-						firstTimestamp = false;
-					}
+					if (bytesDecoded < 0)
+						throw new RuntimeException("got error decoding video "
+								+ bytesDecoded);
+					offset += bytesDecoded;
+				}
+			} finally {
+				lease.release();
+			}
+
+			if (picture.get().isComplete()) {
+				if (firstTimestamp) {
+					LogUtil.info("First video PTS is "
+							+ picture.get().getTimeStamp());
+					firstTimestamp = false;
+				}
 
-					// XXX video drives sync with this code.
+				// XXX video drives sync with this code.
 //					if (!((MultispeedVptsSynchronizer) engineRuntime
 //							.getSynchronizer()).isStreamTimeZeroSet()) {
 //
@@ -109,16 +155,12 @@ public class DefaultVideoPacketDecoder extends EngineThread implements
 //								.getTimeStamp(), true);
 //					}
 
-					resampleAndCache(picture);
-					if (engineRuntime.getEngine().getEngineConfiguration()
-							.getConfigurationValueAsBoolean(
-									EngineConfiguration.USE_OBJECT_POOLS)) {
-						engineRuntime.getRawPicturePool().returnObject(picture);
-					}
-					picture = null;
-					return;
-				} catch (BufferOverflowException e) {
-					return;
+				MediaLease<IVideoPicture> raw = picture;
+				picture = null;
+				try {
+					return resample(raw.get());
+				} finally {
+					raw.release();
 				}
 			}
 		} catch (NoSuchElementException e) {
@@ -128,12 +170,60 @@ public class DefaultVideoPacketDecoder extends EngineThread implements
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		return null;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void resampleAndCache(IVideoPicture picture2)
+	/**
+	 * @return a frame the coder was holding back, or null once it has none
+	 *         left or a reset intervened
+	 */
+	private MediaLease<IVideoPicture> decodeDelayed(IPacket empty,
+			int generation) {
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			if (generation != resets)
+				return null;
+			ensurePicture();
+			if (engineRuntime.getVideoCoder().decodeVideo(picture.get(),
+					empty, 0) < 0
+					|| !picture.get().isComplete())
+				return null;
+
+			MediaLease<IVideoPicture> raw = picture;
+			picture = null;
+			try {
+				return resample(raw.get());
+			} finally {
+				raw.release();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+	}
+
+	private void ensurePicture() throws Exception {
+		if (picture != null)
+			return;
+		if (usePools) {
+			picture = engineRuntime.getLeases().acquire(
+					(IVideoPicture) engineRuntime.getRawPicturePool()
+							.borrowObject(), engineRuntime.getRawPicturePool(),
+					MediaLeases.VIDEO_DECODE_STAGE);
+		} else {
+			picture = engineRuntime.getLeases().acquire(
+					IVideoPicture.make(engineRuntime.getVideoCoder()
+							.getPixelType(), engineRuntime.getVideoCoder()
+							.getWidth(), engineRuntime.getVideoCoder()
+							.getHeight()), null, MediaLeases.VIDEO_DECODE_STAGE);
+		}
+	}
+
+	private MediaLease<IVideoPicture> resample(IVideoPicture picture)
 			throws NoSuchElementException, IllegalStateException, Exception {
-		IVideoPicture newPic = null;
+		MediaLease<IVideoPicture> newPic = null;
 		/*
 		 * If the resampler is not null, that means we didn't get the video in
 		 * BGR24 format and need to convert it into BGR24 format.
@@ -141,72 +231,204 @@ public class DefaultVideoPacketDecoder extends EngineThread implements
 		if (engineRuntime.getResampler() != null) {
 			// we must resample
 
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				newPic = (IVideoPicture) engineRuntime
-						.getResampledPicturePool().borrowObject();
+			if (usePools) {
+				newPic = engineRuntime.getLeases().acquire(
+						(IVideoPicture) engineRuntime.getResampledPicturePool()
+								.borrowObject(),
+						engineRuntime.getResampledPicturePool(),
+						MediaLeases.VIDEO_DECODE_STAGE);
 			} else {
-				newPic = IVideoPicture.make(engineRuntime.getResampler()
-						.getOutputPixelFormat(), engineRuntime.getResampler()
-						.getOutputWidth(), engineRuntime.getResampler()
-						.getOutputHeight());
+				newPic = engineRuntime.getLeases().acquire(
+						IVideoPicture.make(engineRuntime.getResampler()
+								.getOutputPixelFormat(), engineRuntime
+								.getResampler().getOutputWidth(),
+								engineRuntime.getResampler().getOutputHeight()),
+						null, MediaLeases.VIDEO_DECODE_STAGE);
 			}
 
-			int errno = engineRuntime.getResampler().resample(newPic, picture);
+			int errno = engineRuntime.getResampler().resample(newPic.get(),
+					picture);
 			if (errno < 0) {
+				newPic.release();
 				IError err = IError.make(errno);
 				throw new RuntimeException("could not resample video: "
 						+ err.getDescription());
 			}
 		}
 
-		if (newPic.getPixelType() != IPixelFormat.Type.BGR24)
+		if (newPic.get().getPixelType() != IPixelFormat.Type.BGR24) {
+			newPic.release();
 			throw new RuntimeException("could not decode video"
 					+ " as BGR 24 bit data");
+		}
 
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("$$DECODE VIDEO " + picture.getTimeStamp());
+
+		// the lease on newPic goes with it, the video player releases it
+		return newPic;
+	}
+
+	/**
+	 * Hand a decoded frame to the frame buffer, through the reorder window if
+	 * there is one.
+	 * 
+	 * @return false if the frame buffer refused the frame because of a seek
+	 */
+	@SuppressWarnings("unchecked")
+	boolean publish(MediaLease<IVideoPicture> frame) {
+		FrameReorderWindow window = engineRuntime.getFrameReorderWindow();
+		if (window != null) {
+			frame = window.push(frame);
+			if (frame == null)
+				return true;
+		}
+
+		boolean added = false;
 		try {
-			if (LogUtil.isDebugEnabled())
-				LogUtil.debug("$$DECODE VIDEO " + picture.getTimeStamp());
-			engineRuntime.getVideoFrameBuffer().add(newPic.copyReference());
-		} catch (BufferOverflowException e) {
-			throw e;
+			added = engineRuntime.getVideoFrameBuffer().add(frame);
+		} finally {
+			if (!added)
+				frame.release();
 		}
+		return added;
+	}
 
-		// borrowed newPic is returned from the VideoOutput implementation
+	/**
+	 * Publish the frames handed over by a playlist splice. This thread does
+	 * it, so the frame buffer keeps a single producer and no lock is held
+	 * while it waits for room.
+	 */
+	@SuppressWarnings("unchecked")
+	private void publishHandoff() {
+		Buffer frames = handoff.getAndSet(null);
+		if (frames == null)
+			return;
+
+		int generation = resets;
+		while (!frames.isEmpty()) {
+			MediaLease<IVideoPicture> frame = (MediaLease<IVideoPicture>) frames
+					.remove();
+			// a warm reset or a seek drops the rest
+			if (generation != resets) {
+				frame.release();
+				break;
+			}
+			if (!publish(frame))
+				break;
+		}
+		engineRuntime.getLeases().releaseAll(frames);
+	}
+
+	/**
+	 * Release what the reorder window still holds, in order, to the frame
+	 * buffer. Called when the clip has no more packets.
+	 */
+	@SuppressWarnings("unchecked")
+	void flushReorderWindow() {
+		FrameReorderWindow window = engineRuntime.getFrameReorderWindow();
+		if (window == null)
+			return;
+		MediaLease<IVideoPicture> frame;
+		while ((frame = window.poll()) != null) {
+			if (!engineRuntime.getVideoFrameBuffer().add(frame)) {
+				frame.release();
+				break;
+			}
+		}
+		engineRuntime.getLeases().releaseAll(window);
 	}
 
+	public void drain() {
+		drained = false;
+		drainRequested = true;
+	}
+
+	public boolean isDrained() {
+		return drained;
+	}
+
+	/**
+	 * Serve a drain(): feed the coder empty packets until it gives up no more
+	 * frames, then empty the reorder window. Every packet polled before was
+	 * decoded on this thread already.
+	 */
+	private void finishItem(int generation) {
+		IPacket empty = IPacket.make();
+		for (int i = 0; i < FLUSH_LIMIT; i++) {
+			MediaLease<IVideoPicture> frame = decodeDelayed(empty, generation);
+			if (frame == null)
+				break;
+			try {
+				if (!publish(frame))
+					break;
+			} catch (BufferOverflowException e) {
+				// dropped, the frame was released
+			}
+		}
+		flushReorderWindow();
+
+		drainRequested = false;
+		drained = true;
+		engineRuntime.getStageScheduler().signalAll();
+	}
+
+	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
+		MediaBuffer packetBuffer = (MediaBuffer) engineRuntime
+				.getVideoPacketBuffer();
+
 		while (!isMarkedForDeath()) {
-			if (engineRuntime.getVideoPacketBuffer().isEmpty()) {
-				if (clipEnded)
-					setMarkedForDeath(true);
-				else
-					continue;
-			}
+			if (handoff.get() != null)
+				publishHandoff();
 
-			IPacket packet = (IPacket) engineRuntime.getVideoPacketBuffer()
-					.remove();
+			int generation = resets;
+			// blocks until the demultiplexer publishes a packet
+			MediaLease<IPacket> packet = (MediaLease<IPacket>) packetBuffer
+					.poll(StageScheduler.IDLE_MILLIS, TimeUnit.MILLISECONDS);
 			if (packet != null) {
-				decodePacket(packet);
+				decodePacket(packet, generation);
+			} else if (drainRequested && packetBuffer.isEmpty()) {
+				finishItem(generation);
+			} else if (clipEnded && packetBuffer.isEmpty()) {
+				flushReorderWindow();
+				setMarkedForDeath(true);
 			}
 		}
 
 		LogUtil.info("thread shutting down gracefully");
 	}
 
-	private void returnBorrowed(IPacket packet) {
-		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getPacketPool().returnObject(packet);
-			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * Called with the decode lock held.
+	 */
+	public void reset() {
+		resets++;
+		drainRequested = false;
+		clearItem();
+
+		Buffer frames = handoff.getAndSet(null);
+		if (frames != null)
+			engineRuntime.getLeases().releaseAll(frames);
+	}
+
+	/**
+	 * Called with the decode lock held, after drain().
+	 */
+	public void handOff(Buffer frames) {
+		clearItem();
+		Buffer stale = handoff.getAndSet(frames);
+		if (stale != null)
+			engineRuntime.getLeases().releaseAll(stale);
+	}
+
+	private void clearItem() {
+		// the pool it came from may be rebuilt for the new media
+		if (picture != null)
+			picture.release();
+		picture = null;
+		firstTimestamp = true;
 	}
 
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.packetdecoder;
+
+import com.stainlesscode.mediapipeline.EngineMetrics;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * A bounded reorder stage between a video decoder and the frame buffer.
+ * Decoded frames carry their presentation timestamp, so they are held in a
+ * small min-heap keyed on it and released in presentation order, at O(log n)
+ * per frame instead of the O(n) shifting done by
+ * CircularFifoMediaBuffer.placeInOrder. Compressed packets are never held or
+ * dropped here; they reach the decoder in decode order.
+ * 
+ * The depth is seeded from the decoder's reorder delay when the track is set
+ * up, so a decoder that already emits frames in presentation order adds no
+ * latency. Each frame that arrives after a later frame was released grows the
+ * depth by one, up to the configured maximum. Late frames are kept: they go
+ * back into the window and come out in order with the frames still held.
+ * 
+ * The window holds the frames' leases; clear() releases them.
+ * 
+ * The following metrics are kept under the window's name:
+ * <ul>
+ * <li>depth - the current size of the window</li>
+ * <li>reordered - frames that arrived out of order and were fixed up</li>
+ * <li>maxReorderDistance - the largest timestamp distance (us) a frame arrived
+ * behind the newest frame seen</li>
+ * <li>late - frames that arrived after a later frame was released</li>
+ * </ul>
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class FrameReorderWindow {
+
+	private MediaLease<IVideoPicture> heap[];
+	private int depth;
+	private int size;
+	private long lastReleasedTimestamp = Long.MIN_VALUE;
+	private long newestTimestamp = Long.MIN_VALUE;
+
+	private EngineMetrics metrics;
+	private String depthMetric;
+	private String reorderedMetric;
+	private String maxDistanceMetric;
+	private String lateMetric;
+
+	/**
+	 * @param name
+	 * @param depth
+	 *            the initial depth, clamped to [0, maxDepth]
+	 * @param maxDepth
+	 * @param metrics
+	 */
+	public FrameReorderWindow(String name, int depth, int maxDepth,
+			EngineMetrics metrics) {
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("reorder depth must be >= 1");
+		this.heap = newHeap(maxDepth);
+		this.depth = Math.max(0, Math.min(depth, maxDepth));
+		this.metrics = metrics;
+		this.depthMetric = name + ".depth";
+		this.reorderedMetric = name + ".reordered";
+		this.maxDistanceMetric = name + ".maxReorderDistance";
+		this.lateMetric = name + ".late";
+		metrics.set(depthMetric, depth);
+	}
+
+	/**
+	 * Add a decoded frame to the window.
+	 * 
+	 * @param frame
+	 * @return the frame with the lowest timestamp if the window was full,
+	 *         otherwise null
+	 */
+	public synchronized MediaLease<IVideoPicture> push(
+			MediaLease<IVideoPicture> frame) {
+		long ts = timestamp(frame);
+
+		// too late to go before what was released, but still ordered
+		// against what is held; a deeper window keeps it from happening again
+		if (ts < lastReleasedTimestamp) {
+			metrics.increment(lateMetric);
+			if (depth < heap.length)
+				metrics.set(depthMetric, ++depth);
+		}
+
+		if (ts < newestTimestamp) {
+			metrics.increment(reorderedMetric);
+			metrics.max(maxDistanceMetric, newestTimestamp - ts);
+		} else {
+			newestTimestamp = ts;
+		}
+
+		if (size < depth) {
+			heap[size] = frame;
+			siftUp(size++);
+			return null;
+		}
+
+		// window is full: release the minimum of (frame, heap)
+		if (size == 0 || ts <= timestamp(heap[0])) {
+			lastReleasedTimestamp = ts;
+			return frame;
+		}
+
+		MediaLease<IVideoPicture> released = heap[0];
+		heap[0] = frame;
+		siftDown(0);
+		lastReleasedTimestamp = timestamp(released);
+		return released;
+	}
+
+	/**
+	 * Remove and return the frame with the lowest timestamp, or null if the
+	 * window is empty. Used to drain the window at the end of a clip.
+	 */
+	public synchronized MediaLease<IVideoPicture> poll() {
+		if (size == 0)
+			return null;
+		MediaLease<IVideoPicture> released = heap[0];
+		heap[0] = heap[--size];
+		heap[size] = null;
+		if (size > 0)
+			siftDown(0);
+		lastReleasedTimestamp = timestamp(released);
+		return released;
+	}
+
+	/**
+	 * Discard the window contents, releasing them, and forget the release
+	 * position, e.g. after a seek. The depth learned so far is kept.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < size; i++) {
+			heap[i].release();
+			heap[i] = null;
+		}
+		size = 0;
+		lastReleasedTimestamp = Long.MIN_VALUE;
+		newestTimestamp = Long.MIN_VALUE;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	public int getMaxDepth() {
+		return heap.length;
+	}
+
+	/**
+	 * @return the latest timestamp pushed since the last clear, released or
+	 *         not, or Long.MIN_VALUE
+	 */
+	public synchronized long getNewestTimestamp() {
+		return newestTimestamp;
+	}
+
+	private static long timestamp(MediaLease<IVideoPicture> frame) {
+		return frame.get().getTimeStamp();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static MediaLease<IVideoPicture>[] newHeap(int depth) {
+		return new MediaLease[depth];
+	}
+
+	private void siftUp(int i) {
+		MediaLease<IVideoPicture> frame = heap[i];
+		long ts = timestamp(frame);
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (timestamp(heap[parent]) <= ts)
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = frame;
+	}
+
+	private void siftDown(int i) {
+		MediaLease<IVideoPicture> frame = heap[i];
+		long ts = timestamp(frame);
+		int half = size >>> 1;
+		while (i < half) {
+			int child = (i << 1) + 1;
+			int right = child + 1;
+			if (right < size
+					&& timestamp(heap[right]) < timestamp(heap[child]))
+				child = right;
+			if (ts <= timestamp(heap[child]))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = frame;
+	}
+}
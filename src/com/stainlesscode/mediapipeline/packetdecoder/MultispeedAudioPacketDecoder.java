@@ -20,14 +20,21 @@
 package com.stainlesscode.mediapipeline.packetdecoder;
 
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.commons.collections.Buffer;
 import org.apache.commons.collections.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.PacketDecoder;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.xuggle.xuggler.IAudioSamples;
 import com.xuggle.xuggler.IPacket;
 
@@ -47,11 +54,18 @@ public class MultispeedAudioPacketDecoder extends EngineThread implements
 			.getLogger(MultispeedAudioPacketDecoder.class);
 
 	private EngineRuntime engineRuntime;
-	private IAudioSamples samples = null;
+	private MediaLease<IAudioSamples> samples = null;
 	private boolean nextFrame = true;
 	protected int multispeedPacketCounter = 0;
 	protected int speed = 1;
 
+	// staged samples of the next playlist item, published by this thread
+	private final AtomicReference<Buffer> handoff = new AtomicReference<Buffer>();
+
+	// set by drain(), served by this thread once the packet buffer is empty
+	private volatile boolean drainRequested;
+	private volatile boolean drained;
+
 	public MultispeedAudioPacketDecoder() {
 	}
 
@@ -60,7 +74,8 @@ public class MultispeedAudioPacketDecoder extends EngineThread implements
 	}
 
 	@SuppressWarnings("unchecked")
-	public void decodePacket(IPacket packet) {
+	public void decodePacket(MediaLease<IPacket> lease) {
+		IPacket packet = lease.get();
 		if (LogUtil.isDebugEnabled()) {
 			LogUtil.debug("buffer size = "
 					+ engineRuntime.getAudioFrameBuffer().size());
@@ -72,25 +87,34 @@ public class MultispeedAudioPacketDecoder extends EngineThread implements
 				if (LogUtil.isDebugEnabled()) {
 					LogUtil.debug("starting a new frame");
 				}
-				samples = (IAudioSamples) engineRuntime.getAudioSamplePool()
-						.borrowObject();
+				samples = engineRuntime.getLeases().acquire(
+						(IAudioSamples) engineRuntime.getAudioSamplePool()
+								.borrowObject(),
+						engineRuntime.getAudioSamplePool(),
+						MediaLeases.AUDIO_DECODE_STAGE);
 				nextFrame = false;
 			}
 
 			int offset = 0;
 
-			/*
-			 * Keep going until we've processed all data
-			 */
-			while (offset < packet.getSize()) {
-				int bytesDecoded = engineRuntime.getAudioCoder().decodeAudio(
-						samples, packet, offset);
-				if (bytesDecoded < 0)
-					throw new RuntimeException("got error decoding audio");
-				offset += bytesDecoded;
-				if (LogUtil.isDebugEnabled())
-					LogUtil.debug("decoded " + offset
-							+ " total bytes from packet");
+			// a warm reset swaps the coder under this lock
+			engineRuntime.getAudioDecodeLock().lock();
+			try {
+				/*
+				 * Keep going until we've processed all data
+				 */
+				while (offset < packet.getSize()) {
+					int bytesDecoded = engineRuntime.getAudioCoder()
+							.decodeAudio(samples.get(), packet, offset);
+					if (bytesDecoded < 0)
+						throw new RuntimeException("got error decoding audio");
+					offset += bytesDecoded;
+					if (LogUtil.isDebugEnabled())
+						LogUtil.debug("decoded " + offset
+								+ " total bytes from packet");
+				}
+			} finally {
+				engineRuntime.getAudioDecodeLock().unlock();
 			}
 
 			/*
@@ -99,7 +123,7 @@ public class MultispeedAudioPacketDecoder extends EngineThread implements
 			 * always check if you got a complete set of samples from the
 			 * decoder
 			 */
-			if (samples.isComplete()) {
+			if (samples.get().isComplete()) {
 
 				int modulo = 0;
 				speed = new Double(engineRuntime.getPlaySpeed()).intValue();
@@ -123,31 +147,79 @@ public class MultispeedAudioPacketDecoder extends EngineThread implements
 				}
 			}
 
-			if (packet != null)
-				engineRuntime.getPacketPool().returnObject(packet);
-
 		} catch (NoSuchElementException e) {
 			e.printStackTrace();
 		} catch (IllegalStateException e) {
 			e.printStackTrace();
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			lease.release();
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
 		while (!isMarkedForDeath()) {
-			if (engineRuntime.getAudioPacketBuffer().isEmpty())
-				continue;
-			IPacket packet = (IPacket) engineRuntime.getAudioPacketBuffer()
-					.remove();
+			Buffer frames = handoff.getAndSet(null);
+			if (frames != null) {
+				while (!frames.isEmpty()) {
+					Object frame = frames.remove();
+					if (!engineRuntime.getAudioFrameBuffer().add(frame)) {
+						MediaLease.releaseElement(frame);
+						break;
+					}
+				}
+				engineRuntime.getLeases().releaseAll(frames);
+			}
+
+			// blocks until the demultiplexer publishes a packet
+			MediaBuffer packetBuffer = (MediaBuffer) engineRuntime
+					.getAudioPacketBuffer();
+			MediaLease<IPacket> packet = (MediaLease<IPacket>) packetBuffer
+					.poll(StageScheduler.IDLE_MILLIS, TimeUnit.MILLISECONDS);
 			if (packet != null) {
 				decodePacket(packet);
+			} else if (drainRequested && packetBuffer.isEmpty()) {
+				// every packet taken was decoded on this thread already
+				drainRequested = false;
+				drained = true;
+				engineRuntime.getStageScheduler().signalAll();
 			}
 		}
 
 		LogUtil.info("thread shutting down gracefully");
 	}
 
+	public void drain() {
+		drained = false;
+		drainRequested = true;
+	}
+
+	public boolean isDrained() {
+		return drained;
+	}
+
+	public void reset() {
+		drainRequested = false;
+		samples = null;
+		nextFrame = true;
+		multispeedPacketCounter = 0;
+
+		Buffer frames = handoff.getAndSet(null);
+		if (frames != null)
+			engineRuntime.getLeases().releaseAll(frames);
+	}
+
+	public void handOff(Buffer frames) {
+		samples = null;
+		nextFrame = true;
+		multispeedPacketCounter = 0;
+
+		Buffer stale = handoff.getAndSet(frames);
+		if (stale != null)
+			engineRuntime.getLeases().releaseAll(stale);
+	}
+
 }
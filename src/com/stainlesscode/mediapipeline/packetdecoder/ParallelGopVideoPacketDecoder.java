@@ -0,0 +1,726 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.packetdecoder;
+
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.collections.Buffer;
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.EngineSettings;
+import com.stainlesscode.mediapipeline.PacketDecoder;
+import com.stainlesscode.mediapipeline.StageExecutor;
+import com.stainlesscode.mediapipeline.TrackConfiguration;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
+import com.stainlesscode.mediapipeline.util.TimeUtil;
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IError;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.IVideoResampler;
+
+/**
+ * A video decoder for streams one core can't decode in real time. Packets
+ * are split into GOPs at key frames and each GOP is decoded by one of a pool
+ * of workers, so several GOPs decode at once. Every worker opens its own
+ * container on the media's URL for a coder of its own; the packets still come
+ * from the demultiplexer, so seeks, the packet spill and playlist splices work
+ * as with the DefaultVideoPacketDecoder. This thread hands the decoded frames
+ * to the frame buffer GOP by GOP, in presentation order.
+ * 
+ * Leading frames of an open GOP (before its key frame) can't be decoded
+ * without the previous GOP and are dropped. Memory use is bounded by
+ * gopDecoderWorkers * gopDecoderQueueSize decoded frames.
+ * 
+ * decodePacket() decodes on the calling thread with the runtime's own coder,
+ * as the DefaultVideoPacketDecoder does; the playlist pre-roll uses it.
+ * 
+ * Set videoPacketDecoder to this class to use it.
+ */
+public class ParallelGopVideoPacketDecoder extends EngineThread implements
+		PacketDecoder, MediaPlayerEventListener {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(ParallelGopVideoPacketDecoder.class);
+
+	// how long to wait on workers while frames are in flight
+	private static final long BUSY_MILLIS = 1;
+
+	// bound on frames drained from a coder at the end of a GOP
+	private static final int FLUSH_LIMIT = 64;
+
+	private EngineRuntime engineRuntime;
+	private final DefaultVideoPacketDecoder direct = new DefaultVideoPacketDecoder();
+	private boolean usePools;
+	private int queueSize;
+	private Worker[] workers;
+	private StageHandle[] workerThreads;
+
+	// GOPs not yet picked up by a worker
+	private final BlockingQueue<Gop> gops = new LinkedBlockingQueue<Gop>();
+
+	// GOPs whose frames have not all been published, in presentation order;
+	// only touched with the decode lock held, which is never held across
+	// buffer I/O
+	private final LinkedList<Gop> inFlight = new LinkedList<Gop>();
+	private Gop current;
+	private MediaLease<IPacket> pending;
+
+	private volatile int generation;
+	private int seenGeneration;
+	// bumped by reset(), so a packet polled before a warm reset is dropped
+	private volatile int resets;
+	private volatile long discardBefore = Long.MIN_VALUE;
+
+	// set by drain(), served by this thread once the packet buffer is empty
+	private volatile boolean drainRequested;
+	private volatile boolean drained;
+
+	public ParallelGopVideoPacketDecoder() {
+	}
+
+	public void init(EngineRuntime engineRuntime) {
+		this.engineRuntime = engineRuntime;
+		EngineSettings settings = engineRuntime.getEngine().getSettings();
+		this.usePools = settings.isUseObjectPools();
+		this.queueSize = Math.max(1, settings
+				.getInt(EngineConfiguration.GOP_DECODER_QUEUE_SIZE_KEY));
+		this.workers = new Worker[Math.max(1, settings
+				.getInt(EngineConfiguration.GOP_DECODER_WORKERS_KEY))];
+		for (int i = 0; i < workers.length; i++)
+			workers[i] = new Worker(settings);
+		direct.init(engineRuntime);
+	}
+
+	public void decodePacket(MediaLease<IPacket> packet) {
+		direct.decodePacket(packet);
+	}
+
+	@Override
+	public void run() {
+		MediaBuffer packetBuffer = (MediaBuffer) engineRuntime
+				.getVideoPacketBuffer();
+
+		startWorkers();
+		try {
+			while (!isMarkedForDeath()) {
+				boolean progress = step(packetBuffer);
+				if (!progress)
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS
+							.toNanos(BUSY_MILLIS));
+			}
+		} finally {
+			stopWorkers();
+		}
+
+		LogUtil.info("thread shutting down gracefully");
+	}
+
+	/**
+	 * Publish what the workers have decoded and take in the next packet.
+	 * 
+	 * @return false if there was nothing to do
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean step(MediaBuffer packetBuffer) {
+		boolean progress = publishFrames();
+		boolean busy;
+		int seen;
+
+		// a warm reset swaps the coder under this lock
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			if (generation != seenGeneration)
+				cancelAll();
+
+			if (pending != null) {
+				// held back while too many GOPs are in flight
+				if (!accept(pending))
+					return progress;
+				pending = null;
+				progress = true;
+			}
+			busy = !inFlight.isEmpty();
+			seen = resets;
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+
+		// blocks until the demultiplexer publishes a packet
+		MediaLease<IPacket> packet = (MediaLease<IPacket>) packetBuffer.poll(
+				busy ? BUSY_MILLIS : StageScheduler.IDLE_MILLIS,
+				TimeUnit.MILLISECONDS);
+
+		boolean finished;
+		boolean endOfItem = false;
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			if (packet != null) {
+				if (seen != resets)
+					// polled before a warm reset, from the old container
+					packet.release();
+				else if (!accept(packet))
+					pending = packet;
+				return true;
+			}
+
+			endOfItem = drainRequested && !clipEnded;
+			if ((clipEnded || drainRequested) && packetBuffer.isEmpty()) {
+				// closing the last GOP makes its worker flush the coder
+				if (current != null) {
+					current.closed = true;
+					current = null;
+				}
+				if (!inFlight.isEmpty())
+					return progress;
+				finished = true;
+			} else if (inFlight.isEmpty()) {
+				return progress;
+			} else {
+				finished = false;
+			}
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+
+		if (finished) {
+			direct.flushReorderWindow();
+			if (endOfItem) {
+				drainRequested = false;
+				drained = true;
+				engineRuntime.getStageScheduler().signalAll();
+			} else {
+				setMarkedForDeath(true);
+			}
+			return true;
+		}
+
+		// the source has gone quiet (a stall, or the end of a playlist
+		// item); catch up before letting a splice or reset in
+		while (!caughtUp() && packetBuffer.isEmpty()
+				&& generation == seenGeneration && !isMarkedForDeath()) {
+			if (!publishFrames())
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS
+						.toNanos(BUSY_MILLIS));
+		}
+		return true;
+	}
+
+	/**
+	 * Add a packet to the current GOP, or start a new GOP at a key frame.
+	 * Called with the decode lock held.
+	 * 
+	 * @return false if the packet starts a GOP and there is no room for it
+	 */
+	private boolean accept(MediaLease<IPacket> packet) {
+		if (packet.get().isKey()) {
+			if (inFlight.size() >= 2 * workers.length)
+				return false;
+			if (current != null)
+				current.closed = true;
+			current = new Gop(packet.get());
+			inFlight.addLast(current);
+			gops.add(current);
+			engineRuntime.getMetrics().increment("decode.gop.dispatched");
+		}
+
+		if (current == null || current.done) {
+			// nothing to decode it against before the first key frame, or
+			// the GOP failed
+			packet.release();
+			return true;
+		}
+
+		current.undecoded.incrementAndGet();
+		current.packets.add(packet);
+		return true;
+	}
+
+	/**
+	 * Move decoded frames from the head GOPs to the frame buffer.
+	 * 
+	 * @return true if anything was published
+	 */
+	private boolean publishFrames() {
+		boolean published = false;
+		MediaLease<IVideoPicture> picture;
+		while ((picture = nextFrame()) != null) {
+			publish(picture);
+			published = true;
+		}
+		return published;
+	}
+
+	/**
+	 * @return the next decoded frame in presentation order, or null if the
+	 *         head GOP has none ready
+	 */
+	private MediaLease<IVideoPicture> nextFrame() {
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			while (!inFlight.isEmpty()) {
+				Gop head = inFlight.getFirst();
+				boolean done = head.done;
+				MediaLease<IVideoPicture> picture = head.frames.poll();
+				if (picture != null)
+					return picture;
+				if (!done)
+					return null;
+				inFlight.removeFirst();
+			}
+			return null;
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+	}
+
+	private void publish(MediaLease<IVideoPicture> picture) {
+		long timestamp = picture.get().getTimeStamp();
+		if (timestamp < discardBefore) {
+			// skipped by a seek within the buffers
+			picture.release();
+			return;
+		}
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("$$DECODE VIDEO " + timestamp);
+		direct.publish(picture);
+	}
+
+	/**
+	 * @return true if every packet handed out has been decoded and published,
+	 *         except what the coder of an unfinished GOP is holding back
+	 */
+	private boolean caughtUp() {
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			for (Gop gop : inFlight) {
+				if (!gop.frames.isEmpty())
+					return false;
+				if (!gop.done && (gop.closed || gop.undecoded.get() > 0))
+					return false;
+			}
+			return true;
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drop every GOP in flight. Called with the decode lock held.
+	 */
+	private void cancelAll() {
+		seenGeneration = generation;
+		gops.clear();
+		for (Gop gop : inFlight) {
+			gop.cancelled = true;
+			MediaLease<IVideoPicture> picture;
+			while ((picture = gop.frames.poll()) != null)
+				picture.release();
+			MediaLease<IPacket> packet;
+			while ((packet = gop.packets.poll()) != null)
+				packet.release();
+			engineRuntime.getMetrics().increment("decode.gop.cancelled");
+		}
+		inFlight.clear();
+		current = null;
+		if (pending != null) {
+			pending.release();
+			pending = null;
+		}
+	}
+
+	public void drain() {
+		drained = false;
+		drainRequested = true;
+	}
+
+	public boolean isDrained() {
+		return drained;
+	}
+
+	/**
+	 * Queue the staged frames to be published next; after drain() no GOP of
+	 * the current item is left in flight. Called with the decode lock held.
+	 */
+	public void handOff(Buffer frames) {
+		if (current != null) {
+			current.closed = true;
+			current = null;
+		}
+		if (pending != null) {
+			// it would open a GOP on the next item's media
+			pending.release();
+			pending = null;
+		}
+		inFlight.addLast(new Gop(frames));
+	}
+
+	/**
+	 * Called with the decode lock held.
+	 */
+	public void reset() {
+		resets++;
+		drainRequested = false;
+		direct.reset();
+		cancelAll();
+		discardBefore = Long.MIN_VALUE;
+	}
+
+	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK) {
+			// everything in flight is from before the seek
+			discardBefore = Long.MIN_VALUE;
+			generation++;
+		} else if (evt.getType() == MediaPlayerEvent.Type.BUFFERED_SEEK) {
+			// GOPs in flight may start before the new position
+			discardBefore = engineRuntime.getSynchronizer()
+					.getStreamTimeZero()
+					+ ((Long) evt.getData()).longValue();
+		}
+	}
+
+	private void startWorkers() {
+		engineRuntime.getEngine().addMediaPlayerEventListener(this);
+		workerThreads = new StageHandle[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].running = true;
+			workerThreads[i] = engineRuntime.getStageExecutor().execute(
+					workers[i], "Video GOP Decoder Thread " + i,
+					StageExecutor.DECODE_PRIORITY);
+		}
+	}
+
+	private void stopWorkers() {
+		engineRuntime.getEngine().removeMediaPlayerEventListener(this);
+		engineRuntime.getVideoDecodeLock().lock();
+		try {
+			cancelAll();
+		} finally {
+			engineRuntime.getVideoDecodeLock().unlock();
+		}
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].running = false;
+			workerThreads[i].interrupt();
+		}
+		try {
+			for (int i = 0; i < workers.length; i++)
+				workerThreads[i].join();
+		} catch (InterruptedException e) {
+			LogUtil.warn("interrupted waiting for the GOP decoders");
+		}
+	}
+
+	/**
+	 * The packets of one GOP, from its key frame on, and the frames decoded
+	 * from them. The packets keep coming until the next key frame closes it.
+	 */
+	private class Gop {
+
+		final String url;
+		final int streamIndex;
+		// presentation time of the key frame, in microseconds
+		final long start;
+
+		final BlockingQueue<MediaLease<IPacket>> packets = new LinkedBlockingQueue<MediaLease<IPacket>>();
+		final BlockingQueue<MediaLease<IVideoPicture>> frames;
+		final AtomicInteger undecoded = new AtomicInteger();
+
+		volatile boolean closed;
+		volatile boolean done;
+		volatile boolean cancelled;
+
+		/**
+		 * Frames decoded elsewhere (pre-rolled by the playlist), published in
+		 * turn with no worker involved.
+		 */
+		@SuppressWarnings("unchecked")
+		Gop(Buffer staged) {
+			this.url = null;
+			this.streamIndex = -1;
+			this.start = Long.MIN_VALUE;
+			this.frames = new LinkedBlockingQueue<MediaLease<IVideoPicture>>();
+			while (!staged.isEmpty())
+				frames.add((MediaLease<IVideoPicture>) staged.remove());
+			this.closed = true;
+			this.done = true;
+		}
+
+		Gop(IPacket key) {
+			this.frames = new LinkedBlockingQueue<MediaLease<IVideoPicture>>(
+					queueSize);
+			this.url = engineRuntime.getContainer().getURL();
+			this.streamIndex = key.getStreamIndex();
+			this.start = key.getPts() == Global.NO_PTS
+					|| key.getTimeBase() == null ? Long.MIN_VALUE : TimeUtil
+					.streamTimeToMicroseconds(key.getTimeBase(), key.getPts());
+		}
+	}
+
+	/**
+	 * Decodes one GOP at a time with a coder opened on its own container.
+	 */
+	private class Worker implements Runnable {
+
+		private final EngineSettings settings;
+		volatile boolean running;
+
+		private IContainer container;
+		private String url;
+		private int streamIndex = -1;
+		private IStreamCoder coder;
+		private IVideoResampler resampler;
+		private IVideoPicture picture;
+
+		Worker(EngineSettings settings) {
+			this.settings = settings;
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					Gop gop;
+					try {
+						gop = gops.poll(StageScheduler.IDLE_MILLIS,
+								TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						continue;
+					}
+					if (gop == null)
+						continue;
+
+					try {
+						decode(gop);
+					} catch (RuntimeException e) {
+						LogUtil.error("could not decode GOP at " + gop.start, e);
+						closeCoder();
+					} finally {
+						finish(gop);
+					}
+				}
+			} finally {
+				closeCoder();
+			}
+		}
+
+		/**
+		 * Mark the GOP done and return whatever it was not decoded from, e.g.
+		 * when its media could not be opened. Under the decode lock, so
+		 * accept() never adds to it afterwards.
+		 */
+		private void finish(Gop gop) {
+			engineRuntime.getVideoDecodeLock().lock();
+			try {
+				gop.done = true;
+				MediaLease<IPacket> packet;
+				while ((packet = gop.packets.poll()) != null) {
+					packet.release();
+					gop.undecoded.decrementAndGet();
+				}
+			} finally {
+				engineRuntime.getVideoDecodeLock().unlock();
+			}
+		}
+
+		private void decode(Gop gop) {
+			if (!open(gop))
+				return;
+
+			while (!gop.cancelled) {
+				MediaLease<IPacket> packet;
+				try {
+					packet = gop.packets.poll(BUSY_MILLIS,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					if (!running)
+						return;
+					continue;
+				}
+
+				if (packet == null) {
+					if (gop.closed && gop.packets.isEmpty())
+						break;
+					continue;
+				}
+
+				try {
+					int offset = 0;
+					while (offset < packet.get().getSize()) {
+						int bytesDecoded = coder.decodeVideo(picture, packet
+								.get(), offset);
+						if (bytesDecoded < 0)
+							throw new RuntimeException(
+									"got error decoding video " + bytesDecoded);
+						offset += bytesDecoded;
+						if (picture.isComplete())
+							emit(gop);
+					}
+				} finally {
+					packet.release();
+					gop.undecoded.decrementAndGet();
+				}
+			}
+
+			// drain the frames the coder holds back, then start the next GOP
+			// on a clean coder
+			if (!gop.cancelled) {
+				IPacket empty = IPacket.make();
+				for (int i = 0; i < FLUSH_LIMIT; i++) {
+					if (coder.decodeVideo(picture, empty, 0) < 0
+							|| !picture.isComplete())
+						break;
+					emit(gop);
+				}
+			}
+			coder.close();
+			if (coder.open() < 0)
+				closeCoder();
+		}
+
+		private void emit(Gop gop) {
+			if (picture.getTimeStamp() < gop.start) {
+				engineRuntime.getMetrics().increment("decode.gop.leading");
+				return;
+			}
+
+			MediaLease<IVideoPicture> newPic;
+			if (resampler != null) {
+				newPic = borrowResampled();
+				int errno = resampler.resample(newPic.get(), picture);
+				if (errno < 0) {
+					newPic.release();
+					IError err = IError.make(errno);
+					throw new RuntimeException("could not resample video: "
+							+ err.getDescription());
+				}
+			} else {
+				newPic = engineRuntime.getLeases().acquire(
+						IVideoPicture.make(picture), null,
+						MediaLeases.VIDEO_DECODE_STAGE);
+			}
+
+			try {
+				while (!gop.cancelled) {
+					if (gop.frames.offer(newPic, StageScheduler.IDLE_MILLIS,
+							TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException e) {
+				// stopping
+			}
+			newPic.release();
+		}
+
+		private MediaLease<IVideoPicture> borrowResampled() {
+			ObjectPool pool = usePools ? engineRuntime
+					.getResampledPicturePool() : null;
+			IVideoPicture newPic;
+			if (pool != null) {
+				try {
+					newPic = (IVideoPicture) pool.borrowObject();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			} else {
+				newPic = IVideoPicture.make(resampler.getOutputPixelFormat(),
+						resampler.getOutputWidth(), resampler
+								.getOutputHeight());
+			}
+			return engineRuntime.getLeases().acquire(newPic, pool,
+					MediaLeases.VIDEO_DECODE_STAGE);
+		}
+
+		/**
+		 * Make sure the coder is open on the GOP's media.
+		 * 
+		 * @return false if it could not be opened
+		 */
+		private boolean open(Gop gop) {
+			if (coder != null && gop.url.equals(url)
+					&& gop.streamIndex == streamIndex)
+				return true;
+
+			closeCoder();
+
+			IContainer container = IContainer.make();
+			int result = container.open(gop.url, IContainer.Type.READ, null);
+			if (result < 0) {
+				LogUtil.warn("could not open " + gop.url + ": "
+						+ IError.make(result).getDescription());
+				return false;
+			}
+
+			IStreamCoder coder = container.getStream(gop.streamIndex)
+					.getStreamCoder();
+			TrackConfiguration.configureDecoderThreads(settings, coder);
+			if (coder.open() < 0) {
+				LogUtil.warn("could not open the video codec of " + gop.url);
+				container.close();
+				return false;
+			}
+
+			this.container = container;
+			this.coder = coder;
+			this.url = gop.url;
+			this.streamIndex = gop.streamIndex;
+			this.picture = IVideoPicture.make(coder.getPixelType(), coder
+					.getWidth(), coder.getHeight());
+			if (coder.getPixelType() != IPixelFormat.Type.BGR24)
+				this.resampler = IVideoResampler.make(coder.getWidth(), coder
+						.getHeight(), IPixelFormat.Type.BGR24, coder
+						.getWidth(), coder.getHeight(), coder.getPixelType());
+			return true;
+		}
+
+		private void closeCoder() {
+			if (coder != null && coder.isOpen())
+				coder.close();
+			if (container != null)
+				container.close();
+			container = null;
+			coder = null;
+			resampler = null;
+			picture = null;
+			url = null;
+			streamIndex = -1;
+		}
+	}
+
+}
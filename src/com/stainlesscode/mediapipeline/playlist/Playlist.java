@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.playlist;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.Engine;
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.StageExecutor;
+import com.stainlesscode.mediapipeline.Synchronizer;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+import com.xuggle.xuggler.IContainer;
+
+/**
+ * The URLs an engine plays after the current one, back to back. When the
+ * stream time comes within playlistPrerollLead of the end of the current
+ * item, the next one is pre-rolled in the background (see Preroller); when
+ * the demultiplexer reaches the end of the container, Engine splices it in
+ * instead of ending the clip.
+ * 
+ * The playlist listens to the synchronizer's STREAM_TIME_TICK events. With a
+ * synchronizer that does not fire them, pre-rolling starts at the end of the
+ * container instead, which the packet buffers usually leave time for.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class Playlist implements MediaPlayerEventListener {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(Playlist.class);
+
+	private final Engine engine;
+	private final LinkedList<String> urls = new LinkedList<String>();
+	private final long lead;
+	private Preroller preroller;
+	private StageHandle prerollThread;
+
+	public Playlist(Engine engine) {
+		this.engine = engine;
+		this.lead = engine.getSettings().getLong(
+				EngineConfiguration.PLAYLIST_PREROLL_LEAD_KEY);
+	}
+
+	/**
+	 * Queue a URL to play after the ones already queued.
+	 */
+	public synchronized void add(String url) {
+		urls.add(url);
+	}
+
+	public synchronized List<String> getUrls() {
+		return new ArrayList<String>(urls);
+	}
+
+	public synchronized boolean hasNext() {
+		return !urls.isEmpty();
+	}
+
+	/**
+	 * Drop every queued URL and any pre-rolled item.
+	 */
+	public synchronized void clear() {
+		urls.clear();
+		cancelPreroll();
+	}
+
+	/**
+	 * Release the pre-rolled item, if any, but keep its URL at the head of the
+	 * queue.
+	 */
+	public synchronized void cancelPreroll() {
+		if (preroller != null) {
+			preroller.close();
+			preroller = null;
+			prerollThread = null;
+		}
+	}
+
+	/**
+	 * Start pre-rolling the next item, unless that has already started.
+	 */
+	public synchronized void preroll() {
+		if (preroller != null || urls.isEmpty())
+			return;
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("pre-rolling " + urls.getFirst());
+
+		preroller = new Preroller(engine, urls.getFirst());
+		prerollThread = engine.getEngineRuntime().getStageExecutor().execute(
+				preroller, "Playlist Preroll Thread",
+				StageExecutor.HOUSEKEEPING_PRIORITY);
+	}
+
+	/**
+	 * Take the next item off the queue, pre-rolling it now if that has not
+	 * started, once it is ready.
+	 * 
+	 * @return the item, which the caller must adopt or close, or null if the
+	 *         queue is empty
+	 */
+	public Preroller next() throws InterruptedException {
+		Preroller item;
+		StageHandle thread;
+		synchronized (this) {
+			preroll();
+			item = preroller;
+			thread = prerollThread;
+			if (item == null)
+				return null;
+		}
+
+		thread.join();
+
+		synchronized (this) {
+			if (preroller != item)
+				return null; // cancelled while we waited
+			urls.removeFirst();
+			preroller = null;
+			prerollThread = null;
+		}
+		return item;
+	}
+
+	/**
+	 * Return an item taken with next() that could not be spliced in yet. It is
+	 * released, and pre-rolled again when the time comes.
+	 */
+	public synchronized void putBack(Preroller item) {
+		item.close();
+		urls.addFirst(item.getUrl());
+	}
+
+	@Override
+	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
+		if (evt.getType() != MediaPlayerEvent.Type.STREAM_TIME_TICK)
+			return;
+
+		synchronized (this) {
+			if (preroller != null || urls.isEmpty())
+				return;
+		}
+
+		EngineRuntime engineRuntime = engine.getEngineRuntime();
+		Synchronizer synchronizer = engineRuntime.getSynchronizer();
+		IContainer container = engineRuntime.getContainer();
+		if (synchronizer == null || container == null
+				|| !synchronizer.isStreamTimeZeroSet())
+			return;
+
+		long position = ((Long) evt.getData()).longValue()
+				- synchronizer.getStreamTimeZero();
+		long duration = container.getDuration();
+
+		// an unknown duration is reported as negative
+		if (duration <= 0 || duration - position <= lead)
+			preroll();
+	}
+
+}
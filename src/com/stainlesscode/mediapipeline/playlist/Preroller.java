@@ -0,0 +1,299 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.playlist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.Buffer;
+import org.apache.commons.collections.buffer.UnboundedFifoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.Engine;
+import com.stainlesscode.mediapipeline.EngineConfiguration;
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.PacketDecoder;
+import com.stainlesscode.mediapipeline.TrackConfiguration;
+import com.stainlesscode.mediapipeline.factory.PacketDecoderFactory;
+import com.stainlesscode.mediapipeline.packetdecoder.FrameReorderWindow;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.MediaLeases;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IError;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Opens the next item of a playlist while the current one plays: the container
+ * is opened, its tracks configured and codecs opened, and the first GOP is
+ * decoded into staging buffers. The item lives in an EngineRuntime of its own,
+ * which shares only the engine's packet buffers, synchronizer and metrics;
+ * Engine adopts its container, coders and maps at the item boundary.
+ * 
+ * Decoding stops at the second video key frame, or when either staging
+ * buffer holds playlistPrerollFrames frames. Packets read past that point are
+ * kept, in order, for the engine to buffer before the demultiplexer reads on.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class Preroller implements Runnable {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(Preroller.class);
+
+	private final Engine engine;
+	private final String url;
+	private final EngineRuntime runtime;
+	private final Map<Integer, IStreamCoder> packetDecoderMap = new HashMap<Integer, IStreamCoder>();
+	private final List<MediaLease<IPacket>> leftover = new ArrayList<MediaLease<IPacket>>();
+	private long startTimestamp = -1;
+	private volatile boolean cancelled;
+	private volatile Throwable failure;
+	private boolean running;
+
+	public Preroller(Engine engine, String url) {
+		this.engine = engine;
+		this.url = url;
+
+		EngineRuntime engineRuntime = engine.getEngineRuntime();
+		this.runtime = new EngineRuntime();
+		this.runtime.setEngine(engine);
+		this.runtime.setName(engineRuntime.getName());
+		this.runtime.setHost(engineRuntime.getHost());
+		this.runtime.setMetrics(engineRuntime.getMetrics());
+		this.runtime.setLeases(engineRuntime.getLeases());
+		this.runtime.setNativeMemory(engineRuntime.getNativeMemory());
+		this.runtime.setSynchronizer(engineRuntime.getSynchronizer());
+		this.runtime.setStageExecutor(engineRuntime.getStageExecutor());
+		// TrackConfiguration maps the streams to the engine's packet buffers
+		this.runtime.setVideoPacketBuffer(engineRuntime.getVideoPacketBuffer());
+		this.runtime.setAudioPacketBuffer(engineRuntime.getAudioPacketBuffer());
+		this.runtime.setVideoFrameBuffer(new UnboundedFifoBuffer());
+		this.runtime.setAudioFrameBuffer(new UnboundedFifoBuffer());
+		this.runtime.setStreamToBufferMap(new HashMap<Integer, Buffer>());
+		this.runtime.setPacketDecoderMap(packetDecoderMap);
+	}
+
+	public void run() {
+		synchronized (this) {
+			if (cancelled)
+				return;
+			running = true;
+		}
+
+		try {
+			preroll();
+		} catch (Throwable t) {
+			LogUtil.error("could not pre-roll " + url, t);
+			failure = t;
+		} finally {
+			synchronized (this) {
+				running = false;
+				// close() leaves the container to us while we read it
+				if (cancelled)
+					release();
+			}
+		}
+	}
+
+	protected void preroll() throws InstantiationException,
+			IllegalAccessException, ClassNotFoundException {
+		long start = System.nanoTime();
+		EngineConfiguration config = engine.getEngineConfiguration();
+
+		IContainer container = IContainer.make();
+		int result = container.open(url, IContainer.Type.READ, null);
+		if (result < 0)
+			throw new IllegalArgumentException("could not open url " + url
+					+ ": " + IError.make(result).getDescription());
+		runtime.setContainer(container);
+
+		new TrackConfiguration().init(engine, runtime, packetDecoderMap);
+		if (engine.getSettings().isUseObjectPools())
+			runtime.init();
+
+		IStreamCoder videoCoder = runtime.getVideoCoder();
+		if (videoCoder == null)
+			throw new RuntimeException("No suitable video decoder could be loaded");
+		IStreamCoder audioCoder = runtime.getAudioCoder();
+		int videoIndex = videoCoder.getStream().getIndex();
+		int audioIndex = audioCoder == null ? -1 : audioCoder.getStream()
+				.getIndex();
+
+		PacketDecoder videoDecoder = PacketDecoderFactory.createPacketDecoder(
+				PacketDecoderFactory.Type.VIDEO, config);
+		videoDecoder.init(runtime);
+		PacketDecoder audioDecoder = null;
+		if (audioCoder != null) {
+			audioDecoder = PacketDecoderFactory.createPacketDecoder(
+					PacketDecoderFactory.Type.AUDIO, config);
+			audioDecoder.init(runtime);
+		}
+
+		int maxFrames = engine.getSettings().getInt(
+				EngineConfiguration.PLAYLIST_PREROLL_FRAMES_KEY);
+		Buffer videoFrames = runtime.getVideoFrameBuffer();
+		Buffer audioFrames = runtime.getAudioFrameBuffer();
+		boolean keyFrameSeen = false;
+
+		while (!cancelled) {
+			IPacket packet = IPacket.make();
+			if (container.readNextPacket(packet) < 0)
+				break; // the whole item fits
+			MediaLease<IPacket> lease = runtime.getLeases().acquire(packet,
+					null, MediaLeases.DEMUX_STAGE);
+
+			int stream = packet.getStreamIndex();
+			if (stream == videoIndex && packet.isKey()) {
+				if (keyFrameSeen) {
+					leftover.add(lease);
+					break;
+				}
+				keyFrameSeen = true;
+			}
+
+			if (stream == videoIndex) {
+				videoDecoder.decodePacket(lease);
+			} else if (stream == audioIndex) {
+				audioDecoder.decodePacket(lease);
+			} else {
+				lease.release();
+			}
+
+			if (videoFrames.size() >= maxFrames
+					|| audioFrames.size() >= maxFrames)
+				break;
+		}
+
+		// a partly decoded frame is dropped with the decoders
+		runtime.getVideoDecodeLock().lock();
+		try {
+			videoDecoder.reset();
+		} finally {
+			runtime.getVideoDecodeLock().unlock();
+		}
+		if (audioDecoder != null) {
+			runtime.getAudioDecodeLock().lock();
+			try {
+				audioDecoder.reset();
+			} finally {
+				runtime.getAudioDecodeLock().unlock();
+			}
+		}
+
+		// the engine's window orders the frames again when they are handed
+		// over, behind whatever it still holds of the current item
+		FrameReorderWindow window = runtime.getFrameReorderWindow();
+		if (window != null) {
+			MediaLease<IVideoPicture> frame;
+			while ((frame = window.poll()) != null)
+				videoFrames.add(frame);
+		}
+
+		startTimestamp = Math.min(firstTimestamp(videoFrames),
+				firstTimestamp(audioFrames));
+
+		engine.getEngineRuntime().getMetrics().increment("playlist.preroll");
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("pre-rolled " + videoFrames.size() + " video and "
+					+ audioFrames.size() + " audio frames of " + url + " in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	private long firstTimestamp(Buffer frames) {
+		return frames.isEmpty() ? Long.MAX_VALUE : MediaLease.mediaOf(
+				frames.get()).getTimeStamp();
+	}
+
+	/**
+	 * Stop pre-rolling and release the container and any staged media.
+	 * Called instead of adopting the item.
+	 */
+	public synchronized void close() {
+		cancelled = true;
+		if (!running)
+			release();
+	}
+
+	private void release() {
+		MediaLeases leases = runtime.getLeases();
+		leases.releaseAll(runtime.getVideoFrameBuffer());
+		leases.releaseAll(runtime.getAudioFrameBuffer());
+		leases.releaseAll(runtime.getFrameReorderWindow());
+		for (MediaLease<IPacket> packet : leftover)
+			packet.release();
+		leftover.clear();
+		for (IStreamCoder coder : packetDecoderMap.values()) {
+			coder.close();
+		}
+		IContainer container = runtime.getContainer();
+		if (container != null)
+			container.close();
+		runtime.setContainer(null);
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the runtime holding the item's container, coders, resampler,
+	 *         stream maps and staged frames
+	 */
+	public EngineRuntime getRuntime() {
+		return runtime;
+	}
+
+	public Map<Integer, IStreamCoder> getPacketDecoderMap() {
+		return packetDecoderMap;
+	}
+
+	/**
+	 * @return packets read after the staged frames, in container order
+	 */
+	public List<MediaLease<IPacket>> getLeftoverPackets() {
+		return leftover;
+	}
+
+	/**
+	 * @return the earliest staged timestamp, where the item starts on its own
+	 *         timeline
+	 */
+	public long getStartTimestamp() {
+		return startTimestamp;
+	}
+
+	/**
+	 * @return why pre-rolling failed, or null
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isUsable() {
+		return failure == null && !cancelled && startTimestamp != Long.MAX_VALUE
+				&& startTimestamp >= 0;
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.seek;
+
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.TimeUtil;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * The decode-forward half of an accurate seek. The container is moved to the
+ * key frame before the target and the pipeline decodes forward from there;
+ * whoever presents video frames asks skip() about each one, so the frames
+ * before the target go to the DecodedFrameCache instead of the screen.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class DecodeForward {
+
+	private DecodeForward() {
+	}
+
+	/**
+	 * @return true if the frame comes before the runtime's seek target and
+	 *         must not be presented; false once the frame showing the target
+	 *         arrives (which ends the decode-forward), or if there is no
+	 *         target
+	 */
+	public static boolean skip(EngineRuntime engineRuntime,
+			MediaLease<IVideoPicture> lease) {
+		long target = engineRuntime.getSeekTarget();
+		if (target < 0)
+			return false;
+
+		DecodedFrameCache cache = engineRuntime.getDecodedFrameCache();
+		if (cache != null)
+			cache.put(lease);
+
+		IVideoPicture picture = lease.get();
+		long period = TimeUtil.getFramePeriod(engineRuntime.getVideoCoder());
+		if (picture.getTimeStamp() + Math.max(period, 1) <= target) {
+			engineRuntime.getMetrics().increment("seek.accurate.skipped");
+			return true;
+		}
+
+		engineRuntime.setSeekTarget(-1);
+		return false;
+	}
+
+}
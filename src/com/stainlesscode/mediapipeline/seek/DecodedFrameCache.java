@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.seek;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Decoded video frames kept around recent accurate seek targets: the frames
+ * decoded forward from the key frame to the target, and the target itself.
+ * Another seek into the same stretch of a GOP finds its frame here instead of
+ * decoding forward again.
+ * 
+ * The cache is bounded by a frame count and, optionally, a byte budget (as
+ * reported by IVideoPicture.getSize()); the least recently used frames are
+ * dropped first. A frame is kept by retaining its lease.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class DecodedFrameCache {
+
+	private final int capacity;
+	private final long byteBudget;
+
+	// by timestamp for lookups, and in access order for eviction
+	private final TreeMap<Long, MediaLease<IVideoPicture>> frames = new TreeMap<Long, MediaLease<IVideoPicture>>();
+	private final LinkedHashMap<Long, MediaLease<IVideoPicture>> lru = new LinkedHashMap<Long, MediaLease<IVideoPicture>>(
+			16, 0.75f, true);
+	private long bytes;
+
+	/**
+	 * @param capacity
+	 *            maximum number of frames kept, 0 disables the cache
+	 * @param byteBudget
+	 *            maximum number of bytes kept, 0 means no limit
+	 */
+	public DecodedFrameCache(int capacity, long byteBudget) {
+		this.capacity = Math.max(capacity, 0);
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * Keep a decoded frame. The cache retains the lease, so the caller may
+	 * release it.
+	 */
+	public synchronized void put(MediaLease<IVideoPicture> lease) {
+		if (capacity == 0 || lease == null)
+			return;
+		IVideoPicture picture = lease.get();
+		if (picture == null)
+			return;
+
+		Long timestamp = Long.valueOf(picture.getTimeStamp());
+		if (frames.containsKey(timestamp)) {
+			lru.get(timestamp);
+			return;
+		}
+
+		lease.retain();
+		frames.put(timestamp, lease);
+		lru.put(timestamp, lease);
+		bytes += picture.getSize();
+
+		Iterator<Map.Entry<Long, MediaLease<IVideoPicture>>> eldest = lru
+				.entrySet().iterator();
+		while (lru.size() > 1
+				&& (lru.size() > capacity || (byteBudget > 0 && bytes > byteBudget))) {
+			Map.Entry<Long, MediaLease<IVideoPicture>> entry = eldest.next();
+			frames.remove(entry.getKey());
+			bytes -= entry.getValue().get().getSize();
+			entry.getValue().release();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * @param framePeriod
+	 *            how long each frame is shown
+	 * @return the frame on screen at the timestamp, or null if it is not
+	 *         cached
+	 */
+	public synchronized IVideoPicture find(long timestamp, long framePeriod) {
+		Map.Entry<Long, MediaLease<IVideoPicture>> entry = frames
+				.floorEntry(timestamp);
+		if (entry == null || entry.getKey() + Math.max(framePeriod, 1) <= timestamp)
+			return null;
+		// refresh its place in the eviction order
+		lru.get(entry.getKey());
+		return entry.getValue().get().copyReference();
+	}
+
+	public synchronized void clear() {
+		for (MediaLease<IVideoPicture> lease : frames.values())
+			lease.release();
+		frames.clear();
+		lru.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return frames.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getBufferedBytes() {
+		return bytes;
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.seek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The key frames of a container: for each stream, the PTS, DTS and byte
+ * position of every key packet, sorted by PTS. Seeking through the index is
+ * a binary search and a byte seek, where IContainer.seekKeyFrame() may read
+ * its way through the file (MPEG-TS, files without an index).
+ * 
+ * An index is built by one pass over the container (see
+ * KeyframeIndexBuilder) and kept in a binary sidecar file, which is only
+ * trusted while the media file has the size and modification time it was
+ * built from.
+ * 
+ * TIMESTAMPS ARE IN STREAM TIME BASE UNITS
+ * 
+ */
+public class KeyframeIndex {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(KeyframeIndex.class);
+
+	// "DKFI"
+	private static final int MAGIC = 0x444b4649;
+	private static final int VERSION = 1;
+
+	private static final String SUFFIX = ".kfi";
+
+	private static final int INITIAL_SIZE = 256;
+
+	/**
+	 * The key frames of one stream.
+	 */
+	private static class Entries {
+		long[] pts = new long[INITIAL_SIZE];
+		long[] dts = new long[INITIAL_SIZE];
+		long[] positions = new long[INITIAL_SIZE];
+		int size;
+
+		void add(long pts, long dts, long position) {
+			if (size == this.pts.length) {
+				this.pts = Arrays.copyOf(this.pts, size * 2);
+				this.dts = Arrays.copyOf(this.dts, size * 2);
+				this.positions = Arrays.copyOf(this.positions, size * 2);
+			}
+			this.pts[size] = pts;
+			this.dts[size] = dts;
+			this.positions[size] = position;
+			size++;
+		}
+
+		/**
+		 * Key frames come in decode order, which is almost always PTS order
+		 * too; sort if it isn't.
+		 */
+		void sort() {
+			for (int i = 1; i < size; i++) {
+				if (pts[i] >= pts[i - 1])
+					continue;
+				// rare, so a simple insertion of the one out of place
+				long p = pts[i], d = dts[i], pos = positions[i];
+				int j = i - 1;
+				while (j >= 0 && pts[j] > p) {
+					pts[j + 1] = pts[j];
+					dts[j + 1] = dts[j];
+					positions[j + 1] = positions[j];
+					j--;
+				}
+				pts[j + 1] = p;
+				dts[j + 1] = d;
+				positions[j + 1] = pos;
+			}
+		}
+	}
+
+	private final Map<Integer, Entries> streams = new HashMap<Integer, Entries>();
+
+	/**
+	 * Record a key packet. Call seal() once they are all in.
+	 */
+	public void add(int streamIndex, long pts, long dts, long position) {
+		Entries entries = streams.get(streamIndex);
+		if (entries == null) {
+			entries = new Entries();
+			streams.put(streamIndex, entries);
+		}
+		entries.add(pts, dts, position);
+	}
+
+	public void seal() {
+		for (Entries entries : streams.values())
+			entries.sort();
+	}
+
+	/**
+	 * @return the byte position of the last key frame of the stream at or
+	 *         before the timestamp, or -1 if there is none
+	 */
+	public long findPosition(int streamIndex, long timestamp) {
+		Entries entries = streams.get(streamIndex);
+		if (entries == null || entries.size == 0)
+			return -1;
+
+		int i = Arrays.binarySearch(entries.pts, 0, entries.size, timestamp);
+		if (i < 0)
+			i = -i - 2;
+		if (i < 0)
+			return -1;
+		return entries.positions[i];
+	}
+
+	/**
+	 * @return the number of key frames recorded for the stream
+	 */
+	public int size(int streamIndex) {
+		Entries entries = streams.get(streamIndex);
+		return entries == null ? 0 : entries.size;
+	}
+
+	/**
+	 * Write the index, with the size and modification time of the media it
+	 * was built from. The file is replaced in one step.
+	 */
+	public void save(File sidecar, long mediaSize, long mediaModified)
+			throws IOException {
+		File temp = new File(sidecar.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(mediaSize);
+			out.writeLong(mediaModified);
+			out.writeInt(streams.size());
+			for (Map.Entry<Integer, Entries> stream : streams.entrySet()) {
+				Entries entries = stream.getValue();
+				out.writeInt(stream.getKey());
+				out.writeInt(entries.size);
+				for (int i = 0; i < entries.size; i++) {
+					out.writeLong(entries.pts[i]);
+					out.writeLong(entries.dts[i]);
+					out.writeLong(entries.positions[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(sidecar)) {
+			// some platforms won't rename over an existing file
+			sidecar.delete();
+			if (!temp.renameTo(sidecar))
+				throw new IOException("could not write " + sidecar);
+		}
+	}
+
+	/**
+	 * @return the index in the sidecar, or null if there is none or it was
+	 *         built from a different version of the media
+	 */
+	public static KeyframeIndex load(File sidecar, long mediaSize,
+			long mediaModified) {
+		if (sidecar == null || !sidecar.isFile())
+			return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(sidecar)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				if (in.readLong() != mediaSize
+						|| in.readLong() != mediaModified) {
+					if (LogUtil.isDebugEnabled())
+						LogUtil.debug(sidecar + " is stale");
+					return null;
+				}
+
+				KeyframeIndex index = new KeyframeIndex();
+				int streamCount = in.readInt();
+				for (int s = 0; s < streamCount; s++) {
+					int streamIndex = in.readInt();
+					int size = in.readInt();
+					for (int i = 0; i < size; i++)
+						index.add(streamIndex, in.readLong(), in.readLong(), in
+								.readLong());
+				}
+				index.seal();
+				return index;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LogUtil.warn("could not read " + sidecar, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the local file a URL refers to, or null if it isn't one
+	 */
+	public static File getMediaFile(String url) {
+		if (url == null)
+			return null;
+
+		File file;
+		if (url.startsWith("file:")) {
+			try {
+				file = new File(URI.create(url));
+			} catch (IllegalArgumentException e) {
+				file = new File(url.substring("file:".length()));
+			}
+		} else {
+			file = new File(url);
+		}
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * @param directory
+	 *            where sidecars are kept, null or empty to keep them next to
+	 *            the media
+	 * @return where the sidecar of the media file lives
+	 */
+	public static File getSidecar(File media, String directory) {
+		if (directory == null || directory.length() == 0)
+			return new File(media.getPath() + SUFFIX);
+		// files of the same name in different places must not collide
+		String path = media.getAbsolutePath();
+		return new File(directory, media.getName() + "-"
+				+ Integer.toHexString(path.hashCode()) + SUFFIX);
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.seek;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IError;
+import com.xuggle.xuggler.IPacket;
+
+/**
+ * Builds a KeyframeIndex by reading a container once, on a container of its
+ * own, then saves it to the sidecar and hands it to the runtime (if the
+ * runtime is still playing the same media). Meant to run on a low priority
+ * stage while the engine plays.
+ */
+public class KeyframeIndexBuilder implements Runnable {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(KeyframeIndexBuilder.class);
+
+	private final EngineRuntime engineRuntime;
+	private final String url;
+	private final File media;
+	private final File sidecar;
+	private volatile boolean cancelled;
+
+	public KeyframeIndexBuilder(EngineRuntime engineRuntime, String url,
+			File media, File sidecar) {
+		this.engineRuntime = engineRuntime;
+		this.url = url;
+		this.media = media;
+		this.sidecar = sidecar;
+	}
+
+	public void run() {
+		long size = media.length();
+		long modified = media.lastModified();
+		long start = System.currentTimeMillis();
+
+		IContainer container = IContainer.make();
+		int result = container.open(url, IContainer.Type.READ, null);
+		if (result < 0) {
+			LogUtil.warn("could not open " + url + " to index it: "
+					+ IError.make(result).getDescription());
+			return;
+		}
+
+		KeyframeIndex index = new KeyframeIndex();
+		int keyframes = 0;
+		try {
+			IPacket packet = IPacket.make();
+			while (!cancelled && container.readNextPacket(packet) >= 0) {
+				if (packet.isKey() && packet.getPosition() >= 0) {
+					index.add(packet.getStreamIndex(), packet.getPts(), packet
+							.getDts(), packet.getPosition());
+					keyframes++;
+				}
+			}
+		} finally {
+			container.close();
+		}
+
+		if (cancelled)
+			return;
+
+		index.seal();
+		engineRuntime.getMetrics().increment("index.built");
+		LogUtil.info("indexed " + keyframes + " key frames of " + url + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		try {
+			index.save(sidecar, size, modified);
+		} catch (IOException e) {
+			LogUtil.warn("could not save the key frame index of " + url, e);
+		}
+
+		IContainer current = engineRuntime.getContainer();
+		if (current != null && url.equals(current.getURL()))
+			engineRuntime.setKeyframeIndex(index);
+	}
+
+	/**
+	 * Stop reading. Nothing is saved or handed to the runtime.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+}
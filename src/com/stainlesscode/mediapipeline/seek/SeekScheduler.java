@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.seek;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.Engine;
+import com.stainlesscode.mediapipeline.StageExecutor;
+import com.stainlesscode.mediapipeline.Synchronizer;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
+import com.stainlesscode.mediapipeline.util.TimeUtil;
+
+/**
+ * Runs seeks off the caller's thread, for scrubbing. Only the latest target
+ * is kept: a request that arrives while another is waiting replaces it, and
+ * one that arrives while a seek is in flight cancels it (stages doing
+ * decode-forward work for it can check isCurrent()). Each request's Future
+ * completes with the timestamp of the first frame presented at its target,
+ * or is cancelled if a newer request or a stop supersedes it.
+ * 
+ * The seeks themselves go through Engine.seek(), on a stage of their own.
+ * While the engine is paused no frame is presented, so the Future completes
+ * once playback resumes.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class SeekScheduler implements MediaPlayerEventListener, Runnable {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(SeekScheduler.class);
+
+	private static final Callable<Long> NOTHING = new Callable<Long>() {
+		public Long call() {
+			throw new IllegalStateException("completed by the SeekScheduler");
+		}
+	};
+
+	/**
+	 * Completed when the first frame at the target is presented.
+	 */
+	private static class SeekFuture extends FutureTask<Long> {
+
+		final long microseconds;
+		final int generation;
+		final long requested = System.nanoTime();
+
+		// absolute target, and the earliest frame that shows it
+		volatile long target;
+		volatile long earliest;
+		// set once the engine has flushed the pipeline for this seek
+		volatile boolean armed;
+
+		SeekFuture(long microseconds, int generation) {
+			super(NOTHING);
+			this.microseconds = microseconds;
+			this.generation = generation;
+		}
+
+		void complete(long timestamp) {
+			set(Long.valueOf(timestamp));
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+	}
+
+	private final Engine engine;
+	private final Object lock = new Object();
+
+	// requested but not started, and seeked but not yet presented
+	private SeekFuture pending;
+	private volatile SeekFuture inFlight;
+	private volatile int generation;
+
+	private StageHandle thread;
+	private volatile boolean running;
+
+	public SeekScheduler(Engine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Seek to the given offset from the start of the stream, asynchronously.
+	 * 
+	 * @return completed with the timestamp of the first frame presented at the
+	 *         target
+	 */
+	public Future<Long> seek(long microseconds) {
+		SeekFuture superseded;
+		SeekFuture cancelled;
+		SeekFuture future;
+
+		synchronized (lock) {
+			future = new SeekFuture(microseconds, ++generation);
+			superseded = pending;
+			cancelled = inFlight;
+			pending = future;
+			inFlight = null;
+
+			running = true;
+			if (thread == null)
+				thread = engine.getEngineRuntime().getStageExecutor().execute(
+						this, "Seek Scheduler Thread",
+						StageExecutor.DEMUX_PRIORITY);
+			lock.notifyAll();
+		}
+
+		if (superseded != null) {
+			superseded.cancel(false);
+			engine.getEngineRuntime().getMetrics().increment("seek.coalesced");
+		}
+		if (cancelled != null) {
+			cancelled.cancel(false);
+			engine.getEngineRuntime().getMetrics().increment("seek.cancelled");
+		}
+
+		return future;
+	}
+
+	/**
+	 * @return false if a newer seek has been requested since the given one
+	 *         was made, so work towards it can be abandoned
+	 */
+	public boolean isCurrent(int generation) {
+		return this.generation == generation;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public void run() {
+		while (true) {
+			SeekFuture next;
+			synchronized (lock) {
+				while (running && pending == null) {
+					try {
+						lock.wait(StageScheduler.IDLE_MILLIS);
+					} catch (InterruptedException e) {
+						// checked below
+					}
+				}
+				if (!running) {
+					// a seek() from now on starts a new stage
+					thread = null;
+					break;
+				}
+				next = pending;
+				pending = null;
+				inFlight = next;
+			}
+
+			Synchronizer synchronizer = engine.getEngineRuntime()
+					.getSynchronizer();
+			next.target = (synchronizer == null ? 0 : synchronizer
+					.getStreamTimeZero())
+					+ next.microseconds;
+			next.earliest = next.target
+					- TimeUtil.getFramePeriod(engine.getEngineRuntime()
+							.getVideoCoder());
+
+			if (LogUtil.isDebugEnabled())
+				LogUtil.debug("seeking to " + next.target);
+
+			try {
+				engine.seek(next.microseconds);
+			} catch (RuntimeException e) {
+				LogUtil.error("seek to " + next.microseconds + " failed", e);
+				synchronized (lock) {
+					if (inFlight == next)
+						inFlight = null;
+				}
+				next.fail(e);
+			}
+		}
+
+		LogUtil.info("thread shutting down gracefully");
+	}
+
+	/**
+	 * Called by the video player for each frame it presents.
+	 */
+	public void framePresented(long timestamp) {
+		SeekFuture future = inFlight;
+		if (future == null || !future.armed || timestamp <= future.earliest)
+			return;
+
+		synchronized (lock) {
+			if (inFlight != future)
+				return;
+			inFlight = null;
+		}
+
+		long latency = (System.nanoTime() - future.requested) / 1000l;
+		engine.getEngineRuntime().getMetrics().set("seek.presented.latency",
+				latency);
+		future.complete(timestamp);
+	}
+
+	/**
+	 * Called by the engine when it serves a seek without going through the
+	 * pipeline (from a cache of decoded frames).
+	 */
+	public void seekServed(long microseconds, long timestamp) {
+		SeekFuture future = inFlight;
+		if (future == null || future.microseconds != microseconds)
+			return;
+		future.armed = true;
+		framePresented(timestamp);
+	}
+
+	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK
+				|| evt.getType() == MediaPlayerEvent.Type.BUFFERED_SEEK) {
+			// frames presented from now on come from the new position
+			SeekFuture future = inFlight;
+			if (future != null
+					&& ((Long) evt.getData()).longValue() == future.microseconds)
+				future.armed = true;
+		} else if (evt.getType() == MediaPlayerEvent.Type.STOP) {
+			stop();
+		}
+	}
+
+	/**
+	 * Cancel every outstanding seek and let the stage go.
+	 */
+	public void stop() {
+		SeekFuture waiting;
+		SeekFuture seeking;
+		synchronized (lock) {
+			waiting = pending;
+			seeking = inFlight;
+			pending = null;
+			inFlight = null;
+			generation++;
+			running = false;
+			lock.notifyAll();
+		}
+		if (waiting != null)
+			waiting.cancel(false);
+		if (seeking != null)
+			seeking.cancel(false);
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.stage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.util.MagazineObjectPool;
+
+/**
+ * A stage submitted to a StageExecutor. The handle stands in for the thread
+ * the stage runs on, which for a pooled executor is only known once the stage
+ * has been picked up: an interrupt() that arrives before then is delivered
+ * when the stage starts.
+ * 
+ */
+public class StageHandle implements Runnable {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(StageHandle.class);
+
+	private final Runnable stage;
+	private final String name;
+	private final int priority;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile Thread thread;
+	private boolean interruptPending;
+
+	public StageHandle(Runnable stage, String name, int priority) {
+		this.stage = stage;
+		this.name = name;
+		this.priority = priority;
+	}
+
+	/**
+	 * Run the stage on the current thread, named and prioritized for the
+	 * stage. A pooled thread gets its own name and priority back afterwards.
+	 */
+	public void run() {
+		Thread current = Thread.currentThread();
+		String oldName = current.getName();
+		int oldPriority = current.getPriority();
+
+		current.setName(name);
+		current.setPriority(priority);
+
+		synchronized (this) {
+			thread = current;
+			if (interruptPending)
+				current.interrupt();
+		}
+
+		try {
+			stage.run();
+		} catch (Throwable t) {
+			LogUtil.error(name + " ended abnormally", t);
+		} finally {
+			synchronized (this) {
+				thread = null;
+			}
+			// don't leak an interrupt, or idle pooled media, to the next stage
+			// on a pooled thread
+			Thread.interrupted();
+			MagazineObjectPool.flushThread();
+			current.setName(oldName);
+			current.setPriority(oldPriority);
+			done.countDown();
+		}
+	}
+
+	public synchronized void interrupt() {
+		if (thread != null)
+			thread.interrupt();
+		else if (isAlive())
+			interruptPending = true;
+	}
+
+	/**
+	 * Wake the stage if it is parked in LockSupport.park().
+	 */
+	public void unpark() {
+		Thread current = thread;
+		if (current != null)
+			LockSupport.unpark(current);
+	}
+
+	/**
+	 * @return true until the stage's run() has returned
+	 */
+	public boolean isAlive() {
+		return done.getCount() > 0;
+	}
+
+	public void join() throws InterruptedException {
+		done.await();
+	}
+
+	public void join(long millis) throws InterruptedException {
+		done.await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public String toString() {
+		return name + (isAlive() ? " (running)" : " (ended)");
+	}
+
+}
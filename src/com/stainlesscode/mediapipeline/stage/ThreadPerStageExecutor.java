@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.stage;
+
+import com.stainlesscode.mediapipeline.EngineSettings;
+import com.stainlesscode.mediapipeline.StageExecutor;
+
+/**
+ * Runs every stage on a dedicated platform thread, which is how the engine
+ * has always worked.
+ * 
+ */
+public class ThreadPerStageExecutor implements StageExecutor {
+
+	public void init(EngineSettings settings) {
+	}
+
+	public StageHandle execute(Runnable stage, String name, int priority) {
+		StageHandle handle = new StageHandle(stage, name, priority);
+		Thread thread = new Thread(handle, name);
+		thread.setPriority(priority);
+		thread.start();
+		return handle;
+	}
+
+	public void shutdown() {
+	}
+
+}
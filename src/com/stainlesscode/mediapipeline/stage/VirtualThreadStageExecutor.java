@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.stage;
+
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.EngineSettings;
+import com.stainlesscode.mediapipeline.StageExecutor;
+
+/**
+ * Runs every stage on its own virtual thread, so idle stages of many engines
+ * cost no platform threads. Priorities do not apply to virtual threads. On a
+ * JVM without virtual threads this falls back to one platform thread per
+ * stage.
+ * 
+ * Stages blocked in native code (Xuggler, the audio line) pin their carrier
+ * thread; the audio line writer should stay on a platform executor if many
+ * engines play audio at once.
+ * 
+ */
+public class VirtualThreadStageExecutor implements StageExecutor {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(VirtualThreadStageExecutor.class);
+
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method START;
+
+	static {
+		Method ofVirtual = null, name = null, start = null;
+		try {
+			// Thread.ofVirtual().name(name).start(runnable), looked up
+			// reflectively so this still builds for older JVMs
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+		} catch (Exception e) {
+			LogUtil.info("virtual threads not available, stages will use platform threads");
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		START = start;
+	}
+
+	private final ThreadPerStageExecutor fallback = new ThreadPerStageExecutor();
+
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	public void init(EngineSettings settings) {
+	}
+
+	public StageHandle execute(Runnable stage, String name, int priority) {
+		if (!isSupported())
+			return fallback.execute(stage, name, priority);
+
+		StageHandle handle = new StageHandle(stage, name, priority);
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			START.invoke(builder, handle);
+		} catch (Exception e) {
+			throw new RuntimeException("could not start " + name, e);
+		}
+		return handle;
+	}
+
+	public void shutdown() {
+	}
+
+}
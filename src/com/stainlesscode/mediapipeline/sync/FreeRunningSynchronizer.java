@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.Synchronizer;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
+
+/**
+ * A synchronizer for headless processing that has no wall clock. The stream
+ * time is the timestamp of the media most recently delivered to an output
+ * (audio if the media has any, video otherwise), so the pipeline runs as fast
+ * as it can decode and never drops media for being late. The outputs report
+ * delivery through setAudioClock() and setVideoClock(); see NullVideoOutput
+ * and NullAudioOutput.
+ * 
+ * ALL TIMESTAMPS IN MICROSECONDS
+ * 
+ */
+public class FreeRunningSynchronizer extends MediaPlayerEventSupport implements
+		Synchronizer, MediaPlayerEventListener {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(FreeRunningSynchronizer.class);
+
+	protected EngineRuntime engineRuntime;
+	protected long audioWriteLatency;
+	protected volatile long streamTimeZero;
+	protected volatile boolean streamTimeZeroSet;
+	protected volatile long videoClock = -1;
+	protected volatile long audioClock = -1;
+	protected long frameTimer;
+
+	@Override
+	public void init(EngineRuntime engineRuntime) {
+		this.engineRuntime = engineRuntime;
+		this.engineRuntime.getEngine().addMediaPlayerEventListener(this);
+	}
+
+	public void start() {
+		LogUtil.info("Starting free-running synchronizer");
+	}
+
+	public void stop() {
+	}
+
+	public long getStreamTime() {
+		return engineRuntime.getAudioCoder() != null ? audioClock : videoClock;
+	}
+
+	/**
+	 * Ready once the audio decoder has set the stream time zero, or straight
+	 * away for media without audio.
+	 */
+	public boolean syncReady() {
+		return streamTimeZeroSet || engineRuntime.getAudioCoder() == null;
+	}
+
+	public boolean isStreamTimeZeroSet() {
+		return streamTimeZeroSet;
+	}
+
+	public void setStreamTimeZero(long streamTimeZero, boolean reset) {
+		LogUtil.info("streamZero set to " + streamTimeZero);
+		this.streamTimeZero = streamTimeZero;
+		this.streamTimeZeroSet = true;
+		// nothing before the zero has been delivered
+		this.audioClock = streamTimeZero;
+		this.videoClock = streamTimeZero;
+		engineRuntime.getStageScheduler().signalAll();
+	}
+
+	public long getStreamTimeZero() {
+		return streamTimeZero;
+	}
+
+	public void reset() {
+		this.streamTimeZeroSet = false;
+		this.streamTimeZero = 0;
+		this.audioClock = -1;
+		this.videoClock = -1;
+		this.frameTimer = 0;
+	}
+
+	public void rebaseStreamTimeZero(long streamTimeZero) {
+		this.streamTimeZero = streamTimeZero;
+	}
+
+	public long getAudioClock() {
+		return audioClock;
+	}
+
+	/**
+	 * Called by the audio output as samples are delivered.
+	 */
+	public void setAudioClock(long audioClock) {
+		this.audioClock = audioClock;
+		if (engineRuntime.getAudioCoder() != null)
+			tick();
+	}
+
+	public long getVideoClock() {
+		return videoClock;
+	}
+
+	/**
+	 * Called by the video output as frames are delivered.
+	 */
+	public void setVideoClock(long videoClock) {
+		this.videoClock = videoClock;
+		if (engineRuntime.getAudioCoder() == null)
+			tick();
+	}
+
+	public long getFrameTimer() {
+		return frameTimer;
+	}
+
+	public void setFrameTimer(long frameTimer) {
+		this.frameTimer = frameTimer;
+	}
+
+	public long getAudioWriteLatency() {
+		return audioWriteLatency;
+	}
+
+	public void setAudioWriteLatency(long l) {
+		this.audioWriteLatency = l;
+	}
+
+	private void tick() {
+		fireMediaPlayerEvent(new MediaPlayerEvent(this,
+				MediaPlayerEvent.Type.STREAM_TIME_TICK, getStreamTime()));
+	}
+
+	@Override
+	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK
+				|| evt.getType() == MediaPlayerEvent.Type.BUFFERED_SEEK) {
+			long streamTime = streamTimeZero
+					+ ((Long) evt.getData()).longValue();
+			this.audioClock = streamTime;
+			this.videoClock = streamTime;
+		}
+	}
+
+}
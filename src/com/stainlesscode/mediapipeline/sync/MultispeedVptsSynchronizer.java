@@ -25,10 +25,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.StageExecutor;
 import com.stainlesscode.mediapipeline.Synchronizer;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
+import com.stainlesscode.mediapipeline.host.ClockService;
+import com.stainlesscode.mediapipeline.host.EngineHost;
+import com.stainlesscode.mediapipeline.stage.StageHandle;
 
 /**
  * This synchronizer uses an offset from the play start time to keep track of
@@ -38,18 +42,19 @@ import com.stainlesscode.mediapipeline.event.MediaPlayerEventSupport;
  * 
  */
 public class MultispeedVptsSynchronizer extends MediaPlayerEventSupport
-		implements Synchronizer, MediaPlayerEventListener {
+		implements Synchronizer, MediaPlayerEventListener, ClockService.Client {
 
 	private static Logger LogUtil = LoggerFactory
 			.getLogger(MultispeedVptsSynchronizer.class);
 
 	protected long audioWriteLatency;
 	protected EngineRuntime engineRuntime;
-	protected Thread clockThread;
+	protected Runnable clock;
+	protected StageHandle clockThread;
 	protected long streamTimeMicroseconds = -1;
-	protected boolean shouldRun = true;
+	protected volatile boolean shouldRun = true;
 	protected long streamTimeZero;
-	protected boolean streamTimeZeroSet;
+	protected volatile boolean streamTimeZeroSet;
 	protected long elapsedTimePointerNanoseconds;
 	
 	// these values are set by the respective threads and shared though the synchronizer
@@ -58,46 +63,65 @@ public class MultispeedVptsSynchronizer extends MediaPlayerEventSupport
 	protected long frameTimer;
 
 	public MultispeedVptsSynchronizer() {
-		this.clockThread = new Thread(new Runnable() {
+		this.clock = new Runnable() {
 
 			@Override
 			public void run() {
 				while (shouldRun) {
-					if (engineRuntime != null && !engineRuntime.isPaused()) {
-						long elapsedTimeNanoseconds = System.nanoTime()
-								- elapsedTimePointerNanoseconds;
-
-						streamTimeMicroseconds += (elapsedTimeNanoseconds / 1000)
-								* engineRuntime.getPlaySpeed();
-
-						if (LogUtil.isDebugEnabled()) {
-							LogUtil.debug("elapsedTimeNanoseconds="
-									+ elapsedTimeNanoseconds);
-							LogUtil.debug("streamTime updated to "
-									+ streamTimeMicroseconds);
+					if (engineRuntime.isPaused()) {
+						try {
+							engineRuntime.getStageScheduler().awaitUnpaused(
+									null);
+						} catch (InterruptedException e) {
+							// stop() interrupts the clock
+							continue;
 						}
-
-						fireMediaPlayerEvent(new MediaPlayerEvent(this,
-								MediaPlayerEvent.Type.STREAM_TIME_TICK,
-								streamTimeMicroseconds));
-
+						// don't count the time spent paused
 						elapsedTimePointerNanoseconds = System.nanoTime();
+					} else {
+						tick();
 
 						try {
 							// @29.97fps, 34000 microseconds per frame
 							TimeUnit.MICROSECONDS.sleep(5000);
 						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
+							// stop() interrupts the clock
 						}
 					}
 				}
 				if (LogUtil.isDebugEnabled())
 					LogUtil.debug("thread shutting down gracefully");
 			}
-		});
+		};
+	}
+
+	/**
+	 * Advance the stream time by the time elapsed since the last tick. Called
+	 * by the synchronizer's own clock thread, or by the host's ClockService
+	 * for engines on an EngineHost.
+	 */
+	public void tick() {
+		if (engineRuntime.isPaused()) {
+			// don't count the time spent paused
+			elapsedTimePointerNanoseconds = System.nanoTime();
+			return;
+		}
+
+		long elapsedTimeNanoseconds = System.nanoTime()
+				- elapsedTimePointerNanoseconds;
 
-		this.clockThread.setPriority(Thread.MAX_PRIORITY);
+		streamTimeMicroseconds += (elapsedTimeNanoseconds / 1000)
+				* engineRuntime.getPlaySpeed();
+
+		if (LogUtil.isDebugEnabled()) {
+			LogUtil.debug("elapsedTimeNanoseconds=" + elapsedTimeNanoseconds);
+			LogUtil.debug("streamTime updated to " + streamTimeMicroseconds);
+		}
+
+		fireMediaPlayerEvent(new MediaPlayerEvent(this,
+				MediaPlayerEvent.Type.STREAM_TIME_TICK, streamTimeMicroseconds));
+
+		elapsedTimePointerNanoseconds = System.nanoTime();
 	}
 
 	@Override
@@ -124,19 +148,32 @@ public class MultispeedVptsSynchronizer extends MediaPlayerEventSupport
 	public void start() {
 		LogUtil.info("Starting synchronizer");
 
-		if (!clockThread.isAlive()) {
+		EngineHost host = engineRuntime.getHost();
+		if (host != null) {
+			// the host's clock thread ticks every engine's synchronizer
+			if (!shouldRun)
+				return;
+			elapsedTimePointerNanoseconds = System.nanoTime();
+			host.getClockService().register(this);
+		} else if (clockThread == null) {
 			elapsedTimePointerNanoseconds = System.nanoTime();
-			clockThread.start();
+			clockThread = engineRuntime.getStageExecutor().execute(clock,
+					"Synchronizer Clock Thread", StageExecutor.CLOCK_PRIORITY);
 		}
 	}
 
 	public void stop() {
 		shouldRun = false;
+		if (engineRuntime != null && engineRuntime.getHost() != null)
+			engineRuntime.getHost().getClockService().unregister(this);
+		if (clockThread != null)
+			clockThread.interrupt();
 	}
 
 	@Override
 	public void mediaPlayerEventReceived(MediaPlayerEvent evt) {
-		if (evt.getType() == MediaPlayerEvent.Type.SEEK) {
+		if (evt.getType() == MediaPlayerEvent.Type.SEEK
+				|| evt.getType() == MediaPlayerEvent.Type.BUFFERED_SEEK) {
 			if (LogUtil.isDebugEnabled())
 				LogUtil.debug("updated streamTimeMicroseconds to "
 						+ evt.getData());
@@ -169,6 +206,8 @@ public class MultispeedVptsSynchronizer extends MediaPlayerEventSupport
 			this.streamTimeMicroseconds = streamTimeZero
 					+ this.streamTimeMicroseconds;
 		}
+		// players may be parked waiting for sync
+		engineRuntime.getStageScheduler().signalAll();
 	}
 
 	/**
@@ -185,8 +224,24 @@ public class MultispeedVptsSynchronizer extends MediaPlayerEventSupport
 		return streamTimeZeroSet;
 	}
 
+	public void reset() {
+		this.streamTimeZeroSet = false;
+		this.streamTimeZero = 0;
+		this.streamTimeMicroseconds = -1;
+		this.videoClock = 0;
+		this.audioClock = 0;
+		this.frameTimer = 0;
+		elapsedTimePointerNanoseconds = System.nanoTime();
+	}
+
+	public void rebaseStreamTimeZero(long streamTimeZero) {
+		LogUtil.info("streamZero rebased to " + streamTimeZero);
+		this.streamTimeZero = streamTimeZero;
+	}
+
 	public void setStreamTimeZeroSet(boolean streamTimeZeroSet) {
 		this.streamTimeZeroSet = streamTimeZeroSet;
+		engineRuntime.getStageScheduler().signalAll();
 	}
 
 	@Override
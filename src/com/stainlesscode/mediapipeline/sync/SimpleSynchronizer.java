@@ -160,6 +160,20 @@ public class SimpleSynchronizer extends MediaPlayerEventSupport implements
 		return streamTimeZeroSet;
 	}
 
+	@Override
+	public void reset() {
+		this.streamTimeZeroSet = false;
+		this.streamTimeZero = 0;
+		this.clapTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public void rebaseStreamTimeZero(long streamTimeZero) {
+		// the clock counts from the zero, so move the clap time with it
+		this.clapTime += (streamTimeZero - this.streamTimeZero) / 1000;
+		this.streamTimeZero = streamTimeZero;
+	}
+
 	@Override
 	public long getAudioClock() {
 		// TODO Auto-generated method stub
@@ -159,4 +159,16 @@ public class VptsSynchronizer extends MediaPlayerEventSupport implements
 		return 0;
 	}
 
+	@Override
+	public void reset() {
+		// the clock only runs once started
+		if (this.streamTimeMicroseconds >= 0)
+			this.streamTimeMicroseconds = 0;
+	}
+
+	@Override
+	public void rebaseStreamTimeZero(long streamTimeZero) {
+		// this clock has no zero
+	}
+
 }
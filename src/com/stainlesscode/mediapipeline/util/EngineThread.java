@@ -29,8 +29,8 @@ package com.stainlesscode.mediapipeline.util;
  */
 public abstract class EngineThread implements Runnable {
 	
-	protected boolean markedForDeath;
-	protected boolean clipEnded;
+	protected volatile boolean markedForDeath;
+	protected volatile boolean clipEnded;
 
 	public boolean isMarkedForDeath() {
 		return markedForDeath;
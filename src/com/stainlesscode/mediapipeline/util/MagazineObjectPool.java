@@ -0,0 +1,431 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An object pool for media objects that are borrowed on one stage and
+ * returned on another (the demultiplexer borrows packets, the decoders return
+ * them). Each thread borrows from and returns to its own pair of magazines
+ * (small stacks of idle objects) without any locking; full magazines are
+ * handed between threads through a lock-free depot. The returning thread's
+ * magazines fill up and go to the depot, where the borrowing thread picks
+ * them up once its own run dry.
+ * 
+ * The depot holds at most maxIdle objects, objects returned beyond that are
+ * destroyed. Each thread keeps up to two magazines of its own on top of that,
+ * until it calls flushThread() (StageHandle does when a stage ends) or dies;
+ * clear() and close() destroy what dead threads left behind.
+ * 
+ * With leak tracking on, the pool remembers where every outstanding object
+ * was borrowed; reportLeaks() (and close()) logs the ones never returned.
+ * This costs a synchronized map operation per borrow and return, so it is
+ * meant for debugging only.
+ * 
+ * Configure the pool before the first borrow.
+ * 
+ */
+public class MagazineObjectPool implements ObjectPool {
+
+	private static Logger LogUtil = LoggerFactory
+			.getLogger(MagazineObjectPool.class);
+
+	public static final int DEFAULT_MAGAZINE_SIZE = 16;
+
+	public static final int DEFAULT_MAX_IDLE = 256;
+
+	private static class Magazine {
+		final Object[] items;
+		int size;
+
+		Magazine(int capacity) {
+			items = new Object[capacity];
+		}
+
+		boolean isFull() {
+			return size == items.length;
+		}
+
+		void push(Object obj) {
+			items[size++] = obj;
+		}
+
+		Object pop() {
+			Object obj = items[--size];
+			items[size] = null;
+			return obj;
+		}
+	}
+
+	private class Magazines {
+		final Thread owner = Thread.currentThread();
+		Magazine loaded = new Magazine(magazineSize);
+		Magazine previous = new Magazine(magazineSize);
+		int epoch = MagazineObjectPool.this.epoch;
+
+		void swap() {
+			Magazine magazine = loaded;
+			loaded = previous;
+			previous = magazine;
+		}
+	}
+
+	private PoolableObjectFactory factory;
+	private int magazineSize = DEFAULT_MAGAZINE_SIZE;
+	private int maxIdle = DEFAULT_MAX_IDLE;
+
+	private final ConcurrentLinkedQueue<Magazine> depot = new ConcurrentLinkedQueue<Magazine>();
+	private final AtomicInteger depotSize = new AtomicInteger();
+	private final AtomicInteger numActive = new AtomicInteger();
+	private final AtomicInteger numIdle = new AtomicInteger();
+
+	// clear() bumps the epoch, and threads drop the contents of magazines
+	// from an older one the next time they use them
+	private volatile int epoch;
+	private volatile boolean closed;
+
+	private final ThreadLocal<Magazines> magazines = new ThreadLocal<Magazines>() {
+		@Override
+		protected Magazines initialValue() {
+			Magazines m = new Magazines();
+			holders.add(m);
+			threadPools.get().add(MagazineObjectPool.this);
+			return m;
+		}
+	};
+
+	// every thread's magazines, so clear() can reach those of dead threads
+	private final ConcurrentLinkedQueue<Magazines> holders = new ConcurrentLinkedQueue<Magazines>();
+
+	// the pools the current thread holds magazines of
+	private static final ThreadLocal<List<MagazineObjectPool>> threadPools = new ThreadLocal<List<MagazineObjectPool>>() {
+		@Override
+		protected List<MagazineObjectPool> initialValue() {
+			return new ArrayList<MagazineObjectPool>();
+		}
+	};
+
+	// where each outstanding object was borrowed, null unless tracking leaks
+	private volatile Map<Object, Throwable> borrowed;
+
+	public MagazineObjectPool(PoolableObjectFactory factory) {
+		this.factory = factory;
+	}
+
+	public void setMagazineSize(int magazineSize) {
+		this.magazineSize = Math.max(magazineSize, 1);
+	}
+
+	public int getMagazineSize() {
+		return magazineSize;
+	}
+
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = Math.max(maxIdle, 0);
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public void setLeakTracking(boolean leakTracking) {
+		this.borrowed = leakTracking ? Collections
+				.synchronizedMap(new IdentityHashMap<Object, Throwable>())
+				: null;
+	}
+
+	public boolean isLeakTracking() {
+		return borrowed != null;
+	}
+
+	public Object borrowObject() throws Exception {
+		if (closed)
+			throw new IllegalStateException("pool closed");
+
+		Magazines m = getMagazines();
+		if (m.loaded.size == 0) {
+			if (m.previous.size > 0) {
+				m.swap();
+			} else {
+				Magazine full = depot.poll();
+				if (full != null) {
+					depotSize.addAndGet(-full.size);
+					m.loaded = full;
+				}
+			}
+		}
+
+		Object obj;
+		if (m.loaded.size > 0) {
+			obj = m.loaded.pop();
+			numIdle.decrementAndGet();
+		} else {
+			obj = factory.makeObject();
+		}
+
+		factory.activateObject(obj);
+		numActive.incrementAndGet();
+
+		Map<Object, Throwable> tracking = borrowed;
+		if (tracking != null)
+			tracking.put(obj, new Throwable("borrowed by "
+					+ Thread.currentThread().getName()));
+
+		return obj;
+	}
+
+	public void returnObject(Object obj) throws Exception {
+		if (obj == null)
+			return;
+
+		Map<Object, Throwable> tracking = borrowed;
+		if (tracking != null && tracking.remove(obj) == null)
+			LogUtil.warn("returning " + obj
+					+ ", which was not borrowed from this pool");
+
+		numActive.decrementAndGet();
+		release(obj);
+	}
+
+	public void invalidateObject(Object obj) throws Exception {
+		Map<Object, Throwable> tracking = borrowed;
+		if (tracking != null)
+			tracking.remove(obj);
+		numActive.decrementAndGet();
+		destroy(obj);
+	}
+
+	public void addObject() throws Exception {
+		prefill(1);
+	}
+
+	/**
+	 * Create up to a magazine of idle objects and put them in the depot,
+	 * where any thread can borrow them. Does not go past maxIdle.
+	 * 
+	 * @return the number of objects created
+	 */
+	public int prefill(int count) throws Exception {
+		if (closed)
+			throw new IllegalStateException("pool closed");
+
+		int n = Math.min(Math.min(count, magazineSize), maxIdle
+				- depotSize.get());
+		if (n <= 0)
+			return 0;
+
+		Magazine magazine = new Magazine(magazineSize);
+		while (magazine.size < n) {
+			Object obj = factory.makeObject();
+			factory.passivateObject(obj);
+			magazine.push(obj);
+		}
+		depotSize.addAndGet(n);
+		numIdle.addAndGet(n);
+		depot.offer(magazine);
+		return n;
+	}
+
+	public int getNumIdle() {
+		return numIdle.get();
+	}
+
+	public int getNumActive() {
+		return numActive.get();
+	}
+
+	/**
+	 * Destroy the idle objects in the depot and in the magazines of threads
+	 * that have died. Objects in the magazines of other live threads are
+	 * dropped the next time those threads use the pool or flush it.
+	 */
+	public void clear() throws Exception {
+		epoch++;
+		Magazine magazine;
+		while ((magazine = depot.poll()) != null) {
+			depotSize.addAndGet(-magazine.size);
+			drain(magazine);
+		}
+		Magazines m = magazines.get();
+		drain(m.loaded);
+		drain(m.previous);
+		m.epoch = epoch;
+
+		for (Magazines held : holders) {
+			if (!held.owner.isAlive() && holders.remove(held)) {
+				drain(held.loaded);
+				drain(held.previous);
+			}
+		}
+	}
+
+	/**
+	 * Hand the calling thread's magazines to the depot (or destroy them, past
+	 * maxIdle or after a clear), so a thread that is done with the pool does
+	 * not keep idle objects to itself.
+	 */
+	public void flush() {
+		Magazines m = magazines.get();
+		magazines.remove();
+		holders.remove(m);
+		threadPools.get().remove(this);
+		if (closed || m.epoch != epoch) {
+			drain(m.loaded);
+			drain(m.previous);
+		} else {
+			surrender(m.loaded);
+			surrender(m.previous);
+		}
+	}
+
+	/**
+	 * Flush every pool the calling thread holds magazines of. Called when a
+	 * stage ends, since pooled threads outlive their stages.
+	 */
+	public static void flushThread() {
+		List<MagazineObjectPool> pools = threadPools.get();
+		for (MagazineObjectPool pool : new ArrayList<MagazineObjectPool>(
+				pools)) {
+			pool.flush();
+		}
+		threadPools.remove();
+	}
+
+	public void close() throws Exception {
+		closed = true;
+		clear();
+		reportLeaks();
+	}
+
+	public void setFactory(PoolableObjectFactory factory) {
+		if (numActive.get() > 0)
+			throw new IllegalStateException(
+					"objects are still borrowed from the pool");
+		try {
+			clear();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		this.factory = factory;
+	}
+
+	/**
+	 * Log every object that has been borrowed and not returned, with where
+	 * it was borrowed. Only works with leak tracking on.
+	 * 
+	 * @return the number of outstanding objects
+	 */
+	public int reportLeaks() {
+		Map<Object, Throwable> tracking = borrowed;
+		if (tracking == null)
+			return 0;
+
+		List<Map.Entry<Object, Throwable>> outstanding;
+		synchronized (tracking) {
+			outstanding = new ArrayList<Map.Entry<Object, Throwable>>(
+					tracking.entrySet());
+		}
+		for (Map.Entry<Object, Throwable> entry : outstanding) {
+			LogUtil.warn("never returned: " + entry.getKey(), entry.getValue());
+		}
+		return outstanding.size();
+	}
+
+	private void release(Object obj) {
+		if (closed) {
+			destroy(obj);
+			return;
+		}
+
+		try {
+			factory.passivateObject(obj);
+		} catch (Exception e) {
+			destroy(obj);
+			return;
+		}
+
+		Magazines m = getMagazines();
+		if (m.loaded.isFull()) {
+			if (m.previous.size == 0) {
+				m.swap();
+			} else if (depotSize.get() + m.loaded.size <= maxIdle) {
+				depotSize.addAndGet(m.loaded.size);
+				depot.offer(m.loaded);
+				m.loaded = new Magazine(magazineSize);
+			} else {
+				// enough idle objects already
+				destroy(obj);
+				return;
+			}
+		}
+
+		m.loaded.push(obj);
+		numIdle.incrementAndGet();
+	}
+
+	private Magazines getMagazines() {
+		Magazines m = magazines.get();
+		if (m.epoch != epoch) {
+			drain(m.loaded);
+			drain(m.previous);
+			m.epoch = epoch;
+		}
+		return m;
+	}
+
+	private void surrender(Magazine magazine) {
+		if (magazine.size == 0)
+			return;
+		if (depotSize.get() + magazine.size <= maxIdle) {
+			depotSize.addAndGet(magazine.size);
+			depot.offer(magazine);
+		} else {
+			drain(magazine);
+		}
+	}
+
+	private void drain(Magazine magazine) {
+		while (magazine.size > 0) {
+			numIdle.decrementAndGet();
+			destroy(magazine.pop());
+		}
+	}
+
+	private void destroy(Object obj) {
+		try {
+			factory.destroyObject(obj);
+		} catch (Exception e) {
+			LogUtil.warn("could not destroy " + obj, e);
+		}
+	}
+
+}
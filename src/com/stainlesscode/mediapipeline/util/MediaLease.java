@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * Ownership of a packet, picture or samples object as it moves down the
+ * pipeline. The stage that borrows or makes the object acquires the lease
+ * (see MediaLeases.acquire()), and it is the lease that is handed from stage
+ * to stage: the buffers between the stages hold leases, and get() gives the
+ * object itself. The stage that is done with it last releases the lease.
+ * Anything that keeps the object beyond that (the frame history, say)
+ * retains the lease and releases it in turn.
+ * 
+ * When the count drops to zero the object goes back to the pool it was
+ * borrowed from, if any, and get() returns null from then on. A holder that
+ * releases once too often is warned about; it cannot release the lease the
+ * object is under once it has been borrowed again.
+ * 
+ */
+public class MediaLease<T extends IMediaData> {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(MediaLease.class);
+
+	private final MediaLeases owner;
+	private final ObjectPool pool;
+	private final String stage;
+	private final AtomicInteger count = new AtomicInteger(1);
+	private volatile T media;
+
+	// what NativeMemory has been told the object holds
+	final String type;
+	volatile long bytes;
+
+	// where the lease was acquired, only kept when tracking leaks
+	final Throwable origin;
+
+	MediaLease(MediaLeases owner, T media, ObjectPool pool, String stage,
+			boolean trackOrigin) {
+		this.owner = owner;
+		this.media = media;
+		this.pool = pool;
+		this.stage = stage;
+		this.type = NativeMemory.typeOf(media);
+		this.bytes = media.getSize();
+		this.origin = trackOrigin ? new Throwable("acquired by " + stage
+				+ " on " + Thread.currentThread().getName()) : null;
+	}
+
+	/**
+	 * @return the leased object, or null once the lease has been released
+	 */
+	public T get() {
+		return media;
+	}
+
+	/**
+	 * @return the stage that acquired the lease
+	 */
+	public String getStage() {
+		return stage;
+	}
+
+	/**
+	 * @return the pool the object goes back to, or null if it was not
+	 *         borrowed from one
+	 */
+	public ObjectPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Take another hold on the object, to be given up with release().
+	 */
+	public MediaLease<T> retain() {
+		if (count.getAndIncrement() <= 0)
+			LogUtil.warn("retaining a released lease acquired by " + stage);
+		return this;
+	}
+
+	/**
+	 * Give up a hold on the object. The last release returns the object to
+	 * its pool; the caller must not touch it afterwards.
+	 */
+	public void release() {
+		int n = count.decrementAndGet();
+		if (n > 0)
+			return;
+		if (n < 0) {
+			LogUtil.warn("lease acquired by " + stage + " released twice",
+					origin);
+			return;
+		}
+
+		T media = this.media;
+		this.media = null;
+		owner.forget(this);
+
+		if (pool != null && media != null) {
+			try {
+				pool.returnObject(media);
+			} catch (Exception e) {
+				LogUtil.warn("could not return " + media + " to its pool", e);
+			}
+		}
+	}
+
+	/**
+	 * Take another hold on the object unless the lease has already been
+	 * released, e.g. by another thread.
+	 * 
+	 * @return false, without taking a hold, if the lease was released
+	 */
+	public boolean tryRetain() {
+		int n;
+		do {
+			n = count.get();
+			if (n <= 0)
+				return false;
+		} while (!count.compareAndSet(n, n + 1));
+		return true;
+	}
+
+	public boolean isReleased() {
+		return count.get() <= 0;
+	}
+
+	/**
+	 * @return the media an element of a buffer stands for: the leased object
+	 *         if the element is a lease, otherwise the element itself
+	 */
+	public static IMediaData mediaOf(Object element) {
+		if (element instanceof MediaLease)
+			return ((MediaLease<?>) element).get();
+		return (IMediaData) element;
+	}
+
+	/**
+	 * Retain an element of a buffer, if it is a lease.
+	 * 
+	 * @return false if the element is a lease that was already released
+	 */
+	public static boolean tryRetainElement(Object element) {
+		if (element instanceof MediaLease)
+			return ((MediaLease<?>) element).tryRetain();
+		return true;
+	}
+
+	/**
+	 * Release an element taken out of a buffer, if it is a lease.
+	 */
+	public static void releaseElement(Object element) {
+		if (element instanceof MediaLease)
+			((MediaLease<?>) element).release();
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections.Buffer;
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stainlesscode.mediapipeline.EngineMetrics;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
+import com.stainlesscode.mediapipeline.packetdecoder.FrameReorderWindow;
+import com.xuggle.xuggler.IMediaData;
+
+/**
+ * Hands out the MediaLeases of an engine and counts the ones outstanding.
+ * Nothing is looked up by object: each lease travels with its object, and
+ * acquiring one costs a single allocation.
+ * 
+ * With tracking on, each lease also records where it was acquired and is
+ * kept in a set until it is released, so report() can log where every
+ * outstanding lease came from. This is meant for debugging only.
+ * 
+ * The bytes each lease holds are accounted to the engine's NativeMemory, if
+ * set; the stage that fills an object after acquiring it calls measure().
+ * 
+ */
+public class MediaLeases {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(MediaLeases.class);
+
+	public static final String DEMUX_STAGE = "demux";
+
+	public static final String VIDEO_DECODE_STAGE = "videoDecode";
+
+	public static final String AUDIO_DECODE_STAGE = "audioDecode";
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+	// the outstanding leases acquired with tracking on
+	private final Set<MediaLease<?>> tracked = Collections
+			.newSetFromMap(new ConcurrentHashMap<MediaLease<?>, Boolean>());
+	private final EngineMetrics metrics;
+	private volatile boolean tracking;
+	private volatile NativeMemory memory;
+
+	public MediaLeases(EngineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setTracking(boolean tracking) {
+		this.tracking = tracking;
+	}
+
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	public void setNativeMemory(NativeMemory memory) {
+		this.memory = memory;
+	}
+
+	public NativeMemory getNativeMemory() {
+		return memory;
+	}
+
+	/**
+	 * Lease an object that has just been borrowed from the pool, or made if
+	 * pool is null.
+	 */
+	public <T extends IMediaData> MediaLease<T> acquire(T media,
+			ObjectPool pool, String stage) {
+		MediaLease<T> lease = new MediaLease<T>(this, media, pool, stage,
+				tracking);
+		outstanding.incrementAndGet();
+		if (lease.origin != null)
+			tracked.add(lease);
+		NativeMemory memory = this.memory;
+		if (memory != null)
+			memory.acquired(lease.type, stage, lease.bytes, pool == null);
+		return lease;
+	}
+
+	/**
+	 * Recount the bytes of a leased object that has been filled or resized
+	 * since it was acquired (a packet read from the container, say).
+	 */
+	public void measure(MediaLease<?> lease) {
+		IMediaData media = lease.get();
+		if (media == null)
+			return;
+		long bytes = media.getSize();
+		long delta = bytes - lease.bytes;
+		lease.bytes = bytes;
+		NativeMemory memory = this.memory;
+		if (memory != null)
+			memory.live(lease.type, lease.getStage(), delta);
+	}
+
+	/**
+	 * Empty a buffer, releasing what it held. A MediaBuffer releases what it
+	 * discards by itself.
+	 */
+	public void releaseAll(Buffer buffer) {
+		if (buffer instanceof MediaBuffer) {
+			buffer.clear();
+			return;
+		}
+		while (!buffer.isEmpty())
+			MediaLease.releaseElement(buffer.remove());
+	}
+
+	/**
+	 * Empty a reorder window, releasing what it held.
+	 */
+	public void releaseAll(FrameReorderWindow window) {
+		if (window != null)
+			window.clear();
+	}
+
+	/**
+	 * @return the number of outstanding leases
+	 */
+	public int size() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Log the number of outstanding leases, and with tracking on, the
+	 * outstanding leases by the stage that acquired them and where each was
+	 * acquired.
+	 * 
+	 * @return the number of outstanding leases
+	 */
+	public int report() {
+		Map<String, Integer> byStage = new TreeMap<String, Integer>();
+		for (MediaLease<?> lease : tracked) {
+			Integer n = byStage.get(lease.getStage());
+			byStage.put(lease.getStage(), n == null ? 1 : n + 1);
+			LogUtil.info("outstanding lease", lease.origin);
+		}
+		int n = outstanding.get();
+		if (n > 0)
+			LogUtil.info(n + " outstanding leases"
+					+ (byStage.isEmpty() ? "" : ", tracked by stage "
+							+ byStage));
+		metrics.set("lease.outstanding", n);
+		return n;
+	}
+
+	void forget(MediaLease<?> lease) {
+		outstanding.decrementAndGet();
+		if (lease.origin != null)
+			tracked.remove(lease);
+		NativeMemory memory = this.memory;
+		if (memory != null)
+			memory.live(lease.type, lease.getStage(), -lease.bytes);
+	}
+
+}
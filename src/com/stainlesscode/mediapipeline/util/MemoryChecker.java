@@ -51,6 +51,11 @@ public class MemoryChecker extends EngineThread {
 						+ new BigDecimal(pct)
 								.setScale(2, BigDecimal.ROUND_DOWN) + "%)");
 
+				// the heap says little about the media, which is native
+				NativeMemory nativeMemory = engineRuntime.getNativeMemory();
+				if (nativeMemory != null)
+					LogUtil.info("nativeMemory=" + nativeMemory.snapshot());
+
 				if (engineRuntime.getPacketPool() != null) {
 					int packetPoolActive = engineRuntime.getPacketPool()
 							.getNumActive();
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.stainlesscode.mediapipeline.EngineMetrics;
+import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IMediaData;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * Accounts for the native memory behind the packets, pictures and samples of
+ * an engine (or of all the engines of a host), as reported by getSize():
+ * 
+ * memory.live: bytes held by the pipeline, i.e. under a MediaLease, by media
+ * type (memory.live.[type]) and by the stage that acquired them
+ * (memory.live.stage.[stage]). The budget applies to this.
+ * 
+ * memory.pooled.[type]: bytes of the pooled objects made by the pool
+ * factories, in use or idle.
+ * 
+ * memory.allocated.[type]: bytes ever allocated, by the pool factories or
+ * by stages making unpooled objects.
+ * 
+ * The counters are kept in the EngineMetrics given to the constructor, and
+ * every change is passed on to the parent account, so a host's account sums
+ * those of its engines. The demultiplexers call backOff() before reading and
+ * hold off while the engine or its host is over budget; each release wakes
+ * them to check again.
+ * 
+ * The counter names are built once per media type and stage, not per update.
+ * 
+ */
+public class NativeMemory {
+
+	public static final String PACKET = "packet";
+
+	public static final String PICTURE = "picture";
+
+	public static final String SAMPLES = "samples";
+
+	public static final String OTHER = "other";
+
+	private static final Map<String, String> LIVE_KEYS = new HashMap<String, String>();
+	private static final Map<String, String> POOLED_KEYS = new HashMap<String, String>();
+	private static final Map<String, String> ALLOCATED_KEYS = new HashMap<String, String>();
+	private static final ConcurrentMap<String, String> STAGE_KEYS = new ConcurrentHashMap<String, String>();
+
+	static {
+		for (String type : new String[] { PACKET, PICTURE, SAMPLES, OTHER }) {
+			LIVE_KEYS.put(type, "memory.live." + type);
+			POOLED_KEYS.put(type, "memory.pooled." + type);
+			ALLOCATED_KEYS.put(type, "memory.allocated." + type);
+		}
+	}
+
+	private final NativeMemory parent;
+	private final EngineMetrics metrics;
+	private final long budget;
+
+	// backOff() waits on the topmost account, which every release reaches
+	private final Lock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private volatile int waiters;
+
+	/**
+	 * @param parent
+	 *            the host's account, or null
+	 * @param budget
+	 *            maximum live bytes, 0 means no limit
+	 */
+	public NativeMemory(NativeMemory parent, EngineMetrics metrics, long budget) {
+		this.parent = parent;
+		this.metrics = metrics;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return the media type counters are kept under
+	 */
+	public static String typeOf(IMediaData media) {
+		if (media instanceof IPacket)
+			return PACKET;
+		if (media instanceof IVideoPicture)
+			return PICTURE;
+		if (media instanceof IAudioSamples)
+			return SAMPLES;
+		return OTHER;
+	}
+
+	/**
+	 * An object came under a lease.
+	 * 
+	 * @param made
+	 *            true if the stage made it rather than borrowing it from a pool
+	 */
+	public void acquired(String type, String stage, long bytes, boolean made) {
+		live(type, stage, bytes);
+		if (made)
+			allocated(type, bytes);
+	}
+
+	/**
+	 * A leased object was released, collected, or changed size (bytes is
+	 * then the difference).
+	 */
+	public void live(String type, String stage, long bytes) {
+		if (bytes == 0)
+			return;
+		metrics.add("memory.live", bytes);
+		metrics.add(key(LIVE_KEYS, "memory.live.", type), bytes);
+		metrics.add(stageKey(stage), bytes);
+		if (parent != null)
+			parent.live(type, stage, bytes);
+		else if (bytes < 0 && waiters > 0)
+			signalReleased();
+	}
+
+	/**
+	 * A pool factory made an object.
+	 */
+	public void pooled(String type, long bytes) {
+		metrics.add(key(POOLED_KEYS, "memory.pooled.", type), bytes);
+		metrics.add(key(ALLOCATED_KEYS, "memory.allocated.", type), bytes);
+		if (parent != null)
+			parent.pooled(type, bytes);
+	}
+
+	/**
+	 * A pool factory destroyed an object.
+	 */
+	public void unpooled(String type, long bytes) {
+		metrics.add(key(POOLED_KEYS, "memory.pooled.", type), -bytes);
+		if (parent != null)
+			parent.unpooled(type, bytes);
+	}
+
+	private void allocated(String type, long bytes) {
+		metrics.add(key(ALLOCATED_KEYS, "memory.allocated.", type), bytes);
+		if (parent != null)
+			parent.allocated(type, bytes);
+	}
+
+	private static String key(Map<String, String> keys, String prefix,
+			String type) {
+		String key = keys.get(type);
+		return key != null ? key : prefix + type;
+	}
+
+	private static String stageKey(String stage) {
+		String key = STAGE_KEYS.get(stage);
+		if (key == null) {
+			key = "memory.live.stage." + stage;
+			STAGE_KEYS.putIfAbsent(stage, key);
+		}
+		return key;
+	}
+
+	/**
+	 * @return true if this account or its parent has more live bytes than
+	 *         its budget
+	 */
+	public boolean isOverBudget() {
+		return (budget > 0 && getLive() > budget)
+				|| (parent != null && parent.isOverBudget());
+	}
+
+	/**
+	 * Wait for a release if over budget. Stages that allocate call this
+	 * before reading more and try again if it returns true. The wait is
+	 * bounded by StageScheduler.IDLE_MILLIS, so the caller can notice it is
+	 * being stopped.
+	 */
+	public boolean backOff() {
+		if (!isOverBudget())
+			return false;
+		metrics.increment("memory.backpressure");
+
+		NativeMemory root = this;
+		while (root.parent != null)
+			root = root.parent;
+		root.awaitRelease(this);
+		return true;
+	}
+
+	private void awaitRelease(NativeMemory account) {
+		lock.lock();
+		try {
+			waiters++;
+			// a release since the caller's check would not have woken us
+			if (account.isOverBudget())
+				released.await(StageScheduler.IDLE_MILLIS,
+						TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// seeks and stops interrupt the demultiplexer; let it see that
+			Thread.currentThread().interrupt();
+		} finally {
+			waiters--;
+			lock.unlock();
+		}
+	}
+
+	private void signalReleased() {
+		lock.lock();
+		try {
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getLive() {
+		return metrics.getValue("memory.live");
+	}
+
+	public long getLive(String type) {
+		return metrics.getValue(key(LIVE_KEYS, "memory.live.", type));
+	}
+
+	public long getLiveByStage(String stage) {
+		return metrics.getValue(stageKey(stage));
+	}
+
+	public long getPooled(String type) {
+		return metrics.getValue(key(POOLED_KEYS, "memory.pooled.", type));
+	}
+
+	public long getAllocated(String type) {
+		return metrics.getValue(key(ALLOCATED_KEYS, "memory.allocated.", type));
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public NativeMemory getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return a sorted copy of the memory.* counters
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet()) {
+			if (entry.getKey().startsWith("memory."))
+				snapshot.put(entry.getKey(), entry.getValue());
+		}
+		return snapshot;
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fills object pools up to their expected sizes ahead of playback, so the
+ * native objects are allocated on a background stage rather than when the
+ * decoders first need them. Objects already in a pool (idle or borrowed) count
+ * towards its size.
+ * 
+ */
+public class PoolWarmer implements Runnable {
+
+	private static Logger LogUtil = LoggerFactory.getLogger(PoolWarmer.class);
+
+	private final List<ObjectPool> pools = new ArrayList<ObjectPool>();
+	private final List<Integer> sizes = new ArrayList<Integer>();
+	private volatile boolean cancelled;
+
+	public void add(ObjectPool pool, int size) {
+		if (pool == null)
+			return;
+		pools.add(pool);
+		sizes.add(size);
+	}
+
+	public void run() {
+		long start = System.nanoTime();
+		int created = 0;
+
+		for (int i = 0; i < pools.size() && !cancelled; i++) {
+			ObjectPool pool = pools.get(i);
+			int missing = sizes.get(i) - pool.getNumIdle()
+					- pool.getNumActive();
+			try {
+				while (missing > 0 && !cancelled) {
+					int n = 1;
+					if (pool instanceof MagazineObjectPool) {
+						n = ((MagazineObjectPool) pool).prefill(missing);
+						if (n == 0)
+							break;
+					} else {
+						pool.addObject();
+					}
+					missing -= n;
+					created += n;
+				}
+			} catch (Exception e) {
+				LogUtil.warn("could not warm up " + pool, e);
+			}
+		}
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("pre-allocated " + created + " pooled objects in "
+					+ (System.nanoTime() - start) / 1000000l + "ms");
+	}
+
+	/**
+	 * Stop filling the pools, for when they are about to be replaced.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+}
@@ -23,8 +23,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.seek.KeyframeIndex;
 import com.xuggle.xuggler.IContainer;
 import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
 
 public class SeekHelper {
 
@@ -38,6 +41,11 @@ public class SeekHelper {
 	public int seekFrames(long frames, boolean keyFrame) {
 		IRational frameRate = engineRuntime.getVideoCoder().getFrameRate();
 
+		int indexed = seekIndexed(TimeUtil.videoFramesToMicroseconds(frameRate
+				.getValue(), (int) frames) * 1000l);
+		if (indexed >= 0)
+			return indexed;
+
 		if (LogUtil.isDebugEnabled())
 			LogUtil.debug("seek by frames -> "
 					+ frames
@@ -72,7 +80,9 @@ public class SeekHelper {
 	}
 
 	public int seekMicros(long microseconds, boolean keyFrame) {
-		int retcode = 0;
+		int retcode = seekIndexed(microseconds);
+		if (retcode >= 0)
+			return retcode;
 
 		if (LogUtil.isDebugEnabled()) {
 			LogUtil.debug("seek by microseconds -> " + microseconds
@@ -119,6 +129,10 @@ public class SeekHelper {
 					+ TimeUtil.microsecondsToReadableTime(microseconds));
 		}
 
+		int indexed = seekIndexed(microseconds);
+		if (indexed >= 0)
+			return indexed;
+
 		int flags = 0;
 
 		if (!keyFrame) {
@@ -133,4 +147,55 @@ public class SeekHelper {
 		return retcode;
 
 	}
+
+	/**
+	 * Seek to the key frame at or before the given time, for an accurate seek
+	 * that decodes forward from there to the exact frame.
+	 */
+	public int seekKeyFrameBefore(long microseconds) {
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("seek to key frame before -> " + microseconds);
+
+		int indexed = seekIndexed(microseconds);
+		if (indexed >= 0)
+			return indexed;
+
+		return engineRuntime.getContainer().seekKeyFrame(-1, Long.MIN_VALUE,
+				microseconds, microseconds, IContainer.SEEK_FLAG_BACKWARDS);
+	}
+
+	/**
+	 * Seek to the byte position of the video key frame at or before the given
+	 * time, if the runtime has a key frame index. This always lands on a key
+	 * frame, whatever the caller asked for.
+	 * 
+	 * @return the result of the byte seek, or -1 if the index can't serve it
+	 */
+	private int seekIndexed(long microseconds) {
+		KeyframeIndex index = engineRuntime.getKeyframeIndex();
+		IStreamCoder videoCoder = engineRuntime.getVideoCoder();
+		if (index == null || videoCoder == null)
+			return -1;
+
+		IStream stream = videoCoder.getStream();
+		long position = index.findPosition(stream.getIndex(), TimeUtil
+				.microsecondsToStreamTime(stream.getTimeBase(), microseconds));
+		if (position < 0)
+			return -1;
+
+		if (LogUtil.isDebugEnabled())
+			LogUtil.debug("index puts " + microseconds + " at byte "
+					+ position);
+
+		int retcode = engineRuntime.getContainer().seekKeyFrame(-1, position,
+				position, position, IContainer.SEEK_FLAG_BYTE);
+		if (retcode < 0) {
+			LogUtil.warn("byte seek to " + position + " failed, "
+					+ "falling back to the container's own seek");
+			return -1;
+		}
+
+		engineRuntime.getMetrics().increment("seek.indexed");
+		return retcode;
+	}
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.Synchronizer;
+
+/**
+ * Parks engine threads that have nothing to do until the engine state they are
+ * waiting on changes. Stages wait here while the engine is paused or the
+ * synchronizer is not ready; waiting for data is done by the buffers
+ * themselves (see MediaBuffer.poll()).
+ *
+ * Whoever changes the state a stage may be waiting on must call signalAll():
+ * EngineRuntime.setPaused() and the synchronizer do this. The park timeout is
+ * only a backstop for state that is not signalled.
+ *
+ */
+public class StageScheduler {
+
+	/**
+	 * How long a stage stays parked or blocked on an empty buffer before it
+	 * re-checks its own state (markedForDeath, clipEnded).
+	 */
+	public static final long IDLE_MILLIS = 50;
+
+	private static final long BACKSTOP_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(IDLE_MILLIS);
+
+	public interface Condition {
+		boolean isSatisfied();
+	}
+
+	private final EngineRuntime engineRuntime;
+	private final Set<Thread> waiters = Collections
+			.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+	private final Condition unpaused = new Condition() {
+		public boolean isSatisfied() {
+			return !engineRuntime.isPaused();
+		}
+	};
+
+	private final Condition syncReady = new Condition() {
+		public boolean isSatisfied() {
+			Synchronizer synchronizer = engineRuntime.getSynchronizer();
+			return synchronizer != null && synchronizer.syncReady();
+		}
+	};
+
+	public StageScheduler(EngineRuntime engineRuntime) {
+		this.engineRuntime = engineRuntime;
+	}
+
+	public void awaitUnpaused(EngineThread stage) throws InterruptedException {
+		await(unpaused, stage);
+	}
+
+	public void awaitSyncReady(EngineThread stage) throws InterruptedException {
+		await(syncReady, stage);
+	}
+
+	/**
+	 * Park the calling thread until the condition is satisfied or the stage (if
+	 * any) is marked for death. Interrupting the thread also ends the wait.
+	 */
+	public void await(Condition condition, EngineThread stage)
+			throws InterruptedException {
+		Thread thread = Thread.currentThread();
+		waiters.add(thread);
+		try {
+			// registered before the check, so a concurrent signalAll() is
+			// never lost
+			while (!condition.isSatisfied()
+					&& (stage == null || !stage.isMarkedForDeath())) {
+				LockSupport.parkNanos(this, BACKSTOP_NANOS);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			waiters.remove(thread);
+		}
+	}
+
+	/**
+	 * Wake every parked stage so it re-checks what it is waiting for.
+	 */
+	public void signalAll() {
+		for (Thread waiter : waiters) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	public int getWaiterCount() {
+		return waiters.size();
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.util;
+
+import com.stainlesscode.mediapipeline.EngineMetrics;
+
+/**
+ * Counts frames delivered by an output and publishes the running rate as
+ * metrics: &lt;name&gt;.frames, and &lt;name&gt;.fps averaged since the first
+ * frame. The rate is refreshed at most once a second. Not thread safe; each
+ * output drives its own meter from its player's thread.
+ */
+public class ThroughputMeter {
+
+	private static final long REPORT_NANOS = 1000000000L;
+
+	private final EngineMetrics metrics;
+	private final String framesName;
+	private final String fpsName;
+	private long firstNanos = -1;
+	private long lastReportNanos;
+	private long frames;
+
+	public ThroughputMeter(EngineMetrics metrics, String name) {
+		this.metrics = metrics;
+		this.framesName = name + ".frames";
+		this.fpsName = name + ".fps";
+	}
+
+	public void frame() {
+		long now = System.nanoTime();
+		if (firstNanos < 0) {
+			firstNanos = now;
+			lastReportNanos = now;
+		}
+		frames++;
+		metrics.increment(framesName);
+
+		if (now - lastReportNanos >= REPORT_NANOS) {
+			metrics.set(fpsName, getFramesPerSecond());
+			lastReportNanos = now;
+		}
+	}
+
+	/**
+	 * @return frames per second since the first frame, 0 before it
+	 */
+	public long getFramesPerSecond() {
+		long elapsed = System.nanoTime() - firstNanos;
+		if (firstNanos < 0 || elapsed <= 0)
+			return 0;
+		return frames * REPORT_NANOS / elapsed;
+	}
+
+	public void reset() {
+		firstNanos = -1;
+		frames = 0;
+	}
+
+}
@@ -21,8 +21,11 @@ package com.stainlesscode.mediapipeline.util;
 
 import javax.sound.sampled.AudioFormat;
 
+import com.xuggle.xuggler.Global;
 import com.xuggle.xuggler.IAudioSamples;
+import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IRational;
+import com.xuggle.xuggler.IStreamCoder;
 
 public class TimeUtil {
 
@@ -108,6 +111,51 @@ public class TimeUtil {
 		return timeInTimeBaseUnits;
 	}
 
+	/**
+	 * Convert microseconds to units of the given time base (e.g. a stream's),
+	 * without the rounding to whole seconds microsecondsToTimeBaseUnits does.
+	 */
+	public static long microsecondsToStreamTime(IRational timebase,
+			long microseconds) {
+		return microseconds * timebase.getDenominator()
+				/ ((long) timebase.getNumerator() * MICROSECONDS_PER_SECOND);
+	}
+
+	/**
+	 * @return how long each frame of the coder's stream is shown, 0 if the
+	 *         frame rate is not known
+	 */
+	public static long getFramePeriod(IStreamCoder coder) {
+		IRational frameRate = coder == null ? null : coder.getFrameRate();
+		if (frameRate == null || frameRate.getValue() <= 0)
+			return 0;
+		return (long) (MICROSECONDS_PER_SECOND / frameRate.getValue());
+	}
+
+	/**
+	 * Convert units of the given time base (e.g. a stream's) to microseconds.
+	 */
+	public static long streamTimeToMicroseconds(IRational timebase,
+			long units) {
+		return units * timebase.getNumerator() * MICROSECONDS_PER_SECOND
+				/ timebase.getDenominator();
+	}
+
+	/**
+	 * Shift a packet's timestamps by the given number of microseconds,
+	 * converted to the packet's time base.
+	 */
+	public static void rebasePacket(IPacket packet, long microseconds) {
+		IRational timeBase = packet.getTimeBase();
+		if (microseconds == 0 || timeBase == null)
+			return;
+		long units = microsecondsToStreamTime(timeBase, microseconds);
+		if (packet.getPts() != Global.NO_PTS)
+			packet.setPts(packet.getPts() + units);
+		if (packet.getDts() != Global.NO_PTS)
+			packet.setDts(packet.getDts() + units);
+	}
+
 	public static long videoFramesToMicroseconds(double frameRate, int frames) {
 		double timePerFrame = (1.0d / frameRate);
 		return Math.round(timePerFrame * frames * 1000);
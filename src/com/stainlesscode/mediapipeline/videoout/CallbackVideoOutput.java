@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.videoout;
+
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * A headless VideoOutput that hands every frame to a callback, on the video
+ * player's thread, as fast as the pipeline produces them. The picture is in
+ * BGR24; call copyReference() on it to keep it past the callback.
+ * 
+ * Set it on the engine with Engine.setVideoOutput() before loading media.
+ */
+public class CallbackVideoOutput extends NullVideoOutput {
+
+	public interface Callback {
+		void frameDelivered(IVideoPicture picture);
+	}
+
+	private volatile Callback callback;
+
+	public CallbackVideoOutput() {
+	}
+
+	public CallbackVideoOutput(Callback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	protected void deliver(IVideoPicture picture) {
+		Callback callback = this.callback;
+		if (callback != null)
+			callback.frameDelivered(picture);
+	}
+
+	public Callback getCallback() {
+		return callback;
+	}
+
+	public void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+}
@@ -35,7 +35,6 @@ import javax.swing.SwingUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.VideoOutput;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
@@ -94,7 +93,6 @@ public class DefaultVideoPanel extends MediaPlayerEventSupportedJComponent
 
 		// this.currentPicture = picture;
 		this.lastPts = picture.getPts();
-		// returnBorrowed(picture);
 
 		if (converter == null) {
 			converter = (IConverter) engineRuntime.getUserObject("converter");
@@ -136,17 +134,6 @@ public class DefaultVideoPanel extends MediaPlayerEventSupportedJComponent
 		});
 	}
 
-	private void returnBorrowed(IVideoPicture picture) {
-		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getResampledPicturePool().returnObject(picture);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
 
 	public String getTimecode(long streamTimeInMicroseconds) {
 		try {
@@ -298,6 +285,9 @@ public class DefaultVideoPanel extends MediaPlayerEventSupportedJComponent
 	public void close() {
 		currentFrame = null;
 		this.firstFrame = true;
+		// the next media may not have the same picture size
+		this.converter = null;
+		this.videoSize = null;
 		this.removeMediaPlayerEventListener(engineRuntime.getEngine());
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
@@ -19,19 +19,23 @@
 
 package com.stainlesscode.mediapipeline.videoout;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.collections.Buffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.stainlesscode.mediapipeline.EngineConfiguration;
 import com.stainlesscode.mediapipeline.EngineRuntime;
 import com.stainlesscode.mediapipeline.VideoOutput;
-import com.stainlesscode.mediapipeline.buffer.CircularFifoMediaBuffer;
+import com.stainlesscode.mediapipeline.buffer.MediaBuffer;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEvent;
 import com.stainlesscode.mediapipeline.event.MediaPlayerEventListener;
+import com.stainlesscode.mediapipeline.seek.DecodeForward;
 import com.stainlesscode.mediapipeline.util.EngineThread;
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.stainlesscode.mediapipeline.util.StageScheduler;
 import com.xuggle.xuggler.IVideoPicture;
 
 public class DefaultVideoPlayer extends EngineThread implements
@@ -45,30 +49,66 @@ public class DefaultVideoPlayer extends EngineThread implements
 	protected VideoOutput videoOutput;
 	protected boolean doSync = true;
 
+	// the frame on screen, held until the next one replaces it
+	private MediaLease<IVideoPicture> shown;
+
+	/**
+	 * A step forward asked for while paused. The player thread serves it, so
+	 * it stays the only consumer of the frame buffer.
+	 */
+	private static class StepRequest {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean presented;
+	}
+
+	private final AtomicReference<StepRequest> pendingStep = new AtomicReference<StepRequest>();
+
+	private final StageScheduler.Condition unpausedOrStep = new StageScheduler.Condition() {
+		public boolean isSatisfied() {
+			return !engineRuntime.isPaused() || pendingStep.get() != null;
+		}
+	};
+
 	public DefaultVideoPlayer(VideoOutput screen, EngineRuntime runtime) {
 		this.engineRuntime = runtime;
 		this.videoFrameBuffer = runtime.getVideoFrameBuffer();
 		this.videoOutput = screen;
 	}
 
+	@SuppressWarnings("unchecked")
 	public void run() {
+		StageScheduler scheduler = engineRuntime.getStageScheduler();
+
 		while (!isMarkedForDeath()) {
-			if (engineRuntime.isPaused()) {
-				if (LogUtil.isTraceEnabled())
-					LogUtil.trace("waiting while paused");
+			try {
+				if (engineRuntime.isPaused()) {
+					StepRequest step = pendingStep.get();
+					if (step != null) {
+						serve(step);
+						continue;
+					}
+					if (LogUtil.isTraceEnabled())
+						LogUtil.trace("waiting while paused");
+					scheduler.await(unpausedOrStep, this);
+					continue;
+				}
+
+				if (!syncReady()) {
+					scheduler.awaitSyncReady(this);
+					continue;
+				}
+			} catch (InterruptedException e) {
+				// seeking and stopping interrupt the player
 				continue;
 			}
 
-			IVideoPicture picture = null;
+			MediaLease<IVideoPicture> lease = null;
 
 			if (this.clipEnded && videoFrameBuffer.isEmpty()) {
 				setMarkedForDeath(true);
 				continue;
 			}
 
-			if (videoFrameBuffer.isEmpty() || !syncReady())
-				continue;
-
 			// sync here... if we are ahead of the vpts just continue the loop
 //			if (LogUtil.isDebugEnabled()) {
 //				LogUtil.debug("buffer start time="
@@ -90,7 +130,9 @@ public class DefaultVideoPlayer extends EngineThread implements
 			 * // } catch (InterruptedException e) { // // TODO Auto-generated
 			 * catch block // e.printStackTrace(); // } continue; }
 			 */
-			picture = (IVideoPicture) videoFrameBuffer.remove();
+			// blocks until the decoder publishes a frame
+			lease = (MediaLease<IVideoPicture>) ((MediaBuffer) videoFrameBuffer)
+					.poll(StageScheduler.IDLE_MILLIS, TimeUnit.MILLISECONDS);
 
 			// if (firstTimestampInStream < 0)
 			// firstTimestampInStream = picture.getTimeStamp();
@@ -103,7 +145,8 @@ public class DefaultVideoPlayer extends EngineThread implements
 			// .setEndTimestampMillis(picture.getTimeStamp());
 			// }
 
-			if (picture != null) {
+			if (lease != null) {
+				IVideoPicture picture = lease.get();
 				// if (LogUtil.isDebugEnabled())
 				// LogUtil.debug("$$VIDEO REMOVE " + picture.getTimeStamp()
 				// / 1000);
@@ -119,7 +162,8 @@ public class DefaultVideoPlayer extends EngineThread implements
 				// continue;
 				// }
 
-				if (picture.isComplete()) {
+				if (picture.isComplete()
+						&& !DecodeForward.skip(engineRuntime, lease)) {
 					if (LogUtil.isDebugEnabled()) {
 						// long ts = picture.getTimeStamp();
 						// LogUtil.debug("$$VIDEO SET " + ts);
@@ -133,31 +177,90 @@ public class DefaultVideoPlayer extends EngineThread implements
 						// "ms");
 					}
 
-					videoOutput.setCurrentFrame(picture.copyReference());
+					present(lease);
 
 					if (doSync)
 						doSync(true);
 				}
-			} else {
-				if (LogUtil.isDebugEnabled())
-					LogUtil.debug("$$VIDEO REMOVE NULL");
+				lease.release();
 			}
 		}
 
+		StepRequest step = pendingStep.getAndSet(null);
+		if (step != null)
+			step.done.countDown();
+
+		if (shown != null)
+			shown.release();
+		shown = null;
+
 		videoFrameBuffer = null;
 		LogUtil.info("DefaultVideoPlayThread shutting down gracefully");
 	}
 
-	protected void returnBorrowed(IVideoPicture picture) {
+	/**
+	 * Show a frame. The lease is retained until the next frame replaces it on
+	 * screen, so the output may keep reading the picture.
+	 */
+	protected void present(MediaLease<IVideoPicture> lease) {
+		IVideoPicture picture = lease.get();
+		lease.retain();
+		videoOutput.setCurrentFrame(picture.copyReference());
+		if (shown != null)
+			shown.release();
+		shown = lease;
+
+		FrameHistory history = engineRuntime.getFrameHistory();
+		if (history != null)
+			history.add(lease);
+
+		engineRuntime.getEngine().getSeekScheduler().framePresented(
+				picture.getTimeStamp());
+	}
+
+	/**
+	 * Show the next presentable frame from the buffer while the engine is
+	 * paused.
+	 * 
+	 * @return false if no frame arrived in time or the player is stopping
+	 */
+	public boolean stepForward() throws InterruptedException {
+		StepRequest request = new StepRequest();
+		if (!pendingStep.compareAndSet(null, request))
+			return false;
+		engineRuntime.getStageScheduler().signalAll();
+
+		while (!request.done.await(StageScheduler.IDLE_MILLIS,
+				TimeUnit.MILLISECONDS)) {
+			if (isMarkedForDeath()) {
+				pendingStep.compareAndSet(request, null);
+				return false;
+			}
+		}
+		return request.presented;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void serve(StepRequest step) {
 		try {
-			if (engineRuntime.getEngine().getEngineConfiguration()
-					.getConfigurationValueAsBoolean(
-							EngineConfiguration.USE_OBJECT_POOLS)) {
-				engineRuntime.getRawPicturePool().returnObject(picture);
+			while (true) {
+				MediaLease<IVideoPicture> lease = (MediaLease<IVideoPicture>) ((MediaBuffer) videoFrameBuffer)
+						.poll(StageScheduler.IDLE_MILLIS, TimeUnit.MILLISECONDS);
+				if (lease == null)
+					return;
+				IVideoPicture picture = lease.get();
+				if (picture.isComplete()
+						&& !DecodeForward.skip(engineRuntime, lease)) {
+					present(lease);
+					lease.release();
+					step.presented = true;
+					return;
+				}
+				lease.release();
 			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} finally {
+			pendingStep.compareAndSet(step, null);
+			step.done.countDown();
 		}
 	}
 
@@ -176,7 +279,7 @@ public class DefaultVideoPlayer extends EngineThread implements
 	 */
 	protected void doSync(boolean sleep) {
 		long vpts = engineRuntime.getSynchronizer().getStreamTime();
-		long epts = ((CircularFifoMediaBuffer) videoFrameBuffer)
+		long epts = ((MediaBuffer) videoFrameBuffer)
 				.getStartTimestamp();
 		long lpts = videoOutput.getLastPts();
 		long audioClock = engineRuntime.getSynchronizer().getAudioClock();
@@ -258,6 +361,7 @@ public class DefaultVideoPlayer extends EngineThread implements
 			LogUtil.debug("got event " + evt);
 
 		if (evt.getType() == MediaPlayerEvent.Type.SEEK) {
+			// the buffer releases what it drops
 			videoFrameBuffer.clear();
 		}
 	}
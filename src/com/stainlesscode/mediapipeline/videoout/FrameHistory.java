@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.videoout;
+
+import com.stainlesscode.mediapipeline.util.MediaLease;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * A bounded ring of the most recently presented video frames, oldest first,
+ * with a cursor on the frame currently on screen. The video player appends
+ * every frame it presents; stepping backward and forward moves the cursor
+ * without going back to the container.
+ *
+ * The ring is bounded by a frame count and, optionally, a byte budget (as
+ * reported by IVideoPicture.getSize()); the oldest frames are dropped first.
+ * Appending a frame while the cursor is rewound drops the frames after the
+ * cursor, as they are no longer on the playback path.
+ *
+ * A leased picture is kept by retaining its lease, so a pooled picture is not
+ * recycled while it is in the history.
+ *
+ * ALL TIMESTAMPS IN MICROSECONDS
+ *
+ */
+public class FrameHistory {
+
+	private final IVideoPicture[] frames;
+	// the lease each frame is held under, or null for a copied reference
+	private final MediaLease<?>[] leases;
+	private final long byteBudget;
+
+	// index of the oldest frame, number of frames, and cursor relative to head
+	private int head;
+	private int size;
+	private int cursor = -1;
+	private long bytes;
+
+	/**
+	 * @param capacity
+	 *            maximum number of frames kept, 0 disables the history
+	 * @param byteBudget
+	 *            maximum number of bytes kept, 0 means no limit
+	 */
+	public FrameHistory(int capacity, long byteBudget) {
+		this.frames = new IVideoPicture[Math.max(capacity, 0)];
+		this.leases = new MediaLease<?>[frames.length];
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * Record a frame that has just been presented. The history retains the
+	 * lease, so the caller may release it.
+	 */
+	public void add(MediaLease<IVideoPicture> lease) {
+		if (lease == null || frames.length == 0)
+			return;
+		lease.retain();
+		IVideoPicture picture = lease.get();
+		if (picture == null)
+			lease.release();
+		else
+			append(picture, lease);
+	}
+
+	/**
+	 * Record a frame that is not leased. The history takes its own reference,
+	 * so the caller may release the picture.
+	 */
+	public void add(IVideoPicture picture) {
+		if (frames.length == 0 || picture == null)
+			return;
+		append(picture.copyReference(), null);
+	}
+
+	private synchronized void append(IVideoPicture picture, MediaLease<?> lease) {
+		// anything after the cursor is not on the playback path any more
+		while (size > cursor + 1)
+			removeLast();
+
+		if (size == frames.length)
+			removeFirst();
+		int i = (head + size) % frames.length;
+		frames[i] = picture;
+		leases[i] = lease;
+		size++;
+		bytes += picture.getSize();
+
+		// always keep the frame on screen, even if it alone is over budget
+		while (byteBudget > 0 && bytes > byteBudget && size > 1)
+			removeFirst();
+
+		cursor = size - 1;
+	}
+
+	/**
+	 * Move the cursor one frame back.
+	 *
+	 * @return the frame before the current one, or null if it is not in the
+	 *         history
+	 */
+	public synchronized IVideoPicture stepBackward() {
+		if (cursor <= 0)
+			return null;
+		cursor--;
+		return get(cursor);
+	}
+
+	/**
+	 * Move the cursor one frame forward.
+	 *
+	 * @return the frame after the current one, or null if the cursor is on the
+	 *         most recently presented frame
+	 */
+	public synchronized IVideoPicture stepForward() {
+		if (cursor < 0 || cursor >= size - 1)
+			return null;
+		cursor++;
+		return get(cursor);
+	}
+
+	/**
+	 * @return the frame under the cursor, or null if the history is empty
+	 */
+	public synchronized IVideoPicture getCurrent() {
+		return cursor < 0 ? null : get(cursor);
+	}
+
+	/**
+	 * @return true if the cursor has been stepped back from the most recently
+	 *         presented frame
+	 */
+	public synchronized boolean isRewound() {
+		return cursor >= 0 && cursor < size - 1;
+	}
+
+	/**
+	 * Move the cursor back to the most recently presented frame.
+	 */
+	public synchronized void rewindToLatest() {
+		cursor = size - 1;
+	}
+
+	public synchronized void clear() {
+		while (size > 0)
+			removeFirst();
+		head = 0;
+		cursor = -1;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return frames.length;
+	}
+
+	public synchronized long getBufferedBytes() {
+		return bytes;
+	}
+
+	private void drop(int i) {
+		bytes -= frames[i].getSize();
+		frames[i] = null;
+		if (leases[i] != null) {
+			leases[i].release();
+			leases[i] = null;
+		}
+	}
+
+	private IVideoPicture get(int i) {
+		return frames[(head + i) % frames.length].copyReference();
+	}
+
+	private void removeFirst() {
+		drop(head);
+		head = (head + 1) % frames.length;
+		size--;
+		if (cursor >= 0)
+			cursor--;
+	}
+
+	private void removeLast() {
+		drop((head + size - 1) % frames.length);
+		size--;
+	}
+
+}
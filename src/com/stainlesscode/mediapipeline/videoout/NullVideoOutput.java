@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2011 Stainless Code
+ *
+ *  This file is part of Daedalum.
+ *
+ *  Daedalum is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Daedalum is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Daedalum.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.stainlesscode.mediapipeline.videoout;
+
+import com.stainlesscode.mediapipeline.EngineRuntime;
+import com.stainlesscode.mediapipeline.Synchronizer;
+import com.stainlesscode.mediapipeline.VideoOutput;
+import com.stainlesscode.mediapipeline.util.ThroughputMeter;
+import com.xuggle.xuggler.IVideoPicture;
+
+/**
+ * A VideoOutput that presents nothing, for headless processing. Each frame is
+ * counted (metrics output.video.frames and output.video.fps) and reported to
+ * the synchronizer as delivered, which is what drives a
+ * FreeRunningSynchronizer. Subclasses do something with the frame in
+ * deliver().
+ * 
+ * @see CallbackVideoOutput
+ */
+public class NullVideoOutput implements VideoOutput {
+
+	protected EngineRuntime engineRuntime;
+	protected ThroughputMeter meter;
+	protected long lastPts = -1;
+
+	public void init(EngineRuntime engineRuntime) {
+		this.engineRuntime = engineRuntime;
+		// a warm reset re-initializes the output; keep counting
+		if (meter == null)
+			meter = new ThroughputMeter(engineRuntime.getMetrics(),
+					"output.video");
+	}
+
+	public void setCurrentFrame(IVideoPicture picture) {
+		this.lastPts = picture.getPts();
+		meter.frame();
+
+		deliver(picture);
+
+		Synchronizer synchronizer = engineRuntime.getSynchronizer();
+		if (synchronizer != null)
+			synchronizer.setVideoClock(picture.getTimeStamp());
+	}
+
+	/**
+	 * Called for every frame presented. Does nothing here.
+	 */
+	protected void deliver(IVideoPicture picture) {
+	}
+
+	public void close() {
+	}
+
+	public long getLastPts() {
+		return lastPts;
+	}
+
+	/**
+	 * @return frames presented per second since the first one
+	 */
+	public long getFramesPerSecond() {
+		return meter == null ? 0 : meter.getFramesPerSecond();
+	}
+
+}
@@ -320,6 +320,12 @@ public class MediaPlayer extends JFrame implements MediaPlayerEventListener {
 
 	public void doLoad(String url) {
 		try {
+			if (engine != null && engine.isStarted()) {
+				// a running engine swaps the media without restarting
+				engine.loadUrl(url);
+				slider.setEngine(engine);
+				return;
+			}
 			if (engine!=null) engine.stop();
 			engine = createEngine();
 			engine.addMediaPlayerEventListener(this);
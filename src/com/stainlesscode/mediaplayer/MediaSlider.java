@@ -126,7 +126,8 @@ public class MediaSlider extends JSlider implements MediaPlayerEventListener,
 			if (LogUtil.isDebugEnabled())
 				LogUtil.debug("slider seeking to "
 						+ TimeUtil.microsecondsToReadableTime(newVal));
-			engine.seek(newVal);
+			// dragging makes many of these; only the latest is seeked to
+			engine.seekAsync(newVal);
 		}
 	}
 }